@@ -26,6 +26,7 @@ import android.graphics.drawable.Drawable;
 import android.util.Log;
 
 import com.emanuelef.remote_capture.model.AppDescriptor;
+import com.emanuelef.remote_capture.model.ConnectionFilter;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -33,7 +34,7 @@ import java.util.Map;
 import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 
-public class AppsResolver {
+public class AppsResolver implements ConnectionFilter.AppResolver {
     private static final String TAG = "AppsResolver";
     private final Map<Integer, AppDescriptor> mApps;
     private final PackageManager mPm;
@@ -112,6 +113,18 @@ public class AppsResolver {
         return app;
     }
 
+    @Override
+    public @Nullable String getAppName(int uid) {
+        AppDescriptor app = get(uid, 0);
+        return (app != null) ? app.getName() : null;
+    }
+
+    @Override
+    public @Nullable String getPackageName(int uid) {
+        AppDescriptor app = get(uid, 0);
+        return (app != null) ? app.getPackageName() : null;
+    }
+
     public void clear() {
         mApps.clear();
         initVirtualApps();
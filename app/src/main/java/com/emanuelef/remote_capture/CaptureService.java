@@ -37,10 +37,10 @@ import android.net.NetworkRequest;
 import android.net.Uri;
 import android.net.VpnService;
 import android.os.Build;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
 import android.widget.Toast;
@@ -58,6 +58,7 @@ import com.emanuelef.remote_capture.activities.CaptureCtrl;
 import com.emanuelef.remote_capture.activities.ConnectionsActivity;
 import com.emanuelef.remote_capture.activities.MainActivity;
 import com.emanuelef.remote_capture.fragments.ConnectionsFragment;
+import com.emanuelef.remote_capture.interfaces.StatsListener;
 import com.emanuelef.remote_capture.model.AppDescriptor;
 import com.emanuelef.remote_capture.model.BlacklistDescriptor;
 import com.emanuelef.remote_capture.model.Blacklists;
@@ -68,16 +69,25 @@ import com.emanuelef.remote_capture.model.FilterDescriptor;
 import com.emanuelef.remote_capture.model.MatchList;
 import com.emanuelef.remote_capture.model.Prefs;
 import com.emanuelef.remote_capture.model.VPNStats;
+import com.emanuelef.remote_capture.pcap_dump.CompressedOutputStream;
 import com.emanuelef.remote_capture.pcap_dump.FileDumper;
+import com.emanuelef.remote_capture.pcap_dump.FlowIndex;
 import com.emanuelef.remote_capture.pcap_dump.HTTPServer;
+import com.emanuelef.remote_capture.pcap_dump.IPFIXExporter;
+import com.emanuelef.remote_capture.pcap_dump.PacketStore;
+import com.emanuelef.remote_capture.pcap_dump.RotatingFileDumper;
+import com.emanuelef.remote_capture.pcap_dump.TCPDumper;
 import com.emanuelef.remote_capture.interfaces.PcapDumper;
 import com.emanuelef.remote_capture.pcap_dump.UDPDumper;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingDeque;
 
 public class CaptureService extends VpnService implements Runnable {
@@ -101,7 +111,11 @@ public class CaptureService extends VpnService implements Runnable {
     private int last_connections;
     private int app_filter_uid;
     private PcapDumper mDumper;
+    private volatile PacketStore mPacketStore; // written by the capture thread, read by the UI
+    private IPFIXExporter mFlowExporter;
     private ConnectionsRegister conn_reg;
+    private Geolocation mGeo;
+    private GeoResolver mGeoResolver;
     private Uri mPcapUri;
     private NotificationCompat.Builder mStatusBuilder;
     private NotificationCompat.Builder mBlacklistedBuilder;
@@ -114,11 +128,20 @@ public class CaptureService extends VpnService implements Runnable {
     private boolean mDnsEncrypted;
     private boolean mStrictDnsNoticeShown;
     private Blacklists mBlacklists;
+    private VPNStats mPendingStats;
+    private volatile long mLastNotificationUpdate;
+    private volatile boolean mNotificationUpdatePending;
+    private final Runnable mNotificationUpdater = this::updateNotification;
+    private static final ArrayList<StatsListener> mStatsListeners = new ArrayList<>();
 
     /* The maximum connections to log into the ConnectionsRegister. Older connections are dropped.
      * Max Estimated max memory usage: less than 4 MB. */
     public static final int CONNECTIONS_LOG_SIZE = 8192;
 
+    /* The minimum interval between two updates of the status notification. Native stats are
+     * reported more often, see CAPTURE_STATS_UPDATE_FREQUENCY_MS. */
+    private static final int NOTIFICATION_UPDATE_INTERVAL_MS = 2000;
+
     public static final String FALLBACK_DNS_SERVER = "8.8.8.8";
     public static final String IPV6_DNS_SERVER = "2001:4860:4860::8888";
 
@@ -131,7 +154,6 @@ public class CaptureService extends VpnService implements Runnable {
      * After the analysis, requests will be routed to the primary DNS server. */
     public static final String VPN_VIRTUAL_DNS_SERVER = "10.215.173.2";
 
-    public static final String ACTION_STATS_DUMP = "stats_dump";
     public static final String ACTION_SERVICE_STATUS = "service_status";
     public static final String SERVICE_STATUS_KEY = "status";
     public static final String SERVICE_STATUS_STARTED = "started";
@@ -210,19 +232,56 @@ public class CaptureService extends VpnService implements Runnable {
         vpn_ipv4 = VPN_IP_ADDRESS;
         last_bytes = 0;
         last_connections = 0;
-        conn_reg = new ConnectionsRegister(this, CONNECTIONS_LOG_SIZE);
+        mLastNotificationUpdate = 0;
+        mNotificationUpdatePending = false;
+
+        // In headless mode, the connections are not reported by the native code
+        if(!mSettings.headless) {
+            conn_reg = new ConnectionsRegister(CONNECTIONS_LOG_SIZE,
+                    PCAPdroid.getInstance().getMalwareWhitelist(), this::notifyBlacklistedConnection);
+            mGeo = PCAPdroid.getInstance().getGeolocation();
+            mGeoResolver = new GeoResolver(mGeo, conn_reg);
+        } else {
+            conn_reg = null;
+            mGeo = null;
+            mGeoResolver = null;
+        }
         mPcapUri = null;
         mDumper = null;
+        mPacketStore = null;
+        mFlowExporter = null;
 
         // Possibly allocate the dumper
         if(mSettings.dump_mode == Prefs.DumpMode.HTTP_SERVER)
-            mDumper = new HTTPServer(this, mSettings.http_server_port);
+            mDumper = new HTTPServer(this, mSettings.http_server_port, mSettings.pcapng_format,
+                    mSettings.pcap_compression != CompressedOutputStream.Codec.NONE,
+                    mSettings.http_client_buffer * 1024L * 1024L, mSettings.http_slow_client_policy);
         else if(mSettings.dump_mode == Prefs.DumpMode.PCAP_FILE) {
             if(mSettings.pcap_uri != null) {
                 mPcapUri = Uri.parse(mSettings.pcap_uri);
-                mDumper = new FileDumper(this, mPcapUri);
+
+                if((mSettings.pcap_rotate_size > 0) || (mSettings.pcap_rotate_interval > 0)) {
+                    // Rotation requires a local path, see RotatingFileDumper
+                    if(!"file".equals(mPcapUri.getScheme()) || (mPcapUri.getPath() == null)) {
+                        reportError("PCAP rotation requires a file:// URI");
+                        return abortStart();
+                    }
+
+                    mDumper = new RotatingFileDumper(new File(mPcapUri.getPath()),
+                            mSettings.pcap_rotate_size * 1024L * 1024L,
+                            mSettings.pcap_rotate_interval * 1000L, mSettings.pcap_max_files,
+                            mSettings.pcap_compression, mSettings.pcap_compression_level, mSettings.pcap_index);
+                } else {
+                    // The index requires a local path
+                    File index_file = (mSettings.pcap_index && "file".equals(mPcapUri.getScheme()) &&
+                            (mPcapUri.getPath() != null)) ? FlowIndex.getIndexFile(new File(mPcapUri.getPath())) : null;
+
+                    mDumper = new FileDumper(this, mPcapUri, mSettings.pcap_compression,
+                            mSettings.pcap_compression_level, index_file);
+                }
             }
-        } else if(mSettings.dump_mode == Prefs.DumpMode.UDP_EXPORTER) {
+        } else if((mSettings.dump_mode == Prefs.DumpMode.UDP_EXPORTER) ||
+                (mSettings.dump_mode == Prefs.DumpMode.TCP_EXPORTER)) {
             InetAddress addr;
 
             try {
@@ -233,7 +292,12 @@ public class CaptureService extends VpnService implements Runnable {
                 return abortStart();
             }
 
-            mDumper = new UDPDumper(new InetSocketAddress(addr, mSettings.collector_port));
+            InetSocketAddress collector = new InetSocketAddress(addr, mSettings.collector_port);
+
+            if(mSettings.dump_mode == Prefs.DumpMode.TCP_EXPORTER)
+                mDumper = new TCPDumper(collector);
+            else
+                mDumper = new UDPDumper(collector, mSettings.pcapng_format, mSettings.udp_batch_mtu);
         }
 
         if(mDumper != null) {
@@ -247,6 +311,28 @@ public class CaptureService extends VpnService implements Runnable {
             }
         }
 
+        // The flows are exported from the connections, which are not available in headless mode
+        if(!mSettings.ipfix_collector_address.isEmpty() && (conn_reg != null)) {
+            try {
+                InetSocketAddress collector = new InetSocketAddress(
+                        InetAddress.getByName(mSettings.ipfix_collector_address), mSettings.ipfix_collector_port);
+
+                // The exporter runs in the mConnUpdateThread, so it needs its own resolver
+                AppsResolver resolver = new AppsResolver(this);
+
+                mFlowExporter = new IPFIXExporter(conn_reg, collector, mSettings.ipfix_active_timeout, uid -> {
+                    AppDescriptor app = resolver.get(uid, 0);
+                    return (app != null) ? app.getPackageName() : null;
+                });
+                mFlowExporter.start();
+            } catch (IOException | SecurityException e) {
+                reportError(e.getLocalizedMessage());
+                e.printStackTrace();
+                mFlowExporter = null;
+                return abortStart();
+            }
+        }
+
         if ((mSettings.app_filter != null) && (!mSettings.app_filter.isEmpty())) {
             try {
                 app_filter_uid = getPackageManager().getApplicationInfo(mSettings.app_filter, 0).uid;
@@ -258,7 +344,7 @@ public class CaptureService extends VpnService implements Runnable {
             app_filter_uid = -1;
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        mMalwareDetectionEnabled = Prefs.isMalwareDetectionEnabled(this, prefs);
+        mMalwareDetectionEnabled = !mSettings.headless && Prefs.isMalwareDetectionEnabled(this, prefs);
 
         if(!mSettings.root_capture) {
             Log.i(TAG, "Using DNS server " + dns_server);
@@ -321,6 +407,9 @@ public class CaptureService extends VpnService implements Runnable {
         mConnUpdateThread = new Thread(this::connUpdateWork, "UpdateListener");
         mConnUpdateThread.start();
 
+        if(mGeoResolver != null)
+            mGeoResolver.start();
+
         // Start the native capture thread
         mCaptureThread = new Thread(this, "PacketCapture");
         mCaptureThread.start();
@@ -409,6 +498,9 @@ public class CaptureService extends VpnService implements Runnable {
     }
 
     private void updateNotification() {
+        mNotificationUpdatePending = false;
+        mLastNotificationUpdate = SystemClock.elapsedRealtime();
+
         Notification notification = getStatusNotification();
         NotificationManagerCompat.from(this).notify(NOTIFY_ID_VPNSERVICE, notification);
     }
@@ -553,6 +645,20 @@ public class CaptureService extends VpnService implements Runnable {
         }
         mConnUpdateThread = null;
 
+        if(mGeoResolver != null) {
+            mGeoResolver.stop();
+            mGeoResolver = null;
+        }
+
+        if(mGeo != null)
+            Log.d(TAG, "Geolocation " + mGeo.getStats());
+
+        // After the mConnUpdateThread is stopped, so that the last updates are exported
+        if(mFlowExporter != null) {
+            mFlowExporter.stop();
+            mFlowExporter = null;
+        }
+
         if(mParcelFileDescriptor != null) {
             try {
                 mParcelFileDescriptor.close();
@@ -573,6 +679,10 @@ public class CaptureService extends VpnService implements Runnable {
 
         mPcapUri = null;
         mPendingUpdates.clear();
+
+        if(mHandler != null)
+            mHandler.removeCallbacks(mNotificationUpdater);
+        mNotificationUpdatePending = false;
         unregisterNetworkCallbacks();
         CaptureCtrl.notifyCaptureStopped(this);
 
@@ -631,6 +741,13 @@ public class CaptureService extends VpnService implements Runnable {
         return((INSTANCE != null) ? INSTANCE.mSettings.http_server_port : 0);
     }
 
+    /* Returns null if the HTTP server is not running */
+    public static List<HTTPServer.ClientLag> getHTTPClientsLag() {
+        PcapDumper dumper = (INSTANCE != null) ? INSTANCE.mDumper : null;
+
+        return((dumper instanceof HTTPServer) ? ((HTTPServer) dumper).getClientsLag() : null);
+    }
+
     public static Prefs.DumpMode getDumpMode() {
         return((INSTANCE != null) ? INSTANCE.mSettings.dump_mode : Prefs.DumpMode.NONE);
     }
@@ -655,6 +772,10 @@ public class CaptureService extends VpnService implements Runnable {
         return(inst);
     }
 
+    public static @Nullable PacketStore getPacketStore() {
+        return((INSTANCE != null) ? INSTANCE.mPacketStore : null);
+    }
+
     public static @Nullable ConnectionsRegister getConnsRegister() {
         return((INSTANCE != null) ? INSTANCE.conn_reg : null);
     }
@@ -672,6 +793,22 @@ public class CaptureService extends VpnService implements Runnable {
                 (INSTANCE.isRootCapture() == 1));
     }
 
+    /* Register a listener for the capture stats. Thread-safe, the listeners are invoked on the
+     * main thread. */
+    public static void addStatsListener(StatsListener listener) {
+        synchronized (mStatsListeners) {
+            mStatsListeners.add(listener);
+            setHasStatsListeners(true);
+        }
+    }
+
+    public static void removeStatsListener(StatsListener listener) {
+        synchronized (mStatsListeners) {
+            mStatsListeners.remove(listener);
+            setHasStatsListeners(!mStatsListeners.isEmpty());
+        }
+    }
+
     public static void requestBlacklistsUpdate() {
         if(INSTANCE != null) {
             INSTANCE.mBlacklistsUpdateRequested = true;
@@ -704,6 +841,14 @@ public class CaptureService extends VpnService implements Runnable {
         // After the capture is stopped
         if(mMalwareDetectionEnabled)
             mBlacklists.save();
+
+        if(!mSettings.pcap_input.isEmpty()) {
+            // The PCAP file replay is complete. The connections are kept until a new capture is started.
+            mHandler.post(() -> {
+                if(mCaptureThread != null)
+                    stop();
+            });
+        }
     }
 
     private void connUpdateWork() {
@@ -718,6 +863,9 @@ public class CaptureService extends VpnService implements Runnable {
 
                 checkBlacklistsUpdates();
 
+                if(conn_reg == null) // headless mode
+                    continue;
+
                 // synchronize the conn_reg to ensure that newConnections and connectionsUpdates run atomically
                 // thus preventing the ConnectionsAdapter from interleaving other operations
                 synchronized (conn_reg) {
@@ -727,6 +875,10 @@ public class CaptureService extends VpnService implements Runnable {
                     if(conns_updates.length > 0)
                         conn_reg.connectionsUpdates(conns_updates);
                 }
+
+                // The geolocation is set asynchronously, to not delay the next updates
+                if(new_conns.length > 0)
+                    mGeoResolver.resolve(new_conns);
             }
         } catch (InterruptedException e) {
             e.printStackTrace();
@@ -761,12 +913,26 @@ public class CaptureService extends VpnService implements Runnable {
 
     public int malwareDetectionEnabled() { return(mMalwareDetectionEnabled ? 1 : 0); }
 
+    public int headlessModeEnabled() { return(mSettings.headless ? 1 : 0); }
+
     public int addPcapdroidTrailer() { return(mSettings.pcapdroid_trailer ? 1 : 0); }
 
+    public int pcapngFormatEnabled() { return(mSettings.pcapng_format ? 1 : 0); }
+
+    public int getPcapSnaplen() { return(mSettings.pcap_snaplen); }
+
+    public int getPcapPayloadBytes() { return(mSettings.pcap_payload_bytes); }
+
+    public int getPcapSamplingMode() { return(mSettings.pcap_sampling.ordinal()); }
+
+    public int getPcapSamplingValue() { return(mSettings.pcap_sampling_value); }
+
     public int getAppFilterUid() { return(app_filter_uid); }
 
     public String getCaptureInterface() { return(mSettings.capture_interface); }
 
+    public String getPcapInputPath() { return(mSettings.pcap_input); }
+
     public int getOwnAppUid() {
         AppDescriptor app = AppsResolver.resolve(getPackageManager(), BuildConfig.APPLICATION_ID, 0);
 
@@ -776,12 +942,27 @@ public class CaptureService extends VpnService implements Runnable {
         return Utils.UID_NO_FILTER;
     }
 
+    private boolean packetStoreEnabled() {
+        // The packets are looked up via the connections, which are not available in headless mode
+        return((mSettings.packet_store_size > 0) && !mSettings.headless);
+    }
+
     // returns 1 if dumpPcapData should be called
     public int pcapDumpEnabled() {
-        return((mSettings.dump_mode != Prefs.DumpMode.NONE) ? 1 : 0);
+        return(((mSettings.dump_mode != Prefs.DumpMode.NONE) || packetStoreEnabled()) ? 1 : 0);
     }
 
-    public String getPcapDumperBpf() { return((mDumper != null) ? mDumper.getBpf() : ""); }
+    /* The BPF to exclude the traffic generated by the dumper and the flow exporter, in root mode */
+    public String getPcapDumperBpf() {
+        String dumper_bpf = (mDumper != null) ? mDumper.getBpf() : "";
+        String exporter_bpf = (mFlowExporter != null) ? mFlowExporter.getBpf() : "";
+
+        if(dumper_bpf.isEmpty())
+            return exporter_bpf;
+        if(exporter_bpf.isEmpty())
+            return dumper_bpf;
+        return dumper_bpf + " and " + exporter_bpf;
+    }
 
     @Override
     public boolean protect(int socket) {
@@ -818,16 +999,52 @@ public class CaptureService extends VpnService implements Runnable {
     public void sendStatsDump(VPNStats stats) {
         //Log.d(TAG, "sendStatsDump");
 
-        Bundle bundle = new Bundle();
-        bundle.putSerializable("value", stats);
-        Intent intent = new Intent(ACTION_STATS_DUMP);
-        intent.putExtras(bundle);
-
         last_bytes = stats.bytes_sent + stats.bytes_rcvd;
         last_connections = stats.tot_conns;
-        mHandler.post(this::updateNotification);
 
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+        // Rate limit the notification updates. A delayed update is scheduled to always show the
+        // most recent stats. In headless mode, the notification is never updated.
+        if(!mSettings.headless && !mNotificationUpdatePending) {
+            long delay = Math.max(0, mLastNotificationUpdate + NOTIFICATION_UPDATE_INTERVAL_MS
+                    - SystemClock.elapsedRealtime());
+
+            mNotificationUpdatePending = true;
+            mHandler.postDelayed(mNotificationUpdater, delay);
+        }
+
+        boolean dispatch;
+
+        synchronized (mStatsListeners) {
+            if(mStatsListeners.isEmpty())
+                return;
+
+            // Only post once, the listeners will receive the most recent stats
+            dispatch = (mPendingStats == null);
+            mPendingStats = stats;
+        }
+
+        if(dispatch)
+            mHandler.post(this::dispatchStats);
+    }
+
+    // Inside the main thread
+    private void dispatchStats() {
+        VPNStats stats;
+        StatsListener[] listeners;
+
+        synchronized (mStatsListeners) {
+            stats = mPendingStats;
+            mPendingStats = null;
+
+            if((stats == null) || mStatsListeners.isEmpty())
+                return;
+
+            // Copy to allow listeners to unregister themselves from the callback
+            listeners = mStatsListeners.toArray(new StatsListener[0]);
+        }
+
+        for(StatsListener listener: listeners)
+            listener.onStatsUpdate(stats);
     }
 
     // also called from native
@@ -848,6 +1065,16 @@ public class CaptureService extends VpnService implements Runnable {
 
     /* Exports a PCAP data chunk */
     public void dumpPcapData(byte[] data) {
+        if(packetStoreEnabled()) {
+            PacketStore store = mPacketStore;
+
+            if(store == null) {
+                store = new PacketStore(mSettings.packet_store_size * 1024L * 1024L, getPcapHeader());
+                mPacketStore = store;
+            }
+            store.addRecords(data);
+        }
+
         if(mDumper != null) {
             try {
                 mDumper.dumpData(data);
@@ -898,7 +1125,9 @@ public class CaptureService extends VpnService implements Runnable {
     private static native void setPrivateDnsBlocked(boolean to_block);
     private static native void setDnsServer(String server);
     private static native void reloadBlacklists();
+    private static native void setHasStatsListeners(boolean has_listeners);
     public static native void askStatsDump();
     public static native byte[] getPcapHeader();
+    public static native void resetPcapngComments();
     public static native int getNumCheckedConnections();
 }
@@ -19,18 +19,15 @@
 
 package com.emanuelef.remote_capture;
 
-import android.content.Context;
-import android.util.Log;
-
 import androidx.annotation.Nullable;
 
+import com.emanuelef.remote_capture.interfaces.BlacklistedConnectionListener;
 import com.emanuelef.remote_capture.interfaces.ConnectionsListener;
 import com.emanuelef.remote_capture.model.AppStats;
 import com.emanuelef.remote_capture.model.ConnectionDescriptor;
 import com.emanuelef.remote_capture.model.ConnectionUpdate;
-import com.emanuelef.remote_capture.model.MatchList;
+import com.emanuelef.remote_capture.model.MatchRules;
 
-import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -39,6 +36,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+/* Holds the most recent connections. This class does not depend on the Android framework, as it's
+ * also built by the JVM benchmark module. */
 public class ConnectionsRegister {
     private static final String TAG = "ConnectionsRegister";
 
@@ -50,19 +49,22 @@ public class ConnectionsRegister {
     private int mNumMalicious;
     private final Map<Integer, AppStats> mAppsStats;
     private final ArrayList<ConnectionsListener> mListeners;
-    private final MatchList mWhitelist;
-    private final Geolocation mGeo;
+    private final MatchRules mWhitelist;
+    private final BlacklistedConnectionListener mBlacklistedListener;
 
-    public ConnectionsRegister(Context ctx, int _size) {
+    /* blacklisted_listener: notified the first time a connection is detected as malicious. If null,
+     * the malicious connections are only counted, e.g. when the register is not backed by a capture. */
+    public ConnectionsRegister(int _size, MatchRules whitelist,
+                               @Nullable BlacklistedConnectionListener blacklisted_listener) {
         mTail = 0;
         mNumItems = 0;
         mUntrackedItems = 0;
         mSize = _size;
-        mGeo = new Geolocation(ctx);
         mItemsRing = new ConnectionDescriptor[mSize];
         mListeners = new ArrayList<>();
         mAppsStats = new HashMap<>(); // uid -> AppStats
-        mWhitelist = PCAPdroid.getInstance().getMalwareWhitelist();
+        mWhitelist = whitelist;
+        mBlacklistedListener = blacklisted_listener;
     }
 
     private int firstPos() {
@@ -75,7 +77,8 @@ public class ConnectionsRegister {
 
     private void processConnectionStatus(ConnectionDescriptor conn) {
         if(!conn.alerted && conn.isBlacklisted()) {
-            CaptureService.requireInstance().notifyBlacklistedConnection(conn);
+            if(mBlacklistedListener != null)
+                mBlacklistedListener.onBlacklistedConnection(conn);
             conn.alerted = true;
             mNumMalicious++;
         }
@@ -136,12 +139,6 @@ public class ConnectionsRegister {
                 mAppsStats.put(uid, stats);
             }
 
-            // Geolocation
-            InetAddress dstAddr = conn.getDstAddr();
-            conn.country = mGeo.getCountryCode(dstAddr);
-            conn.asn = mGeo.getASN(dstAddr);
-            //Log.d(TAG, "IP geolocation: IP=" + conn.dst_ip + " -> country=" + conn.country + ", ASN: " + conn.asn);
-
             conn.updateWhitelist(mWhitelist);
             processConnectionStatus(conn);
 
@@ -167,8 +164,6 @@ public class ConnectionsRegister {
         int []changed_pos = new int[updates.length];
         int k = 0;
 
-        Log.d(TAG, "connectionsUpdates: items=" + mNumItems + ", first_id=" + first_id + ", last_id=" + last_id);
-
         for(ConnectionUpdate update: updates) {
             int id = update.incr_id;
 
@@ -178,10 +173,12 @@ public class ConnectionsRegister {
                 ConnectionDescriptor conn = mItemsRing[pos];
                 assert(conn.incr_id == id);
 
-                // update the app stats
-                long bytes_delta = (update.rcvd_bytes + update.sent_bytes) - (conn.rcvd_bytes + conn.sent_bytes);
-                AppStats stats = mAppsStats.get(conn.uid);
-                stats.bytes += bytes_delta;
+                // update the app stats. The info and geo updates carry no stats.
+                if((update.update_type & ConnectionUpdate.UPDATE_STATS) != 0) {
+                    long bytes_delta = (update.rcvd_bytes + update.sent_bytes) - (conn.rcvd_bytes + conn.sent_bytes);
+                    AppStats stats = mAppsStats.get(conn.uid);
+                    stats.bytes += bytes_delta;
+                }
 
                 //Log.d(TAG, "update " + update.incr_id + " -> " + update.update_type);
                 boolean host_changed = (update.info != null) && (!update.info.equals(conn.info));
@@ -256,14 +253,10 @@ public class ConnectionsRegister {
 
         // Send the first update to sync it
         listener.connectionsChanges(mNumItems);
-
-        Log.d(TAG, "(add) new connections listeners size: " + mListeners.size());
     }
 
     public synchronized void removeListener(ConnectionsListener listener) {
         mListeners.remove(listener);
-
-        Log.d(TAG, "(remove) new connections listeners size: " + mListeners.size());
     }
 
     public int getConnCount() {
@@ -0,0 +1,47 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+
+package com.emanuelef.remote_capture;
+
+/* Utilities which do not depend on the Android framework. Keep it this way, as this class is also
+ * built by the JVM benchmark module. */
+public class CoreUtils {
+    // www.example.org -> example.org
+    public static String cleanDomain(String domain) {
+        if(domain.startsWith("www."))
+            domain = domain.substring(4);
+        return domain;
+    }
+
+    // a.example.org -> example.org
+    public static String getRootDomain(String domain) {
+        int tldPos = domain.lastIndexOf(".");
+
+        if(tldPos <= 0)
+            return domain;
+
+        int rootPos = domain.substring(0, tldPos).lastIndexOf(".");
+
+        if(rootPos <= 0)
+            return domain;
+
+        return domain.substring(rootPos + 1);
+    }
+}
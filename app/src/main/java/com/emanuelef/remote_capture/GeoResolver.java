@@ -0,0 +1,128 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture;
+
+import android.util.Log;
+
+import com.emanuelef.remote_capture.model.ConnectionDescriptor;
+import com.emanuelef.remote_capture.model.ConnectionUpdate;
+import com.emanuelef.remote_capture.model.Geomodel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/* Resolves the country and ASN of the new connections in a background thread, so that the lookups
+ * do not delay the connections updates. The connections are added to the register with an unknown
+ * geolocation, which is then set via a ConnectionUpdate, so that the UI and the filters pick it up
+ * like any other update. The connections are resolved in batches, with one lookup per IP address. */
+public class GeoResolver implements Runnable {
+    private static final String TAG = "GeoResolver";
+    private static final int MAX_BATCH = 256;
+    private static final int MAX_PENDING = 16384;
+    private final Geolocation mGeo;
+    private final ConnectionsRegister mReg;
+    private final LinkedBlockingQueue<ConnectionDescriptor> mPending = new LinkedBlockingQueue<>(MAX_PENDING);
+    private Thread mThread;
+    private long mNumDropped;
+
+    public GeoResolver(Geolocation geo, ConnectionsRegister reg) {
+        mGeo = geo;
+        mReg = reg;
+    }
+
+    public void start() {
+        mThread = new Thread(this, "GeoResolver");
+        mThread.start();
+    }
+
+    public void stop() {
+        mThread.interrupt();
+
+        while(mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Joining the resolver thread failed");
+            }
+        }
+
+        if(mNumDropped > 0)
+            Log.w(TAG, mNumDropped + " connections not resolved, the queue was full");
+    }
+
+    /* Queues the connections for the resolution. Called after they are added to the register. */
+    public void resolve(ConnectionDescriptor[] conns) {
+        for(ConnectionDescriptor conn: conns) {
+            if(!mPending.offer(conn))
+                mNumDropped++;
+        }
+    }
+
+    private void processBatch(ArrayList<ConnectionDescriptor> batch) {
+        ArrayList<ConnectionUpdate> updates = new ArrayList<>();
+        HashMap<String, Geomodel.GeoInfo> resolved = new HashMap<>();
+
+        for(ConnectionDescriptor conn: batch) {
+            Geomodel.GeoInfo geo = resolved.get(conn.dst_ip);
+
+            if(geo == null) {
+                geo = mGeo.lookup(conn.getDstAddr());
+                resolved.put(conn.dst_ip, geo);
+            }
+
+            // the connections are added with an unknown geolocation
+            if(geo != Geomodel.GeoInfo.UNKNOWN) {
+                ConnectionUpdate update = new ConnectionUpdate(conn.incr_id);
+                update.setGeo(geo.country, geo.asn);
+                updates.add(update);
+            }
+        }
+
+        if(!updates.isEmpty()) {
+            synchronized (mReg) {
+                // the register may have been reset in the meanwhile
+                if(mReg.getConnCount() > 0)
+                    mReg.connectionsUpdates(updates.toArray(new ConnectionUpdate[0]));
+            }
+        }
+
+        batch.clear();
+    }
+
+    @Override
+    public void run() {
+        ArrayList<ConnectionDescriptor> batch = new ArrayList<>();
+
+        try {
+            while(true) {
+                batch.add(mPending.take());
+                mPending.drainTo(batch, MAX_BATCH - 1);
+                processBatch(batch);
+            }
+        } catch (InterruptedException ignored) {
+            // stop requested
+        }
+
+        // Resolve the remaining connections, e.g. at the end of a PCAP replay they are kept in the register
+        while(mPending.drainTo(batch, MAX_BATCH) > 0)
+            processBatch(batch);
+    }
+}
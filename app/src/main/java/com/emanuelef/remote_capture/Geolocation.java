@@ -27,25 +27,68 @@ import com.maxmind.db.CHMCache;
 import com.maxmind.db.Metadata;
 import com.maxmind.db.Reader;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
-/* A class to query geolocation info from IP addresses. */
+/* A class to query geolocation info from IP addresses. A single instance is shared by the app, see
+ * PCAPdroid.getGeolocation.
+ * The databases are shipped gzipped into the raw resources. They are decompressed once into
+ * DB_DIR and then memory-mapped, so that they are not loaded into the Java heap on each capture.
+ * The databases are opened on the first lookup, or in advance via warmUp, and can be released via
+ * close, in which case they are opened again on the next lookup. */
 public class Geolocation {
     private static final String TAG = "Geolocation";
+    private static final String DB_DIR = "geoip";
+    private static final int[] DB_RESOURCES = {
+            R.raw.dbip_country_lite_2021_11_mmdb_gz,
+            R.raw.dbip_asn_lite_2021_11_mmdb_gz
+    };
+    private static final int MAX_CACHED_ADDRS = 4096;
     private final Context mContext;
     private Reader mCountryReader;
     private Reader mAsnReader;
 
+    /* The most recent lookups, including the ones with no result. The IPv6 addresses are cached by
+     * their /64 prefix, as the databases do not assign different countries or ASNs within a /64. */
+    private final LinkedHashMap<Long, Geomodel.GeoInfo> mCache;
+    private long mCacheHits;
+    private long mCacheMisses;
+    private long mReservedAddrs;
+
     public Geolocation(Context ctx) {
         mContext = ctx;
-        openDb();
+        mCache = new LinkedHashMap<Long, Geomodel.GeoInfo>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Geomodel.GeoInfo> eldest) {
+                return(size() > MAX_CACHED_ADDRS);
+            }
+        };
+    }
+
+    /* Opens the databases, if not already open. Should be called from a background thread. */
+    public synchronized void warmUp() {
+        if(mCountryReader == null)
+            openDb();
     }
 
-    @Override
-    public void finalize() {
+    public synchronized boolean isOpen() {
+        return(mCountryReader != null);
+    }
+
+    /* Closes the databases and clears the cache */
+    public synchronized void close() {
+        if(mCountryReader == null)
+            return;
+
         try {
             mCountryReader.close();
         } catch (IOException e) {
@@ -56,28 +99,178 @@ public class Geolocation {
         } catch (IOException e) {
             e.printStackTrace();
         }
+
+        mCountryReader = null;
+        mAsnReader = null;
+        mCache.clear();
+        Log.d(TAG, "DBs closed");
     }
 
-    private void openDb() {
+    // dbip_asn_lite_2021_11_mmdb_gz -> dbip_asn_lite_2021_11.mmdb
+    private static String getDbFileName(Context ctx, int res_id) {
+        String name = ctx.getResources().getResourceEntryName(res_id);
+
+        if(name.endsWith("_mmdb_gz"))
+            name = name.substring(0, name.length() - 8);
+        return name + ".mmdb";
+    }
+
+    /* Decompresses the database, unless already done. As the file name contains the database date,
+     * a new database shipped with an app upgrade is decompressed to a new file. */
+    private static synchronized File extractDb(Context ctx, int res_id) throws IOException {
+        File dir = new File(ctx.getFilesDir(), DB_DIR);
+        File db = new File(dir, getDbFileName(ctx, res_id));
+
+        if(db.exists())
+            return db;
+
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create " + dir);
+
+        // Write to a temporary file first, to never leave a partial database on failure
+        File tmp = new File(dir, db.getName() + ".tmp");
+        long start = System.currentTimeMillis();
+
+        try(InputStream is = new GZIPInputStream(ctx.getResources().openRawResource(res_id), 64 * 1024);
+                OutputStream os = new FileOutputStream(tmp)) {
+            byte[] buf = new byte[64 * 1024];
+            int len;
+
+            while((len = is.read(buf)) > 0)
+                os.write(buf, 0, len);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+
+        if(!tmp.renameTo(db)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp);
+        }
+
+        Log.d(TAG, "Extracted " + db.getName() + " in " + (System.currentTimeMillis() - start) + " ms");
+        deleteOldDbs(ctx, dir);
+        return db;
+    }
+
+    // Deletes the databases of the previous app versions, and any leftover temporary file
+    private static void deleteOldDbs(Context ctx, File dir) {
+        File[] files = dir.listFiles();
+        if(files == null)
+            return;
+
+        for(File f: files) {
+            boolean is_current = false;
+
+            for(int res_id: DB_RESOURCES) {
+                if(f.getName().equals(getDbFileName(ctx, res_id))) {
+                    is_current = true;
+                    break;
+                }
+            }
+
+            if(!is_current) {
+                Log.d(TAG, "Deleting old DB " + f.getName());
+                f.delete();
+            }
+        }
+    }
+
+    private Reader openReader(int res_id, CHMCache cache) throws IOException {
         try {
-            CHMCache cache = new CHMCache();
+            // Memory-mapped by default
+            return new Reader(extractDb(mContext, res_id), cache);
+        } catch (IOException e) {
+            // e.g. not enough space, load it into the heap
+            Log.w(TAG, "Could not extract the DB, loading it into memory: " + e.getMessage());
+            return new Reader(new GZIPInputStream(mContext.getResources().openRawResource(res_id)), cache);
+        }
+    }
+
+    /* Opens both the databases, or none of them, so that isOpen implies that both are available */
+    private void openDb() {
+        CHMCache cache = new CHMCache();
+        Reader country_reader = null;
+        Reader asn_reader;
 
-            InputStream is = mContext.getResources().openRawResource(R.raw.dbip_country_lite_2021_11_mmdb_gz);
-            GZIPInputStream gis = new GZIPInputStream(is);
-            mCountryReader = new Reader(gis, cache);
-            Log.d(TAG, "Country DB loaded: " + mCountryReader.getMetadata());
+        try {
+            country_reader = openReader(R.raw.dbip_country_lite_2021_11_mmdb_gz, cache);
+            Log.d(TAG, "Country DB loaded: " + country_reader.getMetadata());
 
-            is = mContext.getResources().openRawResource(R.raw.dbip_asn_lite_2021_11_mmdb_gz);
-            gis = new GZIPInputStream(is);
-            mAsnReader = new Reader(gis, cache);
-            Log.d(TAG, "ASN DB loaded: " + mAsnReader.getMetadata());
+            asn_reader = openReader(R.raw.dbip_asn_lite_2021_11_mmdb_gz, cache);
+            Log.d(TAG, "ASN DB loaded: " + asn_reader.getMetadata());
         } catch (IOException e) {
             e.printStackTrace();
+
+            if(country_reader != null) {
+                try {
+                    country_reader.close();
+                } catch (IOException e2) {
+                    e2.printStackTrace();
+                }
+            }
             throw new IllegalStateException();
         }
+
+        mCountryReader = country_reader;
+        mAsnReader = asn_reader;
+    }
+
+    // True for the addresses which are never found into the databases, e.g. the private ones
+    private static boolean isReservedAddress(InetAddress addr, byte[] raw) {
+        if(addr.isAnyLocalAddress() || addr.isLoopbackAddress() || addr.isLinkLocalAddress() ||
+                addr.isSiteLocalAddress() || addr.isMulticastAddress())
+            return true;
+
+        int b0 = raw[0] & 0xFF;
+
+        if(raw.length == 4)
+            return (b0 == 0) || (b0 >= 240) ||                          // 0.0.0.0/8, 240.0.0.0/4
+                    ((b0 == 100) && ((raw[1] & 0xC0) == 64));           // 100.64.0.0/10 (CGNAT)
+        else
+            return (b0 == 0) || ((b0 & 0xFE) == 0xFC);                  // ::/8, fc00::/7 (ULA)
+    }
+
+    /* Returns the country and ASN of the address */
+    public synchronized Geomodel.GeoInfo lookup(InetAddress addr) {
+        byte[] raw = addr.getAddress();
+
+        if(isReservedAddress(addr, raw)) {
+            mReservedAddrs++;
+            return Geomodel.GeoInfo.UNKNOWN;
+        }
+
+        // IPv4: the address, IPv6: the /64 prefix
+        long key = 0;
+        for(int i = 0; i < ((addr instanceof Inet4Address) ? 4 : 8); i++)
+            key = (key << 8) | (raw[i] & 0xFF);
+
+        Geomodel.GeoInfo info = mCache.get(key);
+        if(info != null) {
+            mCacheHits++;
+            return info;
+        }
+
+        mCacheMisses++;
+        warmUp();
+
+        String country = getCountryCode(addr);
+        Geomodel.ASN asn = getASN(addr);
+        info = (country.isEmpty() && !asn.isKnown()) ? Geomodel.GeoInfo.UNKNOWN : new Geomodel.GeoInfo(country, asn);
+
+        mCache.put(key, info);
+        return info;
+    }
+
+    public synchronized String getStats() {
+        long lookups = mCacheHits + mCacheMisses;
+
+        return String.format(Locale.ROOT, "cache: %d hits, %d misses (%.1f%% hit rate), %d reserved addrs, %d cached",
+                mCacheHits, mCacheMisses, (lookups > 0) ? (mCacheHits * 100.0 / lookups) : 0,
+                mReservedAddrs, mCache.size());
     }
 
-    public String getCountryCode(InetAddress addr) {
+    private String getCountryCode(InetAddress addr) {
         try {
             Geomodel.CountryResult res = mCountryReader.get(addr, Geomodel.CountryResult.class);
             if((res != null) && (res.country != null))
@@ -88,7 +281,7 @@ public class Geolocation {
         return "";
     }
 
-    public Geomodel.ASN getASN(InetAddress addr) {
+    private Geomodel.ASN getASN(InetAddress addr) {
         try {
             Geomodel.ASN res = mAsnReader.get(addr, Geomodel.ASN.class);
             if(res != null)
@@ -96,6 +289,6 @@ public class Geolocation {
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return new Geomodel.ASN();
+        return Geomodel.ASN.UNKNOWN;
     }
 }
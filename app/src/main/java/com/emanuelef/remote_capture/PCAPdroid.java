@@ -21,6 +21,7 @@ package com.emanuelef.remote_capture;
 
 import android.app.Application;
 import android.content.Context;
+import android.content.ComponentCallbacks2;
 import android.content.SharedPreferences;
 
 import androidx.annotation.NonNull;
@@ -49,6 +50,7 @@ public class PCAPdroid extends Application {
     private MatchList mMalwareWhitelist;
     private Blacklists mBlacklists;
     private CtrlPermissions mCtrlPermissions;
+    private Geolocation mGeolocation;
     private Context mLocalizedContext;
     private static WeakReference<PCAPdroid> mInstance;
 
@@ -76,6 +78,20 @@ public class PCAPdroid extends Application {
                 theme = "system";
         }
         Utils.setAppTheme(theme);
+
+        // Open the geolocation DBs in advance, so that the first capture does not wait for them
+        mGeolocation = new Geolocation(this);
+        new Thread(mGeolocation::warmUp, "GeoWarmUp").start();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // Release the geolocation DBs and cache when the app is in the background and not capturing.
+        // They are opened again on the next lookup.
+        if((level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) && !CaptureService.isServiceActive())
+            mGeolocation.close();
     }
 
     public static @NonNull PCAPdroid getInstance() {
@@ -101,6 +117,11 @@ public class PCAPdroid extends Application {
         return mMalwareWhitelist;
     }
 
+    /* Shared by all the captures, it can also be used outside of a capture */
+    public Geolocation getGeolocation() {
+        return mGeolocation;
+    }
+
     public CtrlPermissions getCtrlPermissions() {
         if(mCtrlPermissions == null)
             mCtrlPermissions = new CtrlPermissions(this);
@@ -60,6 +60,7 @@ import android.widget.TableRow;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatDelegate;
 import androidx.appcompat.widget.SearchView;
@@ -67,6 +68,7 @@ import androidx.preference.PreferenceManager;
 
 import com.emanuelef.remote_capture.interfaces.TextAdapter;
 import com.emanuelef.remote_capture.model.AppDescriptor;
+import com.emanuelef.remote_capture.model.ConnectionDescriptor;
 import com.emanuelef.remote_capture.model.Prefs;
 import com.emanuelef.remote_capture.views.AppsListView;
 
@@ -82,16 +84,15 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.URL;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -100,6 +101,7 @@ import javax.net.ssl.HttpsURLConnection;
 public class Utils {
     public static final int UID_UNKNOWN = -1;
     public static final int UID_NO_FILTER = -2;
+    private static final Pattern SAFE_PATH = Pattern.compile("/[A-Za-z0-9_./+,@=-]+");
     private static Boolean rootAvailable = null;
     private static Locale primaryLocale = null;
 
@@ -146,6 +148,19 @@ public class Utils {
         return(new Locale(cur_locale.getCountry(), country_code)).getDisplayCountry();
     }
 
+    public static String getConnStatusLabel(Context ctx, ConnectionDescriptor.Status status) {
+        int resid;
+
+        switch(status) {
+            case STATUS_OPEN: resid = R.string.conn_status_open; break;
+            case STATUS_CLOSED: resid = R.string.conn_status_closed; break;
+            case STATUS_UNREACHABLE: resid = R.string.conn_status_unreachable; break;
+            default: resid = R.string.error;
+        }
+
+        return(ctx.getString(resid));
+    }
+
     public static boolean isRTL(Context ctx) {
         Locale locale = getPrimaryLocale(ctx);
         final int direction = Character.getDirectionality(locale.getDisplayName().charAt(0));
@@ -361,28 +376,6 @@ public class Utils {
         return data;
     }
 
-    // Splits the provided data into individual PCAP records. Intended to be used with data received
-    // via CaptureService::dumpPcapData
-    public static Iterator<Integer> iterPcapRecords(byte[] data) {
-        final ByteBuffer buf = ByteBuffer.wrap(data);
-        buf.order(ByteOrder.nativeOrder());
-
-        return new Iterator<Integer>() {
-            @Override
-            public boolean hasNext() {
-                // 16: sizeof(pcaprec_hdr_s)
-                return(buf.remaining() > 16);
-            }
-
-            @Override
-            public Integer next() {
-                int rec_len = buf.getInt(buf.position() + 8) + 16;
-                buf.position(buf.position() + rec_len);
-                return rec_len;
-            }
-        };
-    }
-
     public static boolean hasVPNRunning(Context context) {
         ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
 
@@ -458,8 +451,23 @@ public class Utils {
         return  "PCAPdroid_" + fmt.format(new Date()) + "." + ext;
     }
 
-    public static String getUniquePcapFileName(Context context) {
-        return(Utils.getUniqueFileName(context, "pcap"));
+    public static String getUniquePcapFileName(Context context, boolean pcapng_format) {
+        return(Utils.getUniqueFileName(context, pcapng_format ? "pcapng" : "pcap"));
+    }
+
+    /* Resolves the path to its canonical form, e.g. /sdcard/x.pcap -> /storage/emulated/0/x.pcap.
+     * Returns null if the path cannot be resolved or if the canonical path contains characters other
+     * than the letters, the digits and "_./+,@=-", which are safe to be passed to the root shell. */
+    public static @Nullable String getSafeCanonicalPath(String path) {
+        String canonical;
+
+        try {
+            canonical = new File(path).getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+
+        return SAFE_PATH.matcher(canonical).matches() ? canonical : null;
     }
 
     public static BitmapDrawable scaleDrawable(Resources res, Drawable drawable, int new_x, int new_y) {
@@ -652,26 +660,33 @@ public class Utils {
         return s;
     }
 
-    // www.example.org -> example.org
-    public static String cleanDomain(String domain) {
-        if(domain.startsWith("www."))
-            domain = domain.substring(4);
-        return domain;
-    }
+    // Formats the data as lines of 16 hex bytes, followed by their ASCII representation
+    public static String hexDump(byte[] data, int offset, int len) {
+        StringBuilder builder = new StringBuilder();
 
-    // a.example.org -> example.org
-    public static String getRootDomain(String domain) {
-        int tldPos = domain.lastIndexOf(".");
+        for(int line = 0; line < len; line += 16) {
+            int line_len = Math.min(16, len - line);
 
-        if(tldPos <= 0)
-            return domain;
+            builder.append(String.format(Locale.ROOT, "%04x  ", line));
 
-        int rootPos = domain.substring(0, tldPos).lastIndexOf(".");
+            for(int i = 0; i < 16; i++) {
+                if(i < line_len)
+                    builder.append(String.format(Locale.ROOT, "%02x ", data[offset + line + i] & 0xFF));
+                else
+                    builder.append("   ");
+            }
+
+            builder.append(' ');
+
+            for(int i = 0; i < line_len; i++) {
+                int c = data[offset + line + i] & 0xFF;
+                builder.append(((c >= 32) && (c < 127)) ? (char) c : '.');
+            }
 
-        if(rootPos <= 0)
-            return domain;
+            builder.append('\n');
+        }
 
-        return domain.substring(rootPos + 1);
+        return builder.toString();
     }
 
     public static String tcpFlagsToStr(int flags) {
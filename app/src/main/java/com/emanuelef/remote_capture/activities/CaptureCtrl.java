@@ -44,17 +44,32 @@ import androidx.appcompat.app.AppCompatActivity;
 import com.emanuelef.remote_capture.AppsResolver;
 import com.emanuelef.remote_capture.CaptureHelper;
 import com.emanuelef.remote_capture.CaptureService;
+import com.emanuelef.remote_capture.ConnectionsRegister;
 import com.emanuelef.remote_capture.PCAPdroid;
 import com.emanuelef.remote_capture.R;
 import com.emanuelef.remote_capture.Utils;
 import com.emanuelef.remote_capture.model.AppDescriptor;
 import com.emanuelef.remote_capture.model.CaptureSettings;
+import com.emanuelef.remote_capture.model.ConnectionDescriptor;
+import com.emanuelef.remote_capture.model.ConnectionFilter;
 import com.emanuelef.remote_capture.model.CtrlPermissions;
+import com.emanuelef.remote_capture.pcap_dump.FlowIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.text.ParseException;
+import java.util.ArrayList;
 
 public class CaptureCtrl extends AppCompatActivity {
     public static final String ACTION_START = "start";
     public static final String ACTION_STOP = "stop";
     public static final String ACTION_STATUS = "get_status";
+    public static final String ACTION_EXTRACT = "extract";
+    public static final String ACTION_QUERY = "query_connections";
     public static final String ACTION_NOTIFY_STATUS = "com.emanuelef.remote_capture.CaptureStatus";
     private static final String TAG = "CaptureCtrl";
     private static AppDescriptor mStarterApp = null; // the app which started the capture, may be unknown
@@ -188,12 +203,23 @@ public class CaptureCtrl extends AppCompatActivity {
         Utils.showToast(this, R.string.ctrl_consent_allowed);
 
         if(action.equals(ACTION_START)) {
+            CaptureSettings settings;
+
+            try {
+                settings = new CaptureSettings(req_intent);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Invalid capture settings: " + e.getMessage());
+                setResult(RESULT_CANCELED, null);
+                finish();
+                return;
+            }
+
             mStarterApp = getCallingApp();
             mReceiverClass = req_intent.getStringExtra("broadcast_receiver");
             Log.d(TAG, "Starting capture, caller=" + mStarterApp);
 
             // will call the mCapHelper listener
-            mCapHelper.startCapture(new CaptureSettings(req_intent));
+            mCapHelper.startCapture(settings);
             return;
         } else if(action.equals(ACTION_STOP)) {
             Log.d(TAG, "Stopping capture");
@@ -204,6 +230,31 @@ public class CaptureCtrl extends AppCompatActivity {
             Log.d(TAG, "Returning status");
 
             res.putExtra("running", CaptureService.isServiceActive());
+        } else if(action.equals(ACTION_EXTRACT)) {
+            // Can take a while on big files
+            new Thread(() -> {
+                int num_packets = extractPackets(this, req_intent);
+
+                runOnUiThread(() -> {
+                    Intent extract_res = new Intent();
+                    extract_res.putExtra("num_packets", num_packets);
+                    setResult((num_packets >= 0) ? RESULT_OK : RESULT_CANCELED, extract_res);
+                    finish();
+                });
+            }, "ExtractPackets").start();
+            return;
+        } else if(action.equals(ACTION_QUERY)) {
+            // The apps resolution can take a while with many connections
+            new Thread(() -> {
+                Intent query_res = new Intent();
+                boolean success = queryConnections(req_intent, query_res);
+
+                runOnUiThread(() -> {
+                    setResult(success ? RESULT_OK : RESULT_CANCELED, query_res);
+                    finish();
+                });
+            }, "QueryConnections").start();
+            return;
         } else {
             Log.e(TAG, "unknown action: " + action);
             abort();
@@ -214,6 +265,167 @@ public class CaptureCtrl extends AppCompatActivity {
         finish();
     }
 
+    // get a long value from the bundle. The value may be represented as a number or as a string.
+    private static long getLongExtra(Intent intent, String key, long def_value) {
+        Bundle bundle = intent.getExtras();
+        Object o = (bundle != null) ? bundle.get(key) : null;
+
+        if(o != null)
+            return Long.parseLong(o.toString());
+        return def_value;
+    }
+
+    /* Extracts the packets of a connection, or of a time range, from a PCAP file with a FlowIndex.
+     * The connection is specified either via the conn_id of the current capture or via its 5-tuple.
+     * Returns the number of extracted packets, -1 on error. */
+    private static int extractPackets(Context ctx, Intent intent) {
+        String pcap_path = intent.getStringExtra("pcap_path");
+        String out_path = intent.getStringExtra("out_path");
+
+        if((pcap_path == null) || (out_path == null)) {
+            Log.e(TAG, "extract: missing pcap_path or out_path");
+            return -1;
+        }
+
+        pcap_path = Utils.getSafeCanonicalPath(pcap_path);
+        out_path = Utils.getSafeCanonicalPath(out_path);
+
+        if((pcap_path == null) || (out_path == null)) {
+            Log.e(TAG, "extract: invalid pcap_path or out_path");
+            return -1;
+        }
+
+        File pcap_file = new File(pcap_path);
+        File idx_file = FlowIndex.getIndexFile(pcap_file);
+
+        if(!isAllowedOutPath(ctx, out_path) || out_path.equals(pcap_path) || out_path.equals(idx_file.getPath())) {
+            Log.e(TAG, "extract: out_path not allowed: " + out_path);
+            return -1;
+        }
+
+        long flow_key = 0;
+        long start_time, end_time;
+
+        try {
+            String src_ip = intent.getStringExtra("src_ip");
+            String dst_ip = intent.getStringExtra("dst_ip");
+            int ipproto = (int) getLongExtra(intent, "ipproto", 0);
+            int src_port = (int) getLongExtra(intent, "src_port", 0);
+            int dst_port = (int) getLongExtra(intent, "dst_port", 0);
+            int conn_id = (int) getLongExtra(intent, "conn_id", -1);
+
+            if(conn_id >= 0) {
+                ConnectionsRegister reg = CaptureService.getConnsRegister();
+                ConnectionDescriptor conn = null;
+
+                if(reg != null) {
+                    synchronized (reg) {
+                        for(int i = 0; i < reg.getConnCount(); i++) {
+                            ConnectionDescriptor item = reg.getConn(i);
+
+                            if((item != null) && (item.incr_id == conn_id)) {
+                                conn = item;
+                                break;
+                            }
+                        }
+                    }
+                }
+
+                if(conn == null) {
+                    Log.e(TAG, "extract: connection " + conn_id + " not found");
+                    return -1;
+                }
+
+                src_ip = conn.src_ip;
+                dst_ip = conn.dst_ip;
+                src_port = conn.src_port;
+                dst_port = conn.dst_port;
+                ipproto = conn.ipproto;
+            }
+
+            if((src_ip != null) && (dst_ip != null))
+                flow_key = FlowIndex.getFlowKey(InetAddress.getByName(src_ip).getAddress(), src_port,
+                        InetAddress.getByName(dst_ip).getAddress(), dst_port, ipproto);
+
+            start_time = getLongExtra(intent, "start_time", 0);
+            end_time = getLongExtra(intent, "end_time", 0);
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "extract: invalid parameters: " + e.getMessage());
+            return -1;
+        }
+
+        try(OutputStream out = new BufferedOutputStream(new FileOutputStream(out_path))) {
+            int num_packets = FlowIndex.extract(pcap_file, idx_file, flow_key, start_time, end_time, out);
+            Log.d(TAG, "Extracted " + num_packets + " packets to " + out_path);
+
+            return num_packets;
+        } catch (IOException e) {
+            Log.e(TAG, "extract failed: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /* The extract action can write to any path writable by PCAPdroid, so the private files of the app
+     * are protected: only its cache directory is allowed. out_path must be canonical. */
+    private static boolean isAllowedOutPath(Context ctx, String out_path) {
+        try {
+            String data_dir = new File(ctx.getApplicationInfo().dataDir).getCanonicalPath() + "/";
+            String cache_dir = ctx.getCacheDir().getCanonicalPath() + "/";
+
+            return !out_path.startsWith(data_dir) || out_path.startsWith(cache_dir);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /* Returns the IDs of the connections of the current capture which match the "filter" expression,
+     * see ConnectionFilter. Returns false on error, with the "error" extra set in the result.
+     * Runs on a worker thread. */
+    private boolean queryConnections(Intent intent, Intent res) {
+        String expr = intent.getStringExtra("filter");
+        ConnectionsRegister reg = CaptureService.getConnsRegister();
+        ConnectionFilter filter;
+
+        if(reg == null) {
+            res.putExtra("error", "no capture is running");
+            return false;
+        }
+
+        try {
+            filter = ConnectionFilter.parse((expr != null) ? expr : "");
+        } catch (ParseException e) {
+            Log.e(TAG, "query: invalid filter: " + e.getMessage());
+            res.putExtra("error", e.getMessage() + " at offset " + e.getErrorOffset());
+            return false;
+        }
+
+        ConnectionDescriptor[] conns;
+
+        // Only copy the connections under the lock, to avoid blocking the capture
+        synchronized (reg) {
+            conns = new ConnectionDescriptor[reg.getConnCount()];
+            for(int i = 0; i < conns.length; i++)
+                conns[i] = reg.getConn(i);
+        }
+
+        AppsResolver resolver = new AppsResolver(this);
+        ArrayList<Integer> matches = new ArrayList<>();
+
+        for(ConnectionDescriptor conn: conns) {
+            if((conn != null) && filter.matches(conn, resolver))
+                matches.add(conn.incr_id);
+        }
+
+        int[] conn_ids = new int[matches.size()];
+        for(int i = 0; i < conn_ids.length; i++)
+            conn_ids[i] = matches.get(i);
+
+        Log.d(TAG, "query: " + conn_ids.length + " connections matched");
+        res.putExtra("num_connections", conn_ids.length);
+        res.putExtra("conn_ids", conn_ids);
+        return true;
+    }
+
     public static void notifyCaptureStopped(Context ctx) {
         if((mStarterApp != null) && (mReceiverClass != null)) {
             Intent intent = new Intent(ACTION_NOTIFY_STATUS);
@@ -19,11 +19,19 @@
 
 package com.emanuelef.remote_capture.activities;
 
+import androidx.activity.result.ActivityResult;
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts.StartActivityForResult;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.appcompat.app.AlertDialog;
 
+import android.app.Activity;
+import android.content.ActivityNotFoundException;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Intent;
+import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
@@ -34,6 +42,8 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.ImageView;
+import android.widget.HorizontalScrollView;
+import android.widget.ScrollView;
 import android.widget.TableLayout;
 import android.widget.TextView;
 
@@ -43,8 +53,17 @@ import com.emanuelef.remote_capture.R;
 import com.emanuelef.remote_capture.Utils;
 import com.emanuelef.remote_capture.interfaces.ConnectionsListener;
 import com.emanuelef.remote_capture.model.ConnectionDescriptor;
+import com.emanuelef.remote_capture.pcap_dump.PacketStore;
 import com.haipq.android.flagkit.FlagImageView;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
 public class ConnectionDetailsActivity extends BaseActivity implements ConnectionsListener {
     private static final String TAG = "ConnectionDetails";
     public static final String CONN_EXTRA_KEY = "conn_descriptor";
@@ -64,6 +83,10 @@ public class ConnectionDetailsActivity extends BaseActivity implements Connectio
     private Handler mHandler;
     private int mConnPos;
     private boolean mListenerSet;
+    private byte[] mExportRecords;
+
+    private final ActivityResultLauncher<Intent> pcapFileLauncher =
+            registerForActivityResult(new StartActivityForResult(), this::pcapFileResult);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -228,7 +251,7 @@ public class ConnectionDetailsActivity extends BaseActivity implements Connectio
             mDurationView.setText(Utils.formatDuration((conn.last_seen - conn.first_seen) / 1000));
             mFirstSeen.setText(Utils.formatEpochMillis(this, conn.first_seen));
             mLastSeen.setText(Utils.formatEpochMillis(this, conn.last_seen));
-            mStatus.setText(conn.getStatusLabel(this));
+            mStatus.setText(Utils.getConnStatusLabel(this, conn.getStatus()));
             mTcpFlags.setText(Utils.tcpFlagsToStr(conn.getRcvdTcpFlags()) + " <- " + Utils.tcpFlagsToStr(conn.getSentTcpFlags()));
             mBlacklistedIp.setVisibility(conn.isBlacklistedIp() ? View.VISIBLE : View.GONE);
             mBlacklistedHost.setVisibility(conn.isBlacklistedHost() ? View.VISIBLE : View.GONE);
@@ -243,6 +266,9 @@ public class ConnectionDetailsActivity extends BaseActivity implements Connectio
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.copy_share_menu, menu);
 
+        if(CaptureService.getPacketStore() != null)
+            inflater.inflate(R.menu.packets_menu, menu);
+
         return super.onCreateOptionsMenu(menu);
     }
 
@@ -277,11 +303,159 @@ public class ConnectionDetailsActivity extends BaseActivity implements Connectio
 
             startActivity(Intent.createChooser(intent, getResources().getString(R.string.share)));
             return true;
+        } else if(id == R.id.show_packets) {
+            showPackets();
+            return true;
+        } else if(id == R.id.export_pcap) {
+            exportPcap();
+            return true;
         }
 
         return super.onOptionsItemSelected(item);
     }
 
+    /* Returns the stored packets of the connection, excluding the ones of a previous connection with
+     * the same 5-tuple, or null if none. */
+    private @Nullable ArrayList<PacketStore.PacketInfo> getPackets(PacketStore store, byte[] records) {
+        if(records == null)
+            return null;
+
+        ArrayList<PacketStore.PacketInfo> packets = store.getPackets(records, (mConn.first_seen - 1000) * 1000, 0);
+        return packets.isEmpty() ? null : packets;
+    }
+
+    private @Nullable byte[] getConnRecords(PacketStore store) {
+        return store.getRecords(PacketStore.getFlowKey(mConn.src_ip, mConn.src_port,
+                mConn.dst_ip, mConn.dst_port, mConn.ipproto));
+    }
+
+    private static @Nullable byte[] getAddressBytes(String ip) {
+        try {
+            // a numeric address, no lookup is performed
+            return InetAddress.getByName(ip).getAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private String getPacketSummary(byte[] records, PacketStore.PacketInfo pkt, long first_ts_usec, byte[] src_addr) {
+        int pos = pkt.pkt_offset;
+        boolean is_v4 = ((records[pos] >> 4) & 0x0F) == 4;
+        int addr_pos = pos + (is_v4 ? 12 : 8);
+        int l4_pos = is_v4 ? (pos + (records[pos] & 0x0F) * 4) : (pos + 40);
+        boolean is_sent = (src_addr != null) && (addr_pos + src_addr.length <= pos + pkt.pkt_len) &&
+                Arrays.equals(Arrays.copyOfRange(records, addr_pos, addr_pos + src_addr.length), src_addr);
+        String flags = "";
+
+        if((mConn.ipproto == 6) && (l4_pos + 14 <= pos + pkt.pkt_len))
+            flags = " " + Utils.tcpFlagsToStr(records[l4_pos + 13] & 0xFF);
+
+        return String.format(Locale.ROOT, "%.3f  %s  %d B%s", (pkt.ts_usec - first_ts_usec) / 1000000.0,
+                is_sent ? "->" : "<-", pkt.orig_len, flags);
+    }
+
+    private void showPackets() {
+        PacketStore store = CaptureService.getPacketStore();
+        byte[] records = (store != null) ? getConnRecords(store) : null;
+        ArrayList<PacketStore.PacketInfo> packets = (store != null) ? getPackets(store, records) : null;
+
+        if(packets == null) {
+            Utils.showToast(this, R.string.no_stored_packets);
+            return;
+        }
+
+        byte[] src_addr = getAddressBytes(mConn.src_ip);
+        long first_ts = packets.get(0).ts_usec;
+        String[] items = new String[packets.size()];
+
+        for(int i = 0; i < packets.size(); i++)
+            items[i] = getPacketSummary(records, packets.get(i), first_ts, src_addr);
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.packets)
+                .setItems(items, (dialog, which) -> showPacketDump(records, packets.get(which), which + 1))
+                .setPositiveButton(R.string.ok, null)
+                .show();
+    }
+
+    private void showPacketDump(byte[] records, PacketStore.PacketInfo pkt, int pkt_num) {
+        TextView text = new TextView(this);
+        text.setTypeface(Typeface.MONOSPACE);
+        text.setTextSize(12);
+        text.setTextIsSelectable(true);
+        text.setPadding(24, 24, 24, 24);
+        text.setText(Utils.hexDump(records, pkt.pkt_offset, pkt.pkt_len));
+
+        HorizontalScrollView hscroll = new HorizontalScrollView(this);
+        hscroll.addView(text);
+        ScrollView scroll = new ScrollView(this);
+        scroll.addView(hscroll);
+
+        new AlertDialog.Builder(this)
+                .setTitle(String.format(getString(R.string.packet_n), pkt_num))
+                .setView(scroll)
+                .setPositiveButton(R.string.ok, null)
+                .show();
+    }
+
+    private void exportPcap() {
+        PacketStore store = CaptureService.getPacketStore();
+        byte[] records = (store != null) ? getConnRecords(store) : null;
+        ArrayList<PacketStore.PacketInfo> packets = (store != null) ? getPackets(store, records) : null;
+
+        if(packets == null) {
+            Utils.showToast(this, R.string.no_stored_packets);
+            return;
+        }
+
+        // The PCAP to export, as the packets may be evicted from the store in the meanwhile
+        byte[] header = store.getPcapHeader();
+        int len = header.length;
+
+        for(PacketStore.PacketInfo pkt: packets)
+            len += pkt.rec_len;
+
+        mExportRecords = new byte[len];
+        System.arraycopy(header, 0, mExportRecords, 0, header.length);
+        len = header.length;
+
+        for(PacketStore.PacketInfo pkt: packets) {
+            System.arraycopy(records, pkt.rec_offset, mExportRecords, len, pkt.rec_len);
+            len += pkt.rec_len;
+        }
+
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("*/*");
+        intent.putExtra(Intent.EXTRA_TITLE, Utils.getUniquePcapFileName(this, store.isPcapngFormat()));
+
+        try {
+            pcapFileLauncher.launch(intent);
+        } catch (ActivityNotFoundException e) {
+            Utils.showToastLong(this, R.string.no_activity_file_selection);
+            mExportRecords = null;
+        }
+    }
+
+    private void pcapFileResult(final ActivityResult result) {
+        byte[] data = mExportRecords;
+        mExportRecords = null;
+
+        if((result.getResultCode() != Activity.RESULT_OK) || (result.getData() == null) || (data == null))
+            return;
+
+        Uri uri = result.getData().getData();
+
+        try(OutputStream stream = getContentResolver().openOutputStream(uri)) {
+            if(stream != null)
+                stream.write(data);
+            Utils.showToast(this, R.string.file_saved);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Utils.showToast(this, R.string.cannot_write_file);
+        }
+    }
+
     @Override
     public void connectionsChanges(int num_connetions) {}
 
@@ -24,6 +24,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.CheckBox;
+import android.widget.EditText;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.ActionBar;
@@ -32,12 +33,15 @@ import androidx.preference.PreferenceManager;
 import com.emanuelef.remote_capture.PCAPdroid;
 import com.emanuelef.remote_capture.R;
 import com.emanuelef.remote_capture.model.ConnectionDescriptor.Status;
+import com.emanuelef.remote_capture.model.ConnectionFilter;
 import com.emanuelef.remote_capture.model.FilterDescriptor;
 import com.emanuelef.remote_capture.model.ListInfo;
 import com.emanuelef.remote_capture.model.MatchList;
 import com.emanuelef.remote_capture.model.Prefs;
 import com.google.android.material.chip.Chip;
 
+import java.text.ParseException;
+
 public class EditFilterActivity extends BaseActivity {
     public static final String FILTER_DESCRIPTOR = "filter";
     private static final String TAG = "FilterEditActivity";
@@ -49,6 +53,7 @@ public class EditFilterActivity extends BaseActivity {
     private Chip mStatusClosed;
     private Chip mStatusUnreachable;
     private Chip mStatusError;
+    private EditText mExpression;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -78,6 +83,7 @@ public class EditFilterActivity extends BaseActivity {
         mStatusClosed = findViewById(R.id.status_closed);
         mStatusUnreachable = findViewById(R.id.status_unreachable);
         mStatusError = findViewById(R.id.status_error);
+        mExpression = findViewById(R.id.filter_expression);
 
         findViewById(R.id.edit_mask).setOnClickListener(v -> {
             Intent editIntent = new Intent(this, EditListActivity.class);
@@ -118,6 +124,8 @@ public class EditFilterActivity extends BaseActivity {
         }
         if(selected_status != null)
             selected_status.setChecked(true);
+
+        mExpression.setText(mFilter.expression);
     }
 
     private void view2model() {
@@ -135,9 +143,31 @@ public class EditFilterActivity extends BaseActivity {
             mFilter.status = Status.STATUS_ERROR;
         else
             mFilter.status = Status.STATUS_INVALID;
+
+        mFilter.expression = mExpression.getText().toString().trim();
+    }
+
+    private boolean validateExpression() {
+        String expr = mExpression.getText().toString();
+
+        if(expr.trim().isEmpty())
+            return true;
+
+        try {
+            ConnectionFilter.parse(expr);
+            return true;
+        } catch (ParseException e) {
+            mExpression.setError(getString(R.string.invalid_filter_expression, e.getMessage()));
+            mExpression.setSelection(Math.min(e.getErrorOffset(), mExpression.length()));
+            mExpression.requestFocus();
+            return false;
+        }
     }
 
     private void finishOk() {
+        if(!validateExpression())
+            return;
+
         view2model();
         Intent intent = new Intent();
         intent.putExtra(FILTER_DESCRIPTOR, mFilter);
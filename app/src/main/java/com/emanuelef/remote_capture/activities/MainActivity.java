@@ -524,7 +524,7 @@ public class MainActivity extends BaseActivity implements NavigationView.OnNavig
 
     public void openFileSelector() {
         boolean noFileDialog = false;
-        String fname = Utils.getUniquePcapFileName(this);
+        String fname = Utils.getUniquePcapFileName(this, Prefs.isPcapngEnabled(mPrefs));
         Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
         intent.addCategory(Intent.CATEGORY_OPENABLE);
         intent.setType("*/*");
@@ -20,12 +20,8 @@
 package com.emanuelef.remote_capture.activities;
 
 import androidx.annotation.NonNull;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.view.Menu;
@@ -38,10 +34,10 @@ import android.widget.TextView;
 import com.emanuelef.remote_capture.CaptureService;
 import com.emanuelef.remote_capture.R;
 import com.emanuelef.remote_capture.Utils;
+import com.emanuelef.remote_capture.interfaces.StatsListener;
 import com.emanuelef.remote_capture.model.VPNStats;
 
-public class StatsActivity extends BaseActivity {
-    private BroadcastReceiver mReceiver;
+public class StatsActivity extends BaseActivity implements StatsListener {
     private TextView mBytesSent;
     private TextView mBytesRcvd;
     private TextView mPacketsSent;
@@ -88,17 +84,8 @@ public class StatsActivity extends BaseActivity {
         } else
             findViewById(R.id.row_pkts_dropped).setVisibility(View.GONE);
 
-        mReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                updateVPNStats(intent);
-            }
-        };
-
         /* Register for updates */
-        LocalBroadcastManager.getInstance(this)
-                .registerReceiver(mReceiver, new IntentFilter(CaptureService.ACTION_STATS_DUMP));
-
+        CaptureService.addStatsListener(this);
         CaptureService.askStatsDump();
     }
 
@@ -106,14 +93,11 @@ public class StatsActivity extends BaseActivity {
     protected void onDestroy() {
         super.onDestroy();
 
-        if(mReceiver != null)
-            LocalBroadcastManager.getInstance(this)
-                    .unregisterReceiver(mReceiver);
+        CaptureService.removeStatsListener(this);
     }
 
-    private void updateVPNStats(Intent intent) {
-        VPNStats stats = (VPNStats) intent.getSerializableExtra("value");
-
+    @Override
+    public void onStatsUpdate(VPNStats stats) {
         mBytesSent.setText(Utils.formatBytes(stats.bytes_sent));
         mBytesRcvd.setText(Utils.formatBytes(stats.bytes_rcvd));
         mPacketsSent.setText(Utils.formatIntShort(stats.pkts_sent));
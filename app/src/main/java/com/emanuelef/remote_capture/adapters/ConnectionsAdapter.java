@@ -38,6 +38,7 @@ import com.emanuelef.remote_capture.model.AppDescriptor;
 import com.emanuelef.remote_capture.CaptureService;
 import com.emanuelef.remote_capture.AppsResolver;
 import com.emanuelef.remote_capture.model.ConnectionDescriptor;
+import com.emanuelef.remote_capture.model.ConnectionFilter;
 import com.emanuelef.remote_capture.ConnectionsRegister;
 import com.emanuelef.remote_capture.R;
 import com.emanuelef.remote_capture.Utils;
@@ -68,7 +69,7 @@ public class ConnectionsAdapter extends RecyclerView.Adapter<ConnectionsAdapter.
     private final HashMap<Integer, Integer> mIdToFilteredPos;
 
     private ArrayList<ConnectionDescriptor> mFilteredConn;
-    private String mSearch;
+    private ConnectionFilter mSearch;
     public final MatchList mMask;
     public FilterDescriptor mFilter = new FilterDescriptor();
 
@@ -129,7 +130,7 @@ public class ConnectionsAdapter extends RecyclerView.Adapter<ConnectionsAdapter.
             appName.setText(info_txt);
             traffic.setText(Utils.formatBytes(conn.sent_bytes + conn.rcvd_bytes));
             lastSeen.setText(Utils.formatEpochShort(context, conn.last_seen / 1000));
-            statusInd.setText(conn.getStatusLabel(context));
+            statusInd.setText(Utils.getConnStatusLabel(context, conn.getStatus()));
 
             int color;
             if(conn.status < ConnectionDescriptor.CONN_STATUS_CLOSED)
@@ -215,8 +216,8 @@ public class ConnectionsAdapter extends RecyclerView.Adapter<ConnectionsAdapter.
 
     private boolean matches(ConnectionDescriptor conn) {
         return((conn != null)
-                && mFilter.matches(conn)
-                && ((mSearch == null) || conn.matches(mApps, mSearch)));
+                && mFilter.matches(conn, mMask, mApps)
+                && ((mSearch == null) || mSearch.matches(conn, mApps)));
     }
 
     private int getFilteredItemPos(int incrId) {
@@ -390,8 +391,9 @@ public class ConnectionsAdapter extends RecyclerView.Adapter<ConnectionsAdapter.
         return reg.getConn(pos);
     }
 
+    /* The text can also be a ConnectionFilter expression, e.g. "app:chrome and dport:443" */
     public void setSearch(String text) {
-        mSearch = text;
+        mSearch = (text != null) ? ConnectionFilter.parseOrSearch(text) : null;
         refreshFilteredConnections();
     }
 
@@ -404,7 +406,7 @@ public class ConnectionsAdapter extends RecyclerView.Adapter<ConnectionsAdapter.
     }
 
     public boolean hasFilter() {
-        return (mSearch != null) || mFilter.isSet();
+        return (mSearch != null) || mFilter.isSet(mMask);
     }
 
     public synchronized String dumpConnectionsCsv() {
@@ -430,7 +432,7 @@ public class ConnectionsAdapter extends RecyclerView.Adapter<ConnectionsAdapter.
                 builder.append(conn.uid);                                   builder.append(",");
                 builder.append((app != null) ? app.getName() : "");         builder.append(",");
                 builder.append(conn.l7proto);                               builder.append(",");
-                builder.append(conn.getStatusLabel(mContext));              builder.append(",");
+                builder.append(Utils.getConnStatusLabel(mContext, conn.getStatus()));              builder.append(",");
                 builder.append((conn.info != null) ? conn.info : "");       builder.append(",");
                 builder.append(conn.sent_bytes);                            builder.append(",");
                 builder.append(conn.rcvd_bytes);                            builder.append(",");
@@ -55,6 +55,7 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.emanuelef.remote_capture.AppsResolver;
 import com.emanuelef.remote_capture.CaptureService;
 import com.emanuelef.remote_capture.ConnectionsRegister;
+import com.emanuelef.remote_capture.CoreUtils;
 import com.emanuelef.remote_capture.PCAPdroid;
 import com.emanuelef.remote_capture.R;
 import com.emanuelef.remote_capture.Utils;
@@ -67,10 +68,11 @@ import com.emanuelef.remote_capture.activities.ConnectionDetailsActivity;
 import com.emanuelef.remote_capture.adapters.ConnectionsAdapter;
 import com.emanuelef.remote_capture.model.FilterDescriptor;
 import com.emanuelef.remote_capture.model.MatchList;
-import com.emanuelef.remote_capture.model.MatchList.RuleType;
+import com.emanuelef.remote_capture.model.MatchRules.RuleType;
 import com.emanuelef.remote_capture.views.EmptyRecyclerView;
 import com.emanuelef.remote_capture.interfaces.ConnectionsListener;
 import com.emanuelef.remote_capture.activities.EditFilterActivity;
+import com.google.android.material.chip.Chip;
 import com.google.android.material.chip.ChipGroup;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
@@ -180,7 +182,7 @@ public class ConnectionsFragment extends Fragment implements ConnectionsListener
         mActiveFilter = view.findViewById(R.id.active_filter);
         mActiveFilter.setOnCheckedChangeListener((group, checkedId) -> {
             if(mAdapter != null) {
-                mAdapter.mFilter.clear(checkedId);
+                clearFilter(mAdapter.mFilter, checkedId);
                 refreshFilteredConnections();
             }
         });
@@ -351,8 +353,8 @@ public class ConnectionsFragment extends Fragment implements ConnectionsListener
             item.setTitle(label);
             item.setVisible(true);
 
-            String dm_clean = Utils.cleanDomain(conn.info);
-            String rootDomain = Utils.getRootDomain(dm_clean);
+            String dm_clean = CoreUtils.cleanDomain(conn.info);
+            String rootDomain = CoreUtils.getRootDomain(dm_clean);
 
             if(!rootDomain.equals(dm_clean)) {
                 item = menu.findItem(R.id.hide_root_domain);
@@ -425,7 +427,7 @@ public class ConnectionsFragment extends Fragment implements ConnectionsListener
             mAdapter.mMask.addProto(conn.l7proto);
             mask_changed = true;
         } else if(id == R.id.hide_root_domain) {
-            mAdapter.mMask.addRootDomain(Utils.getRootDomain(conn.info));
+            mAdapter.mMask.addRootDomain(CoreUtils.getRootDomain(conn.info));
             mask_changed = true;
         } else if(id == R.id.hide_country) {
             mAdapter.mMask.addCountry(conn.country);
@@ -536,12 +538,47 @@ public class ConnectionsFragment extends Fragment implements ConnectionsListener
         mOldConnectionsText.setVisibility(View.GONE);
     }
 
+    private void addFilterChip(LayoutInflater inflater, int id, String text) {
+        Chip chip = (Chip) inflater.inflate(R.layout.active_filter_chip, mActiveFilter, false);
+        chip.setId(id);
+        chip.setText(text.toLowerCase());
+        mActiveFilter.addView(chip);
+    }
+
     private void refreshActiveFilter() {
         if(mAdapter == null)
             return;
 
+        FilterDescriptor filter = mAdapter.mFilter;
+        LayoutInflater inflater = getLayoutInflater();
+        Context ctx = inflater.getContext();
         mActiveFilter.removeAllViews();
-        mAdapter.mFilter.toChips(getLayoutInflater(), mActiveFilter);
+
+        if(!filter.showMasked)
+            addFilterChip(inflater, R.id.not_hidden, ctx.getString(R.string.not_hidden_filter));
+        if(filter.onlyBlacklisted)
+            addFilterChip(inflater, R.id.blacklisted, ctx.getString(R.string.malicious_connection_filter));
+        if(filter.onlyPlaintext)
+            addFilterChip(inflater, R.id.only_plaintext, ctx.getString(R.string.plaintext));
+        if(filter.status != ConnectionDescriptor.Status.STATUS_INVALID) {
+            String label = String.format(ctx.getString(R.string.status_filter), Utils.getConnStatusLabel(ctx, filter.status));
+            addFilterChip(inflater, R.id.status_ind, label);
+        }
+        if(filter.getCompiledExpression() != null)
+            addFilterChip(inflater, R.id.expression_filter_chip, filter.expression);
+    }
+
+    private static void clearFilter(FilterDescriptor filter, int filter_id) {
+        if(filter_id == R.id.not_hidden)
+            filter.showMasked = true;
+        else if(filter_id == R.id.blacklisted)
+            filter.onlyBlacklisted = false;
+        else if(filter_id == R.id.only_plaintext)
+            filter.onlyPlaintext = false;
+        else if(filter_id == R.id.status_ind)
+            filter.status = ConnectionDescriptor.Status.STATUS_INVALID;
+        else if(filter_id == R.id.expression_filter_chip)
+            filter.expression = "";
     }
 
     // This performs an unoptimized adapter refresh
@@ -21,10 +21,8 @@ package com.emanuelef.remote_capture.fragments;
 
 import android.annotation.SuppressLint;
 import android.app.Dialog;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
@@ -47,7 +45,6 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.SwitchCompat;
 import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.preference.PreferenceManager;
 
 import com.emanuelef.remote_capture.AppsLoader;
@@ -62,14 +59,16 @@ import com.emanuelef.remote_capture.Utils;
 import com.emanuelef.remote_capture.activities.MainActivity;
 import com.emanuelef.remote_capture.activities.StatsActivity;
 import com.emanuelef.remote_capture.interfaces.AppStateListener;
+import com.emanuelef.remote_capture.interfaces.StatsListener;
 import com.emanuelef.remote_capture.model.Prefs;
 import com.emanuelef.remote_capture.model.VPNStats;
+import com.emanuelef.remote_capture.pcap_dump.HTTPServer;
 import com.emanuelef.remote_capture.views.AppsListView;
 
 import java.util.ArrayList;
 import java.util.List;
 
-public class StatusFragment extends Fragment implements AppStateListener, AppsLoadListener {
+public class StatusFragment extends Fragment implements AppStateListener, AppsLoadListener, StatsListener {
     private static final String TAG = "StatusFragment";
     private Menu mMenu;
     private MenuItem mMenuItemStartBtn;
@@ -80,7 +79,6 @@ public class StatusFragment extends Fragment implements AppStateListener, AppsLo
     private View mQuickSettings;
     private MainActivity mActivity;
     private SharedPreferences mPrefs;
-    private BroadcastReceiver mReceiver;
     private TextView mFilterDescription;
     private SwitchCompat mAppFilterSwitch;
     private String mAppFilter;
@@ -112,26 +110,14 @@ public class StatusFragment extends Fragment implements AppStateListener, AppsLo
         recheckFilterWarning();
 
         /* Register for stats update */
-        mReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                processStatsUpdateIntent(intent);
-            }
-        };
-
-        LocalBroadcastManager.getInstance(requireContext())
-                .registerReceiver(mReceiver, new IntentFilter(CaptureService.ACTION_STATS_DUMP));
+        CaptureService.addStatsListener(this);
     }
 
     @Override
     public void onPause() {
         super.onPause();
 
-        if(mReceiver != null) {
-            LocalBroadcastManager.getInstance(requireContext())
-                    .unregisterReceiver(mReceiver);
-            mReceiver = null;
-        }
+        CaptureService.removeStatsListener(this);
     }
 
     @Override
@@ -281,13 +267,16 @@ public class StatusFragment extends Fragment implements AppStateListener, AppsLo
         recheckFilterWarning();
     }
 
-    private void processStatsUpdateIntent(Intent intent) {
-        VPNStats stats = (VPNStats) intent.getSerializableExtra("value");
-
+    @Override
+    public void onStatsUpdate(VPNStats stats) {
         Log.d("MainReceiver", "Got StatsUpdate: bytes_sent=" + stats.pkts_sent + ", bytes_rcvd=" +
                 stats.bytes_rcvd + ", pkts_sent=" + stats.pkts_sent + ", pkts_rcvd=" + stats.pkts_rcvd);
 
         mCaptureStatus.setText(Utils.formatBytes(stats.bytes_sent + stats.bytes_rcvd));
+
+        // Refresh the HTTP clients lag
+        if(CaptureService.getDumpMode() == Prefs.DumpMode.HTTP_SERVER)
+            refreshPcapDumpInfo();
     }
 
 private void refreshPcapDumpInfo() {
@@ -302,6 +291,14 @@ private void refreshPcapDumpInfo() {
         case HTTP_SERVER:
             info = String.format(getResources().getString(R.string.http_server_status),
                     Utils.getLocalIPAddress(mActivity), CaptureService.getHTTPServerPort());
+
+            List<HTTPServer.ClientLag> clients = CaptureService.getHTTPClientsLag();
+
+            if(clients != null) {
+                for(HTTPServer.ClientLag client: clients)
+                    info += "\n" + String.format(getResources().getString(R.string.http_client_lag),
+                            client.address, Utils.formatBytes(client.lag_bytes), Utils.formatBytes(client.dropped_bytes));
+            }
             break;
         case PCAP_FILE:
             info = getString(R.string.pcap_file_info);
@@ -317,6 +314,10 @@ private void refreshPcapDumpInfo() {
             info = String.format(getResources().getString(R.string.collector_info),
                     CaptureService.getCollectorAddress(), CaptureService.getCollectorPort());
             break;
+        case TCP_EXPORTER:
+            info = String.format(getResources().getString(R.string.tcp_collector_info),
+                    CaptureService.getCollectorAddress(), CaptureService.getCollectorPort());
+            break;
         }
 
         mCollectorInfo.setText(info);
@@ -4,6 +4,11 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 
+import com.emanuelef.remote_capture.Utils;
+import com.emanuelef.remote_capture.pcap_dump.ChunkedInputStream;
+import com.emanuelef.remote_capture.pcap_dump.CompressedOutputStream;
+import com.emanuelef.remote_capture.pcap_dump.IPFIXExporter;
+
 import java.io.Serializable;
 
 public class CaptureSettings implements Serializable {
@@ -18,8 +23,28 @@ public class CaptureSettings implements Serializable {
     public final boolean ipv6_enabled;
     public final boolean root_capture;
     public final boolean pcapdroid_trailer;
+    public final boolean pcapng_format;
     public final String capture_interface;
     public final String pcap_uri;
+    public final boolean headless;
+    public final String pcap_input;
+    public final int pcap_rotate_size;      // MB, 0 to disable
+    public final int pcap_rotate_interval;  // seconds, 0 to disable
+    public final int pcap_max_files;        // 0 for unlimited
+    public final CompressedOutputStream.Codec pcap_compression;
+    public final int pcap_compression_level; // -1 for the codec default
+    public final int udp_batch_mtu;         // 0 to disable the UDP batching
+    public final int http_client_buffer;    // MB
+    public final ChunkedInputStream.SlowClientPolicy http_slow_client_policy;
+    public final int pcap_snaplen;
+    public final int pcap_payload_bytes;    // -1 to disable the headers only mode
+    public final Prefs.PcapSampling pcap_sampling;
+    public final int pcap_sampling_value;
+    public final boolean pcap_index;
+    public final int packet_store_size;     // MB, 0 to disable
+    public final String ipfix_collector_address; // empty to disable the IPFIX export
+    public final int ipfix_collector_port;
+    public final int ipfix_active_timeout;  // seconds, 0 to disable
 
     public CaptureSettings(SharedPreferences prefs) {
         dump_mode = Prefs.getDumpMode(prefs);
@@ -33,8 +58,28 @@ public class CaptureSettings implements Serializable {
         ipv6_enabled = Prefs.getIPv6Enabled(prefs);
         root_capture = Prefs.isRootCaptureEnabled(prefs);
         pcapdroid_trailer = Prefs.isPcapdroidTrailerEnabled(prefs);
+        pcapng_format = Prefs.isPcapngEnabled(prefs);
         capture_interface = Prefs.getCaptureInterface(prefs);
         pcap_uri = Prefs.getPCAPUri(prefs);
+        headless = Prefs.isHeadlessModeEnabled(prefs);
+        pcap_input = "";
+        pcap_rotate_size = 0;
+        pcap_rotate_interval = 0;
+        pcap_max_files = 0;
+        pcap_compression = CompressedOutputStream.Codec.NONE;
+        pcap_compression_level = -1;
+        udp_batch_mtu = 0;
+        http_client_buffer = 8;
+        http_slow_client_policy = ChunkedInputStream.SlowClientPolicy.DROP_OLDEST;
+        pcap_snaplen = 65535;
+        pcap_payload_bytes = -1;
+        pcap_sampling = Prefs.PcapSampling.NONE;
+        pcap_sampling_value = 0;
+        pcap_index = false;
+        packet_store_size = Prefs.isPacketStoreEnabled(prefs) ? 16 : 0;
+        ipfix_collector_address = "";
+        ipfix_collector_port = IPFIXExporter.DEFAULT_PORT;
+        ipfix_active_timeout = 60;
     }
 
     public CaptureSettings(Intent intent) {
@@ -47,10 +92,49 @@ public class CaptureSettings implements Serializable {
         socks5_proxy_address = getString(intent, Prefs.PREF_SOCKS5_PROXY_IP_KEY, "0.0.0.0");
         socks5_proxy_port = getInt(intent, Prefs.PREF_SOCKS5_PROXY_PORT_KEY, 8080);
         ipv6_enabled = getBool(intent, Prefs.PREF_IPV6_ENABLED, false);
-        root_capture = getBool(intent, Prefs.PREF_ROOT_CAPTURE, false);
+        pcap_input = checkPcapInput(getString(intent, Prefs.PREF_PCAP_INPUT, ""));
+
+        // The PCAP file is replayed via pcapd, so it always requires the root capture
+        root_capture = getBool(intent, Prefs.PREF_ROOT_CAPTURE, false) || !pcap_input.isEmpty();
         pcapdroid_trailer = getBool(intent, Prefs.PREF_PCAPDROID_TRAILER, false);
+        pcapng_format = getBool(intent, Prefs.PREF_PCAPNG_ENABLED, false);
         capture_interface = getString(intent, Prefs.PREF_CAPTURE_INTERFACE, "@inet");
         pcap_uri = getString(intent, Prefs.PREF_PCAP_URI, "");
+        headless = getBool(intent, Prefs.PREF_HEADLESS_MODE, false);
+        pcap_rotate_size = getInt(intent, Prefs.PREF_PCAP_ROTATE_SIZE, 0);
+        pcap_rotate_interval = getInt(intent, Prefs.PREF_PCAP_ROTATE_INTERVAL, 0);
+        pcap_max_files = getInt(intent, Prefs.PREF_PCAP_MAX_FILES, 0);
+        pcap_compression = CompressedOutputStream.parseCodec(getString(intent, Prefs.PREF_PCAP_COMPRESSION, "none"));
+        pcap_compression_level = CompressedOutputStream.clampLevel(pcap_compression,
+                getInt(intent, Prefs.PREF_PCAP_COMPRESSION_LEVEL, -1));
+        udp_batch_mtu = getInt(intent, Prefs.PREF_UDP_BATCH_MTU, 0);
+        http_client_buffer = Math.max(getInt(intent, Prefs.PREF_HTTP_CLIENT_BUFFER, 8), 1);
+        http_slow_client_policy = ChunkedInputStream.parsePolicy(
+                getString(intent, Prefs.PREF_HTTP_SLOW_CLIENT_POLICY, "drop_oldest"));
+        pcap_snaplen = getInt(intent, Prefs.PREF_PCAP_SNAPLEN, 65535);
+        pcap_payload_bytes = getInt(intent, Prefs.PREF_PCAP_PAYLOAD_BYTES, -1);
+        pcap_sampling = Prefs.getPcapSampling(getString(intent, Prefs.PREF_PCAP_SAMPLING, "none"));
+        pcap_sampling_value = getInt(intent, Prefs.PREF_PCAP_SAMPLING_VALUE, 0);
+        pcap_index = getBool(intent, Prefs.PREF_PCAP_INDEX, false);
+        packet_store_size = Math.min(getInt(intent, Prefs.PREF_PACKET_STORE_SIZE, 0), 1024);
+        ipfix_collector_address = getString(intent, Prefs.PREF_IPFIX_COLLECTOR_IP, "");
+        ipfix_collector_port = getInt(intent, Prefs.PREF_IPFIX_COLLECTOR_PORT, IPFIXExporter.DEFAULT_PORT);
+        ipfix_active_timeout = Math.max(getInt(intent, Prefs.PREF_IPFIX_ACTIVE_TIMEOUT, 60), 0);
+    }
+
+    /* The PCAP input path is passed to pcapd via the root shell, so it is resolved to its canonical
+     * path, which must only contain safe characters, see Utils.getSafeCanonicalPath. The file is
+     * read by pcapd as root, so its existence is not checked here, as the app may not be able to
+     * see it. Throws an IllegalArgumentException if the path is invalid. */
+    private static String checkPcapInput(String path) {
+        if(path.isEmpty())
+            return path;
+
+        String canonical = Utils.getSafeCanonicalPath(path);
+        if(canonical == null)
+            throw new IllegalArgumentException("invalid pcap_input path: " + path);
+
+        return canonical;
     }
 
     private static String getString(Intent intent, String key, String def_value) {
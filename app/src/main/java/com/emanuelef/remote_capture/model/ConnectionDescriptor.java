@@ -19,13 +19,8 @@
 
 package com.emanuelef.remote_capture.model;
 
-import android.content.Context;
-
 import androidx.annotation.NonNull;
 
-import com.emanuelef.remote_capture.AppsResolver;
-import com.emanuelef.remote_capture.R;
-
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -98,7 +93,7 @@ public class ConnectionDescriptor implements Serializable {
         uid = _uid;
         first_seen = last_seen = when;
         country = "";
-        asn = new Geomodel.ASN();
+        asn = Geomodel.ASN.UNKNOWN;
     }
 
     public void processUpdate(ConnectionUpdate update) {
@@ -109,8 +104,8 @@ public class ConnectionDescriptor implements Serializable {
             sent_pkts = update.sent_pkts;
             rcvd_pkts = update.rcvd_pkts;
             status = (update.status & 0x00FF);
-            blacklisted_ip = (update.status & 0x0100) != 0;
-            blacklisted_host = (update.status & 0x0200) != 0;
+            blacklisted_ip = (update.status & ConnectionUpdate.STATUS_BLACKLISTED_IP) != 0;
+            blacklisted_host = (update.status & ConnectionUpdate.STATUS_BLACKLISTED_HOST) != 0;
             last_seen = update.last_seen;
             tcp_flags = update.tcp_flags;
         }
@@ -120,6 +115,10 @@ public class ConnectionDescriptor implements Serializable {
             request_plaintext = update.request_plaintext;
             l7proto = update.l7proto;
         }
+        if((update.update_type & ConnectionUpdate.UPDATE_GEO) != 0) {
+            country = update.country;
+            asn = update.asn;
+        }
     }
 
     public InetAddress getDstAddr() {
@@ -146,38 +145,6 @@ public class ConnectionDescriptor implements Serializable {
         return Status.STATUS_OPEN;
     }
 
-    public static String getStatusLabel(Status status, Context ctx) {
-        int resid;
-
-        switch(status) {
-            case STATUS_OPEN: resid = R.string.conn_status_open; break;
-            case STATUS_CLOSED: resid = R.string.conn_status_closed; break;
-            case STATUS_UNREACHABLE: resid = R.string.conn_status_unreachable; break;
-            default: resid = R.string.error;
-        }
-
-        return(ctx.getString(resid));
-    }
-
-    public String getStatusLabel(Context ctx) {
-        return getStatusLabel(getStatus(), ctx);
-    }
-
-    public boolean matches(AppsResolver res, String filter) {
-        filter = filter.toLowerCase();
-        AppDescriptor app = res.get(uid, 0);
-
-        return(((info != null) && (info.contains(filter))) ||
-                dst_ip.contains(filter) ||
-                l7proto.toLowerCase().contains(filter) ||
-                Integer.toString(uid).equals(filter) ||
-                Integer.toString(dst_port).contains(filter) ||
-                Integer.toString(src_port).equals(filter) ||
-                ((app != null) && (app.getName().toLowerCase().contains(filter) ||
-                        app.getPackageName().equals(filter)))
-        );
-    }
-
     public int getSentTcpFlags() {
         return (tcp_flags >> 8);
     }
@@ -192,7 +159,7 @@ public class ConnectionDescriptor implements Serializable {
         return isBlacklistedIp() || isBlacklistedHost();
     }
 
-    public void updateWhitelist(MatchList whitelist) {
+    public void updateWhitelist(MatchRules whitelist) {
         whitelisted_app = whitelist.matchesApp(uid);
         whitelisted_ip = whitelist.matchesIP(dst_ip);
         whitelisted_host = whitelist.matchesHost(info);
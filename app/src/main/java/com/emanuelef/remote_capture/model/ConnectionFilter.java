@@ -0,0 +1,692 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture.model;
+
+import androidx.annotation.Nullable;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/* A connections filter expression, e.g. "app:chrome and dport:443 and bytes>1M and not country:US".
+ * The expression is parsed once into a tree of predicates, each one specialized for its field, so
+ * that matching a connection does not allocate. Syntax:
+ *  - terms are combined with "and" (also implicit, e.g. "app:chrome dport:443"), "or", "not" and
+ *    the parentheses. The "&&", "||" and "!" forms are also accepted
+ *  - a term is either "field<op>value" or a bare word, which matches like the free-text search
+ *  - the ":" and "=" operators test the equality, "!=" its negation. The numeric fields also
+ *    support ">", ">=", "<", "<=", and the K/M/G suffixes (e.g. bytes>1M)
+ *  - the values containing spaces can be quoted, e.g. app:"google play"
+ * See FIELDS for the supported fields.
+ * NOTE: this class must not depend on the Android framework, as it is also built by the benchmark module. */
+public class ConnectionFilter {
+    public static final String[] FIELDS = {
+            "app", "uid", "ip", "port", "dport", "sport", "host", "proto", "ipproto", "country", "asn",
+            "status", "bytes", "sent", "rcvd", "pkts", "duration", "is"
+    };
+    private final String mExpression;
+    private final Node mRoot;
+
+    /* Resolves the app of a connection, for the "app" term and the bare words */
+    public interface AppResolver {
+        @Nullable String getAppName(int uid);
+        @Nullable String getPackageName(int uid);
+    }
+
+    private ConnectionFilter(String expression, Node root) {
+        mExpression = expression;
+        mRoot = root;
+    }
+
+    /* Parses the expression. Throws a ParseException, with the offset of the error, if invalid. */
+    public static ConnectionFilter parse(String expression) throws ParseException {
+        return parse(new Parser(expression), expression);
+    }
+
+    private static ConnectionFilter parse(Parser parser, String expression) throws ParseException {
+        Node root = parser.parseOr();
+
+        if(parser.peek() != null)
+            throw parser.error("unexpected \"" + parser.peek().text + "\"");
+
+        return new ConnectionFilter(expression, root);
+    }
+
+    /* Parses the expression, falling back to a free-text search of the whole text if invalid.
+     * Plain text, without any field, operator, quote or parenthesis, is also searched as a whole,
+     * e.g. "google play" matches the "Google Play Store" app rather than "google" and "play".
+     * Used by the search box, where the expression is typed incrementally. */
+    public static ConnectionFilter parseOrSearch(String expression) {
+        try {
+            Parser parser = new Parser(expression);
+
+            if(!parser.isPlainText())
+                return parse(parser, expression);
+        } catch (ParseException ignored) {}
+
+        return new ConnectionFilter(expression, new TextSearch(expression.trim()));
+    }
+
+    public String getExpression() {
+        return mExpression;
+    }
+
+    /* apps: used to resolve the app of the connections, if null the app names are not matched */
+    public boolean matches(ConnectionDescriptor conn, @Nullable AppResolver apps) {
+        return mRoot.matches(conn, apps);
+    }
+
+    /* ********************************************************************** */
+
+    private static abstract class Node {
+        abstract boolean matches(ConnectionDescriptor conn, @Nullable AppResolver apps);
+    }
+
+    private static class And extends Node {
+        final Node[] children;
+
+        And(Node[] _children) { children = _children; }
+
+        @Override
+        boolean matches(ConnectionDescriptor conn, @Nullable AppResolver apps) {
+            for(Node child: children) {
+                if(!child.matches(conn, apps))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static class Or extends Node {
+        final Node[] children;
+
+        Or(Node[] _children) { children = _children; }
+
+        @Override
+        boolean matches(ConnectionDescriptor conn, @Nullable AppResolver apps) {
+            for(Node child: children) {
+                if(child.matches(conn, apps))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private static class Not extends Node {
+        final Node child;
+
+        Not(Node _child) { child = _child; }
+
+        @Override
+        boolean matches(ConnectionDescriptor conn, @Nullable AppResolver apps) {
+            return !child.matches(conn, apps);
+        }
+    }
+
+    private interface LongField {
+        long get(ConnectionDescriptor conn);
+    }
+
+    private static final int OP_EQ = 0;
+    private static final int OP_NE = 1;
+    private static final int OP_GT = 2;
+    private static final int OP_GE = 3;
+    private static final int OP_LT = 4;
+    private static final int OP_LE = 5;
+
+    private static class NumCompare extends Node {
+        final LongField field;
+        final int op;
+        final long value;
+
+        NumCompare(LongField _field, int _op, long _value) {
+            field = _field;
+            op = _op;
+            value = _value;
+        }
+
+        @Override
+        boolean matches(ConnectionDescriptor conn, @Nullable AppResolver apps) {
+            long val = field.get(conn);
+
+            switch(op) {
+                case OP_EQ: return val == value;
+                case OP_NE: return val != value;
+                case OP_GT: return val > value;
+                case OP_GE: return val >= value;
+                case OP_LT: return val < value;
+                default:    return val <= value;
+            }
+        }
+    }
+
+    private interface StringField {
+        @Nullable String get(ConnectionDescriptor conn);
+    }
+
+    private static class StringEquals extends Node {
+        final StringField field;
+        final String value;
+
+        StringEquals(StringField _field, String _value) {
+            field = _field;
+            value = _value;
+        }
+
+        @Override
+        boolean matches(ConnectionDescriptor conn, @Nullable AppResolver apps) {
+            return value.equalsIgnoreCase(field.get(conn));
+        }
+    }
+
+    private static class IpMatch extends Node {
+        final IpPrefixTrie prefix = new IpPrefixTrie();
+
+        @Override
+        boolean matches(ConnectionDescriptor conn, @Nullable AppResolver apps) {
+            return prefix.contains(conn.dst_ip);
+        }
+    }
+
+    private static class HostMatch extends Node {
+        final DomainTrie domain = new DomainTrie();
+
+        @Override
+        boolean matches(ConnectionDescriptor conn, @Nullable AppResolver apps) {
+            return domain.matches(conn.info, DomainTrie.SUFFIX);
+        }
+    }
+
+    private interface BoolField {
+        boolean get(ConnectionDescriptor conn);
+    }
+
+    private static class FlagMatch extends Node {
+        final BoolField field;
+
+        FlagMatch(BoolField _field) { field = _field; }
+
+        @Override
+        boolean matches(ConnectionDescriptor conn, @Nullable AppResolver apps) {
+            return field.get(conn);
+        }
+    }
+
+    private static class StatusMatch extends Node {
+        final ConnectionDescriptor.Status status;
+
+        StatusMatch(ConnectionDescriptor.Status _status) { status = _status; }
+
+        @Override
+        boolean matches(ConnectionDescriptor conn, @Nullable AppResolver apps) {
+            return conn.getStatus() == status;
+        }
+    }
+
+    private static class AppMatch extends Node {
+        final String name;
+
+        AppMatch(String _name) { name = _name; }
+
+        @Override
+        boolean matches(ConnectionDescriptor conn, @Nullable AppResolver apps) {
+            if(apps == null)
+                return false;
+
+            return containsIgnoreCase(apps.getAppName(conn.uid), name) ||
+                    name.equalsIgnoreCase(apps.getPackageName(conn.uid));
+        }
+    }
+
+    /* The free-text search: the text is searched, case insensitive, into the info, IP address, L7
+     * protocol and app name. A number also matches the uid, the source port and the destination
+     * port digits. The package name must match exactly. */
+    private static class TextSearch extends Node {
+        final String text;
+        final long number;  // -1 if the text is not a number
+
+        TextSearch(String _text) {
+            text = _text;
+            number = parseDecimal(_text);
+        }
+
+        @Override
+        boolean matches(ConnectionDescriptor conn, @Nullable AppResolver apps) {
+            if(((conn.info != null) && containsIgnoreCase(conn.info, text)) ||
+                    containsIgnoreCase(conn.dst_ip, text) ||
+                    containsIgnoreCase(conn.l7proto, text))
+                return true;
+
+            if((number >= 0) && ((conn.uid == number) || (conn.src_port == number) ||
+                    containsDigits(conn.dst_port, text.length(), number)))
+                return true;
+
+            return (apps != null) &&
+                    (containsIgnoreCase(apps.getAppName(conn.uid), text) ||
+                    text.equalsIgnoreCase(apps.getPackageName(conn.uid)));
+        }
+    }
+
+    private static boolean containsIgnoreCase(@Nullable String s, String sub) {
+        if(s == null)
+            return false;
+
+        int max_start = s.length() - sub.length();
+
+        for(int i = 0; i <= max_start; i++) {
+            if(s.regionMatches(true, i, sub, 0, sub.length()))
+                return true;
+        }
+        return false;
+    }
+
+    /* Returns true if the decimal representation of val contains the num_digits digits number */
+    private static boolean containsDigits(long val, int num_digits, long number) {
+        long mod = 1;
+        for(int i = 0; i < num_digits; i++)
+            mod *= 10;
+
+        do {
+            if(((val % mod) == number) && ((val >= mod / 10) || (num_digits == 1)))
+                return true;
+            val /= 10;
+        } while(val > 0);
+
+        return false;
+    }
+
+    private static long parseDecimal(String s) {
+        if(s.isEmpty() || (s.length() > 18))
+            return -1;
+
+        long rv = 0;
+
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if((c < '0') || (c > '9'))
+                return -1;
+            rv = rv * 10 + (c - '0');
+        }
+        return rv;
+    }
+
+    /* ********************************************************************** */
+
+    private static class Token {
+        static final int WORD = 0;
+        static final int TERM = 1;
+        static final int LPAREN = 2;
+        static final int RPAREN = 3;
+        static final int AND = 4;
+        static final int OR = 5;
+        static final int NOT = 6;
+
+        final int type;
+        final int offset;
+        final String text;
+        String field;
+        int op;
+        String value;
+
+        Token(int _type, int _offset, String _text) {
+            type = _type;
+            offset = _offset;
+            text = _text;
+        }
+    }
+
+    private static class Parser {
+        private final String mExpr;
+        private final ArrayList<Token> mTokens = new ArrayList<>();
+        private int mPos;
+
+        Parser(String expr) throws ParseException {
+            mExpr = expr;
+            tokenize();
+        }
+
+        ParseException error(String msg) {
+            int offset = (mPos < mTokens.size()) ? mTokens.get(mPos).offset : mExpr.length();
+            return new ParseException(msg, offset);
+        }
+
+        /* Returns true if the expression only contains unquoted bare words */
+        boolean isPlainText() {
+            if(mExpr.indexOf('"') >= 0)
+                return false;
+
+            for(Token tok: mTokens) {
+                if(tok.type != Token.WORD)
+                    return false;
+            }
+            return true;
+        }
+
+        @Nullable Token peek() {
+            return (mPos < mTokens.size()) ? mTokens.get(mPos) : null;
+        }
+
+        private static boolean isWordChar(char c) {
+            return !Character.isWhitespace(c) && (c != '(') && (c != ')') && (c != '"');
+        }
+
+        private void tokenize() throws ParseException {
+            int i = 0;
+            int len = mExpr.length();
+
+            while(i < len) {
+                char c = mExpr.charAt(i);
+
+                if(Character.isWhitespace(c)) {
+                    i++;
+                } else if(c == '(') {
+                    mTokens.add(new Token(Token.LPAREN, i++, "("));
+                } else if(c == ')') {
+                    mTokens.add(new Token(Token.RPAREN, i++, ")"));
+                } else if((c == '!') && (i + 1 < len) && (mExpr.charAt(i + 1) != '=')) {
+                    mTokens.add(new Token(Token.NOT, i++, "!"));
+                } else if(c == '"') {
+                    int end = quoteEnd(i);
+                    mTokens.add(new Token(Token.WORD, i, mExpr.substring(i + 1, end)));
+                    i = end + 1;
+                } else {
+                    int start = i;
+                    int field_end = i;
+
+                    while((field_end < len) && (((mExpr.charAt(field_end) >= 'a') && (mExpr.charAt(field_end) <= 'z')) ||
+                            ((mExpr.charAt(field_end) >= 'A') && (mExpr.charAt(field_end) <= 'Z')) ||
+                            (mExpr.charAt(field_end) == '_')))
+                        field_end++;
+
+                    int op_len = (field_end > start) ? opLength(field_end) : 0;
+
+                    if(op_len > 0) {
+                        // field<op>value
+                        int val_start = field_end + op_len;
+                        int val_end;
+                        String value;
+
+                        if((val_start < len) && (mExpr.charAt(val_start) == '"')) {
+                            val_end = quoteEnd(val_start);
+                            value = mExpr.substring(val_start + 1, val_end);
+                            val_end++;
+                        } else {
+                            val_end = val_start;
+                            while((val_end < len) && isWordChar(mExpr.charAt(val_end)))
+                                val_end++;
+                            value = mExpr.substring(val_start, val_end);
+                        }
+
+                        if(value.isEmpty())
+                            throw new ParseException("missing value", val_start);
+
+                        Token tok = new Token(Token.TERM, start, mExpr.substring(start, val_end));
+                        tok.field = mExpr.substring(start, field_end).toLowerCase(Locale.ROOT);
+                        tok.op = parseOp(mExpr.substring(field_end, field_end + op_len));
+                        tok.value = value;
+                        mTokens.add(tok);
+                        i = val_end;
+                    } else {
+                        int end = i;
+                        while((end < len) && isWordChar(mExpr.charAt(end)))
+                            end++;
+
+                        String word = mExpr.substring(start, end);
+                        String lower = word.toLowerCase(Locale.ROOT);
+                        int type = Token.WORD;
+
+                        if(lower.equals("and") || word.equals("&&"))
+                            type = Token.AND;
+                        else if(lower.equals("or") || word.equals("||"))
+                            type = Token.OR;
+                        else if(lower.equals("not"))
+                            type = Token.NOT;
+
+                        mTokens.add(new Token(type, start, word));
+                        i = end;
+                    }
+                }
+            }
+        }
+
+        private int quoteEnd(int start) throws ParseException {
+            int end = mExpr.indexOf('"', start + 1);
+
+            if(end < 0)
+                throw new ParseException("unterminated quote", start);
+            return end;
+        }
+
+        // Returns the length of the operator at pos, 0 if none
+        private int opLength(int pos) {
+            if(pos >= mExpr.length())
+                return 0;
+
+            char c = mExpr.charAt(pos);
+            boolean has_eq = (pos + 1 < mExpr.length()) && (mExpr.charAt(pos + 1) == '=');
+
+            if((c == ':') || (c == '='))
+                return 1;
+            if(c == '!')
+                return has_eq ? 2 : 0;
+            if((c == '>') || (c == '<'))
+                return has_eq ? 2 : 1;
+            return 0;
+        }
+
+        private static int parseOp(String op) {
+            switch(op) {
+                case "!=": return OP_NE;
+                case ">":  return OP_GT;
+                case ">=": return OP_GE;
+                case "<":  return OP_LT;
+                case "<=": return OP_LE;
+                default:   return OP_EQ;
+            }
+        }
+
+        Node parseOr() throws ParseException {
+            ArrayList<Node> children = new ArrayList<>();
+            children.add(parseAnd());
+
+            while((peek() != null) && (peek().type == Token.OR)) {
+                mPos++;
+                children.add(parseAnd());
+            }
+
+            return (children.size() == 1) ? children.get(0) : new Or(children.toArray(new Node[0]));
+        }
+
+        Node parseAnd() throws ParseException {
+            ArrayList<Node> children = new ArrayList<>();
+            children.add(parseNot());
+
+            while(true) {
+                Token tok = peek();
+
+                if((tok == null) || (tok.type == Token.OR) || (tok.type == Token.RPAREN))
+                    break;
+                if(tok.type == Token.AND)
+                    mPos++;
+
+                // implicit "and"
+                children.add(parseNot());
+            }
+
+            return (children.size() == 1) ? children.get(0) : new And(children.toArray(new Node[0]));
+        }
+
+        Node parseNot() throws ParseException {
+            Token tok = peek();
+
+            if((tok != null) && (tok.type == Token.NOT)) {
+                mPos++;
+                return new Not(parseNot());
+            }
+            return parsePrimary();
+        }
+
+        Node parsePrimary() throws ParseException {
+            Token tok = peek();
+
+            if(tok == null)
+                throw error("unexpected end of the expression");
+
+            mPos++;
+
+            switch(tok.type) {
+                case Token.LPAREN:
+                    Node node = parseOr();
+                    tok = peek();
+
+                    if((tok == null) || (tok.type != Token.RPAREN))
+                        throw error("missing \")\"");
+                    mPos++;
+                    return node;
+                case Token.WORD:
+                    return new TextSearch(tok.text);
+                case Token.TERM:
+                    Node term = compileTerm(tok);
+
+                    // "!=" is compiled as the negation of the equality
+                    return (tok.op == OP_NE) && !(term instanceof NumCompare) ? new Not(term) : term;
+                default:
+                    mPos--;
+                    throw error("unexpected \"" + tok.text + "\"");
+            }
+        }
+
+        private ParseException termError(Token tok, String msg) {
+            return new ParseException(tok.field + ": " + msg, tok.offset);
+        }
+
+        private Node compileTerm(Token tok) throws ParseException {
+            String val = tok.value;
+
+            switch(tok.field) {
+                case "uid":         return numTerm(tok, conn -> conn.uid);
+                case "port":
+                case "dport":       return numTerm(tok, conn -> conn.dst_port);
+                case "sport":       return numTerm(tok, conn -> conn.src_port);
+                case "bytes":       return numTerm(tok, conn -> conn.sent_bytes + conn.rcvd_bytes);
+                case "sent":        return numTerm(tok, conn -> conn.sent_bytes);
+                case "rcvd":        return numTerm(tok, conn -> conn.rcvd_bytes);
+                case "pkts":        return numTerm(tok, conn -> conn.sent_pkts + conn.rcvd_pkts);
+                case "duration":    return numTerm(tok, conn -> (conn.last_seen - conn.first_seen) / 1000);
+                case "app":
+                    checkEqOp(tok);
+                    if(parseDecimal(val) >= 0)
+                        return numTerm(tok, conn -> conn.uid);
+                    return new AppMatch(val);
+                case "ip":
+                    checkEqOp(tok);
+                    IpMatch ip = new IpMatch();
+                    if(!ip.prefix.add(val))
+                        throw termError(tok, "invalid IP address \"" + val + "\"");
+                    return ip;
+                case "host":
+                    checkEqOp(tok);
+                    HostMatch host = new HostMatch();
+                    host.domain.add(val.startsWith("*.") ? val.substring(2) : val, DomainTrie.SUFFIX);
+                    return host;
+                case "proto":
+                    checkEqOp(tok);
+                    return new StringEquals(conn -> conn.l7proto, val);
+                case "country":
+                    checkEqOp(tok);
+                    return new StringEquals(conn -> conn.country, val);
+                case "asn":
+                    if(val.regionMatches(true, 0, "AS", 0, 2))
+                        val = val.substring(2);
+                    return numTerm(tok, val, conn -> (conn.asn != null) ? conn.asn.number : 0);
+                case "ipproto":
+                    checkEqOp(tok);
+                    int proto;
+                    switch(val.toLowerCase(Locale.ROOT)) {
+                        case "tcp":     proto = 6; break;
+                        case "udp":     proto = 17; break;
+                        case "icmp":    proto = 1; break;
+                        case "icmpv6":  proto = 58; break;
+                        default:
+                            long num = parseDecimal(val);
+                            if((num < 0) || (num > 255))
+                                throw termError(tok, "invalid protocol \"" + val + "\"");
+                            proto = (int) num;
+                    }
+                    return new NumCompare(conn -> conn.ipproto, tok.op, proto);
+                case "status":
+                    checkEqOp(tok);
+                    switch(val.toLowerCase(Locale.ROOT)) {
+                        case "open":        return new StatusMatch(ConnectionDescriptor.Status.STATUS_OPEN);
+                        case "closed":      return new StatusMatch(ConnectionDescriptor.Status.STATUS_CLOSED);
+                        case "unreachable": return new StatusMatch(ConnectionDescriptor.Status.STATUS_UNREACHABLE);
+                        case "error":       return new StatusMatch(ConnectionDescriptor.Status.STATUS_ERROR);
+                        default:
+                            throw termError(tok, "invalid status \"" + val + "\"");
+                    }
+                case "is":
+                    checkEqOp(tok);
+                    switch(val.toLowerCase(Locale.ROOT)) {
+                        case "blacklisted":
+                            return new FlagMatch(ConnectionDescriptor::isBlacklisted);
+                        case "plaintext":
+                            return new FlagMatch(conn -> (conn.request_plaintext != null) && !conn.request_plaintext.isEmpty());
+                        default:
+                            throw termError(tok, "invalid value \"" + val + "\"");
+                    }
+                default:
+                    throw new ParseException("unknown field \"" + tok.field + "\"", tok.offset);
+            }
+        }
+
+        private void checkEqOp(Token tok) throws ParseException {
+            if((tok.op != OP_EQ) && (tok.op != OP_NE))
+                throw termError(tok, "only the equality operators are supported");
+        }
+
+        private Node numTerm(Token tok, LongField field) throws ParseException {
+            return numTerm(tok, tok.value, field);
+        }
+
+        private Node numTerm(Token tok, String val, LongField field) throws ParseException {
+            long multiplier = 1;
+            char suffix = val.isEmpty() ? 0 : Character.toUpperCase(val.charAt(val.length() - 1));
+
+            switch(suffix) {
+                case 'K': multiplier = 1024L; break;
+                case 'M': multiplier = 1024L * 1024; break;
+                case 'G': multiplier = 1024L * 1024 * 1024; break;
+            }
+            if(multiplier != 1)
+                val = val.substring(0, val.length() - 1);
+
+            long number = parseDecimal(val);
+            if(number < 0)
+                throw termError(tok, "invalid number \"" + tok.value + "\"");
+
+            try {
+                return new NumCompare(field, tok.op, Math.multiplyExact(number, multiplier));
+            } catch (ArithmeticException e) {
+                throw termError(tok, "number too big \"" + tok.value + "\"");
+            }
+        }
+    }
+}
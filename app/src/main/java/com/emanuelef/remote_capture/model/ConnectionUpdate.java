@@ -22,6 +22,11 @@ package com.emanuelef.remote_capture.model;
 public class ConnectionUpdate {
     public static final int UPDATE_STATS = 1;
     public static final int UPDATE_INFO = 2;
+    public static final int UPDATE_GEO = 4;     // only set from java, see GeoResolver
+
+    /* status flags, set by the native code along with the conn status in the lower byte */
+    public static final int STATUS_BLACKLISTED_IP = 0x0100;
+    public static final int STATUS_BLACKLISTED_HOST = 0x0200;
     public final int incr_id;
     public int update_type;
 
@@ -40,6 +45,10 @@ public class ConnectionUpdate {
     public String request_plaintext;
     public String l7proto;
 
+    /* set if update_type & UPDATE_GEO */
+    public String country;
+    public Geomodel.ASN asn;
+
     public ConnectionUpdate(int _incr_id) {
         incr_id = _incr_id;
     }
@@ -66,4 +75,11 @@ public class ConnectionUpdate {
         request_plaintext = _req;
         l7proto = _l7proto;
     }
+
+    public void setGeo(String _country, Geomodel.ASN _asn) {
+        update_type |= UPDATE_GEO;
+
+        country = _country;
+        asn = _asn;
+    }
 }
@@ -0,0 +1,162 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture.model;
+
+/* A trie of domain names, indexed by their labels from the TLD, e.g. "org" -> "example" -> "www".
+ * Each domain is either an EXACT match, with the "www." prefix ignored, or a SUFFIX match, which
+ * matches the domain and all its subdomains. The lookups compare the labels in place, so they
+ * do not allocate. */
+class DomainTrie {
+    public static final int EXACT = 0x1;
+    public static final int SUFFIX = 0x2;
+    private Node mRoot = new Node(null, 0);
+    private int mNumDomains;
+
+    private static class Node {
+        final String label;
+        final int hash;
+        int flags;
+        Node[] children;    // open addressing table, by label hash
+        int numChildren;
+
+        Node(String _label, int _hash) {
+            label = _label;
+            hash = _hash;
+        }
+
+        Node getChild(String s, int start, int end, int hash) {
+            if(children == null)
+                return null;
+
+            int mask = children.length - 1;
+
+            for(int i = hash & mask; ; i = (i + 1) & mask) {
+                Node child = children[i];
+
+                if(child == null)
+                    return null;
+                if((child.hash == hash) && (child.label.length() == end - start) &&
+                        child.label.regionMatches(0, s, start, end - start))
+                    return child;
+            }
+        }
+
+        Node addChild(String label, int hash) {
+            if((children == null) || ((numChildren + 1) * 2 > children.length)) {
+                Node[] old = children;
+                children = new Node[(old == null) ? 4 : old.length * 2];
+
+                if(old != null) {
+                    for(Node child: old) {
+                        if(child != null)
+                            putChild(child);
+                    }
+                }
+            }
+
+            Node child = new Node(label, hash);
+            putChild(child);
+            numChildren++;
+            return child;
+        }
+
+        private void putChild(Node child) {
+            int mask = children.length - 1;
+            int i = child.hash & mask;
+
+            while(children[i] != null)
+                i = (i + 1) & mask;
+            children[i] = child;
+        }
+    }
+
+    // Same as String.hashCode, on the s[start, end) region
+    private static int labelHash(String s, int start, int end) {
+        int h = 0;
+
+        for(int i = start; i < end; i++)
+            h = 31 * h + s.charAt(i);
+        return h;
+    }
+
+    public void add(String domain, int match_type) {
+        Node node = mRoot;
+
+        if((match_type == EXACT) && domain.startsWith("www."))
+            domain = domain.substring(4);
+
+        int end = domain.length();
+        if(end == 0)
+            return;
+
+        while(end > 0) {
+            int start = domain.lastIndexOf('.', end - 1) + 1;
+            int hash = labelHash(domain, start, end);
+            Node child = node.getChild(domain, start, end, hash);
+
+            if(child == null)
+                child = node.addChild(domain.substring(start, end), hash);
+
+            node = child;
+            end = start - 1;
+        }
+
+        if((node.flags & match_type) == 0) {
+            node.flags |= match_type;
+            mNumDomains++;
+        }
+    }
+
+    /* Returns true if the domain matches any of the domains with the specified match types */
+    public boolean matches(String domain, int match_types) {
+        if((domain == null) || (mNumDomains == 0))
+            return false;
+
+        int end = domain.length();
+        int exact_start = domain.startsWith("www.") ? 4 : 0;
+        Node node = mRoot;
+
+        while(end > 0) {
+            int start = domain.lastIndexOf('.', end - 1) + 1;
+
+            node = node.getChild(domain, start, end, labelHash(domain, start, end));
+            if(node == null)
+                return false;
+
+            if((node.flags & match_types & SUFFIX) != 0)
+                return true;
+            if(((node.flags & match_types & EXACT) != 0) && (start == exact_start))
+                return true;
+
+            end = start - 1;
+        }
+
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return(mNumDomains == 0);
+    }
+
+    public void clear() {
+        mRoot = new Node(null, 0);
+        mNumDomains = 0;
+    }
+}
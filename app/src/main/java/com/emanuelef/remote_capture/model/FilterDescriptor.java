@@ -19,67 +19,59 @@
 
 package com.emanuelef.remote_capture.model;
 
-import android.content.Context;
-import android.view.LayoutInflater;
+import androidx.annotation.Nullable;
 
-import com.emanuelef.remote_capture.PCAPdroid;
-import com.emanuelef.remote_capture.R;
 import com.emanuelef.remote_capture.model.ConnectionDescriptor.Status;
-import com.google.android.material.chip.Chip;
-import com.google.android.material.chip.ChipGroup;
 
 import java.io.Serializable;
+import java.text.ParseException;
 
 public class FilterDescriptor implements Serializable {
     public Status status = Status.STATUS_INVALID;
     public boolean showMasked = true;
     public boolean onlyBlacklisted = false;
     public boolean onlyPlaintext = false;
+    public String expression = "";  // a ConnectionFilter expression
+    private transient ConnectionFilter mCompiled;
 
-    public boolean isSet() {
+    /* Returns the compiled expression, null if the expression is empty or invalid */
+    public @Nullable ConnectionFilter getCompiledExpression() {
+        if((mCompiled == null) || !mCompiled.getExpression().equals(expression)) {
+            mCompiled = null;
+
+            if((expression != null) && !expression.trim().isEmpty()) {
+                try {
+                    mCompiled = ConnectionFilter.parse(expression);
+                } catch (ParseException ignored) {
+                    // validated by EditFilterActivity
+                }
+            }
+        }
+
+        return mCompiled;
+    }
+
+    /* mask: the visualization mask, used to hide the masked connections when showMasked is false */
+    public boolean isSet(MatchRules mask) {
         return (status != Status.STATUS_INVALID)
                 || onlyBlacklisted
                 || onlyPlaintext
-                || (!showMasked && !PCAPdroid.getInstance().getVisualizationMask().isEmpty());
-    }
-
-    public boolean matches(ConnectionDescriptor conn) {
-        return (showMasked || !PCAPdroid.getInstance().getVisualizationMask().matches(conn))
-                && (!onlyBlacklisted || conn.isBlacklisted())
-                && (!onlyPlaintext || !conn.request_plaintext.isEmpty())
-                && ((status == Status.STATUS_INVALID) || (conn.getStatus().equals(status)));
+                || (getCompiledExpression() != null)
+                || (!showMasked && !mask.isEmpty());
     }
 
-    private void addChip(LayoutInflater inflater, ChipGroup group, int id, String text) {
-        Chip chip = (Chip) inflater.inflate(R.layout.active_filter_chip, group, false);
-        chip.setId(id);
-        chip.setText(text.toLowerCase());
-        group.addView(chip);
+    public boolean matches(ConnectionDescriptor conn, MatchRules mask) {
+        return matches(conn, mask, null);
     }
 
-    public void toChips(LayoutInflater inflater, ChipGroup group) {
-        Context ctx = inflater.getContext();
+    /* apps: used to resolve the app names of the expression, see ConnectionFilter.matches */
+    public boolean matches(ConnectionDescriptor conn, MatchRules mask, @Nullable ConnectionFilter.AppResolver apps) {
+        ConnectionFilter compiled = getCompiledExpression();
 
-        if(!showMasked)
-            addChip(inflater, group, R.id.not_hidden, ctx.getString(R.string.not_hidden_filter));
-        if(onlyBlacklisted)
-            addChip(inflater, group, R.id.blacklisted, ctx.getString(R.string.malicious_connection_filter));
-        if(onlyPlaintext)
-            addChip(inflater, group, R.id.only_plaintext, ctx.getString(R.string.plaintext));
-        if(status != Status.STATUS_INVALID) {
-            String label = String.format(ctx.getString(R.string.status_filter), ConnectionDescriptor.getStatusLabel(status, ctx));
-            addChip(inflater, group, R.id.status_ind, label);
-        }
-    }
-
-    public void clear(int filter_id) {
-        if(filter_id == R.id.not_hidden)
-            showMasked = true;
-        else if(filter_id == R.id.blacklisted)
-            onlyBlacklisted = false;
-        else if(filter_id == R.id.only_plaintext)
-            onlyPlaintext = false;
-        else if(filter_id == R.id.status_ind)
-            status = Status.STATUS_INVALID;
+        return (showMasked || !mask.matches(conn))
+                && (!onlyBlacklisted || conn.isBlacklisted())
+                && (!onlyPlaintext || !conn.request_plaintext.isEmpty())
+                && ((status == Status.STATUS_INVALID) || (conn.getStatus().equals(status)))
+                && ((compiled == null) || compiled.matches(conn, apps));
     }
 }
@@ -49,7 +49,20 @@ public class Geomodel {
         }
     }
 
+    /* The geolocation info of an IP address */
+    public static class GeoInfo {
+        public static final GeoInfo UNKNOWN = new GeoInfo("", ASN.UNKNOWN);
+        public final String country;    // "" if unknown
+        public final ASN asn;
+
+        public GeoInfo(String country, ASN asn) {
+            this.country = country;
+            this.asn = asn;
+        }
+    }
+
     public static class ASN implements Serializable {
+        public static final ASN UNKNOWN = new ASN();
         public final long number;
         public final String asname;
 
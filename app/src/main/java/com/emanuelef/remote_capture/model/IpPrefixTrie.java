@@ -0,0 +1,254 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture.model;
+
+import java.util.Arrays;
+
+/* A binary trie of IPv4/IPv6 prefixes, e.g. "10.0.0.0/8" or "2001:db8::/32". A single address
+ * is a prefix with the full length. The nodes are stored into int arrays and the addresses are
+ * parsed into a scratch buffer, so the lookups do not allocate. */
+class IpPrefixTrie {
+    private static final int NO_CHILD = 0;   // the root node is never a child
+    private final Family mIpv4 = new Family();
+    private final Family mIpv6 = new Family();
+    private final byte[] mScratch = new byte[16];
+
+    private static class Family {
+        int[] child0 = new int[64];
+        int[] child1 = new int[64];
+        boolean[] terminal = new boolean[64];
+        int numNodes = 1; // the root
+        int numPrefixes;
+
+        int newNode() {
+            if(numNodes == terminal.length) {
+                int size = numNodes * 2;
+                child0 = Arrays.copyOf(child0, size);
+                child1 = Arrays.copyOf(child1, size);
+                terminal = Arrays.copyOf(terminal, size);
+            }
+            return numNodes++;
+        }
+
+        void add(byte[] addr, int prefix_len) {
+            int node = 0;
+
+            for(int i = 0; i < prefix_len; i++) {
+                boolean bit = ((addr[i >> 3] >> (7 - (i & 7))) & 0x1) != 0;
+                int next = bit ? child1[node] : child0[node];
+
+                if(next == NO_CHILD) {
+                    next = newNode();
+
+                    if(bit)
+                        child1[node] = next;
+                    else
+                        child0[node] = next;
+                }
+                node = next;
+            }
+
+            if(!terminal[node]) {
+                terminal[node] = true;
+                numPrefixes++;
+            }
+        }
+
+        boolean contains(byte[] addr, int addr_bits) {
+            int node = 0;
+
+            for(int i = 0; i < addr_bits; i++) {
+                if(terminal[node])
+                    return true;
+
+                boolean bit = ((addr[i >> 3] >> (7 - (i & 7))) & 0x1) != 0;
+                node = bit ? child1[node] : child0[node];
+
+                if(node == NO_CHILD)
+                    return false;
+            }
+
+            return terminal[node];
+        }
+    }
+
+    /* Adds a prefix in the "address[/prefix_len]" format. Returns false if the prefix is invalid. */
+    public synchronized boolean add(String prefix) {
+        int slash = prefix.indexOf('/');
+        int end = (slash >= 0) ? slash : prefix.length();
+        int addr_len = parseAddress(prefix, end, mScratch);
+
+        if(addr_len == 0)
+            return false;
+
+        int prefix_len = addr_len * 8;
+
+        if(slash >= 0) {
+            try {
+                prefix_len = Integer.parseInt(prefix.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+
+            if((prefix_len < 0) || (prefix_len > addr_len * 8))
+                return false;
+        }
+
+        ((addr_len == 4) ? mIpv4 : mIpv6).add(mScratch, prefix_len);
+        return true;
+    }
+
+    /* Returns true if the numeric address is contained in any of the prefixes */
+    public synchronized boolean contains(String ip) {
+        if((ip == null) || ((mIpv4.numPrefixes == 0) && (mIpv6.numPrefixes == 0)))
+            return false;
+
+        int addr_len = parseAddress(ip, ip.length(), mScratch);
+
+        if(addr_len == 4)
+            return mIpv4.contains(mScratch, 32);
+        else if(addr_len == 16)
+            return mIpv6.contains(mScratch, 128);
+        return false;
+    }
+
+    public synchronized void clear() {
+        mIpv4.numNodes = mIpv6.numNodes = 1;
+        mIpv4.numPrefixes = mIpv6.numPrefixes = 0;
+        Arrays.fill(mIpv4.child0, NO_CHILD); Arrays.fill(mIpv4.child1, NO_CHILD);
+        Arrays.fill(mIpv6.child0, NO_CHILD); Arrays.fill(mIpv6.child1, NO_CHILD);
+        Arrays.fill(mIpv4.terminal, false);
+        Arrays.fill(mIpv6.terminal, false);
+    }
+
+    /* Parses the numeric IPv4 or IPv6 address in s[0, end) into out. Returns the address length,
+     * 0 if the address is invalid. */
+    static int parseAddress(String s, int end, byte[] out) {
+        if(s.indexOf(':') >= 0)
+            return parseIpv6(s, 0, end, out, 0) ? 16 : 0;
+        return parseIpv4(s, 0, end, out, 0) ? 4 : 0;
+    }
+
+    private static boolean parseIpv4(String s, int start, int end, byte[] out, int out_pos) {
+        int num_parts = 0;
+        int val = 0;
+        int num_digits = 0;
+
+        for(int i = start; i <= end; i++) {
+            char c = (i < end) ? s.charAt(i) : '.';
+
+            if(c == '.') {
+                if((num_digits == 0) || (num_parts == 4))
+                    return false;
+                out[out_pos + num_parts++] = (byte) val;
+                val = 0;
+                num_digits = 0;
+            } else if((c >= '0') && (c <= '9') && (num_digits < 3)) {
+                val = val * 10 + (c - '0');
+                num_digits++;
+
+                if(val > 255)
+                    return false;
+            } else
+                return false;
+        }
+
+        return(num_parts == 4);
+    }
+
+    private static int hexValue(char c) {
+        if((c >= '0') && (c <= '9'))
+            return c - '0';
+        if((c >= 'a') && (c <= 'f'))
+            return c - 'a' + 10;
+        if((c >= 'A') && (c <= 'F'))
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    private static boolean parseIpv6(String s, int start, int end, byte[] out, int out_pos) {
+        int num_groups = 0;
+        int gap_pos = -1;   // the group index of the "::"
+        int i = start;
+
+        if(s.startsWith("::", i)) {
+            gap_pos = 0;
+            i += 2;
+        }
+
+        while(i < end) {
+            if(num_groups == 8)
+                return false;
+
+            int group_end = i;
+            int val = 0;
+
+            while((group_end < end) && (group_end - i < 4)) {
+                int digit = hexValue(s.charAt(group_end));
+
+                if(digit < 0)
+                    break;
+                val = (val << 4) | digit;
+                group_end++;
+            }
+
+            if((group_end < end) && (s.charAt(group_end) == '.')) {
+                // embedded IPv4 address, e.g. ::ffff:1.2.3.4
+                if((num_groups > 6) || !parseIpv4(s, i, end, out, out_pos + num_groups * 2))
+                    return false;
+                num_groups += 2;
+                break;
+            }
+
+            if(group_end == i)
+                return false;
+
+            out[out_pos + num_groups * 2] = (byte) (val >> 8);
+            out[out_pos + num_groups * 2 + 1] = (byte) val;
+            num_groups++;
+            i = group_end;
+
+            if(i == end)
+                break;
+            if(s.charAt(i) != ':')
+                return false;
+            i++;
+
+            if((i < end) && (s.charAt(i) == ':')) {
+                if(gap_pos >= 0)
+                    return false;
+                gap_pos = num_groups;
+                i++;
+            } else if(i == end)
+                return false; // trailing ":"
+        }
+
+        if(gap_pos < 0)
+            return(num_groups == 8);
+        if(num_groups == 8)
+            return false;
+
+        // Move the groups after the "::" to the end, then zero the gap
+        int tail_len = (num_groups - gap_pos) * 2;
+        System.arraycopy(out, out_pos + gap_pos * 2, out, out_pos + 16 - tail_len, tail_len);
+        Arrays.fill(out, out_pos + gap_pos * 2, out_pos + 16 - tail_len, (byte) 0);
+        return true;
+    }
+}
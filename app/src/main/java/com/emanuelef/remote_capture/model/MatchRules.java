@@ -0,0 +1,305 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+
+package com.emanuelef.remote_capture.model;
+
+import androidx.annotation.Nullable;
+
+import com.emanuelef.remote_capture.CoreUtils;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+/* Matches connections against a set of rules. This class does not depend on the Android framework,
+ * see MatchList for the rules persistence and their localized labels.
+ * The rules are indexed by type, so that matching a connection does not allocate:
+ *  - APP: a sorted array of the uids
+ *  - IP: a prefix trie, so the rules can also be CIDR subnets, e.g. "10.0.0.0/8"
+ *  - HOST/ROOT_DOMAIN: a trie of the domain labels. A ROOT_DOMAIN rule also matches all the
+ *    subdomains, e.g. "example.org" matches "a.b.example.org"
+ *  - PROTOCOL/COUNTRY: hash sets */
+public class MatchRules {
+    private final ArrayList<Rule> mRules = new ArrayList<>();
+    private final HashSet<String> mKeys = new HashSet<>();
+    private int[] mApps = new int[0];
+    private final IpPrefixTrie mIps = new IpPrefixTrie();
+    private final DomainTrie mDomains = new DomainTrie();
+    private final HashSet<String> mProtos = new HashSet<>();
+    private final HashSet<String> mCountries = new HashSet<>();
+
+    public enum RuleType {
+        APP,
+        IP,
+        HOST,
+        ROOT_DOMAIN,
+        PROTOCOL,
+        COUNTRY
+    }
+
+    public class Rule {
+        private final String mLabel;
+        private final RuleType mType;
+        private final Object mValue;
+
+        private Rule(RuleType tp, Object value) {
+            mLabel = makeRuleLabel(tp, value.toString());
+            mType = tp;
+            mValue = value;
+        }
+
+        public String getLabel() {
+            return mLabel;
+        }
+
+        public RuleType getType() {
+            return mType;
+        }
+
+        public Object getValue() {
+            return mValue;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if(!(obj instanceof Rule))
+                return super.equals(obj);
+
+            Rule other = (Rule) obj;
+            return((mType == other.mType) && (mValue.equals(other.mValue)));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mType.hashCode() + mValue.hashCode();
+        }
+    }
+
+    /* Returns the label of a new rule. Subclasses can override this to provide a localized label. */
+    protected String makeRuleLabel(RuleType tp, String value) {
+        return value;
+    }
+
+    private static class Serializer implements JsonSerializer<MatchRules> {
+        @Override
+        public JsonElement serialize(MatchRules src, Type typeOfSrc, JsonSerializationContext context) {
+            JsonObject result = new JsonObject();
+            JsonArray rulesArr = new JsonArray();
+
+            for(Rule rule : src.mRules) {
+                JsonObject ruleObject = new JsonObject();
+
+                ruleObject.add("type", new JsonPrimitive(rule.getType().name()));
+                ruleObject.add("value", new JsonPrimitive(rule.getValue().toString()));
+
+                rulesArr.add(ruleObject);
+            }
+
+            result.add("rules", rulesArr);
+            return result;
+        }
+    }
+
+    private void deserialize(JsonObject object) {
+        clear();
+
+        JsonArray ruleArray = object.getAsJsonArray("rules");
+        if(ruleArray == null)
+            return;
+
+        for(JsonElement el: ruleArray) {
+            JsonObject ruleObj = el.getAsJsonObject();
+            RuleType type;
+
+            try {
+                type = RuleType.valueOf(ruleObj.get("type").getAsString());
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+                continue;
+            }
+
+            String val = ruleObj.get("value").getAsString();
+            addRule(new Rule(type, val));
+        }
+    }
+
+    public void addApp(int uid)        { addRule(new Rule(RuleType.APP, uid)); }
+    public void addIp(String ip)       { addRule(new Rule(RuleType.IP, ip)); }
+    public void addHost(String info)   { addRule(new Rule(RuleType.HOST, CoreUtils.cleanDomain(info))); }
+    public void addProto(String proto) { addRule(new Rule(RuleType.PROTOCOL, proto)); }
+    public void addRootDomain(String domain)    { addRule(new Rule(RuleType.ROOT_DOMAIN, domain)); }
+    public void addCountry(String country_code) { addRule(new Rule(RuleType.COUNTRY, country_code)); }
+
+    static private String matchKey(RuleType tp, Object val) {
+        return tp + "@" + val;
+    }
+
+    private void addRule(Rule rule) {
+        String key = matchKey(rule.getType(), rule.getValue().toString());
+
+        if(mKeys.add(key)) {
+            mRules.add(rule);
+            indexRule(rule);
+        }
+    }
+
+    private void indexRule(Rule rule) {
+        String val = rule.getValue().toString();
+
+        switch(rule.getType()) {
+            case APP:
+                int uid;
+
+                try {
+                    // NOTE: the deserialized values are strings
+                    uid = Integer.parseInt(val);
+                } catch (NumberFormatException e) {
+                    break;
+                }
+
+                int pos = Arrays.binarySearch(mApps, uid);
+                if(pos < 0) {
+                    pos = -pos - 1;
+
+                    int[] apps = new int[mApps.length + 1];
+                    System.arraycopy(mApps, 0, apps, 0, pos);
+                    System.arraycopy(mApps, pos, apps, pos + 1, mApps.length - pos);
+                    apps[pos] = uid;
+                    mApps = apps;
+                }
+                break;
+            case IP:
+                // an invalid address is kept in the rules, but it never matches
+                mIps.add(val);
+                break;
+            case HOST:
+                mDomains.add(val, DomainTrie.EXACT);
+                break;
+            case ROOT_DOMAIN:
+                mDomains.add(val, DomainTrie.SUFFIX);
+                break;
+            case PROTOCOL:
+                mProtos.add(val);
+                break;
+            case COUNTRY:
+                mCountries.add(val);
+                break;
+        }
+    }
+
+    private void clearIndexes() {
+        mApps = new int[0];
+        mIps.clear();
+        mDomains.clear();
+        mProtos.clear();
+        mCountries.clear();
+    }
+
+    public void removeRules(List<Rule> rules) {
+        mRules.removeAll(rules);
+
+        for(Rule rule: rules) {
+            String key = matchKey(rule.getType(), rule.getValue().toString());
+            mKeys.remove(key);
+        }
+
+        // The rules are rarely removed, so just rebuild the indexes
+        clearIndexes();
+        for(Rule rule: mRules)
+            indexRule(rule);
+    }
+
+    public boolean matchesApp(int uid) {
+        return(Arrays.binarySearch(mApps, uid) >= 0);
+    }
+
+    public boolean matchesIP(String ip) {
+        return mIps.contains(ip);
+    }
+
+    public boolean matchesProto(String l7proto) {
+        return mProtos.contains(l7proto);
+    }
+
+    /* Matches the HOST rules, ignoring the "www." prefix */
+    public boolean matchesHost(String host) {
+        return mDomains.matches(host, DomainTrie.EXACT);
+    }
+
+    /* Matches the ROOT_DOMAIN rules. The domain can also be a subdomain of the rules. */
+    public boolean matchesRootDomain(String domain) {
+        return mDomains.matches(domain, DomainTrie.SUFFIX);
+    }
+
+    public boolean matchesCountry(String country_code) {
+        return mCountries.contains(country_code);
+    }
+
+    public boolean matches(ConnectionDescriptor conn) {
+        if(mRules.isEmpty())
+            return false;
+
+        return(matchesApp(conn.uid) ||
+                matchesIP(conn.dst_ip) ||
+                matchesProto(conn.l7proto) ||
+                matchesCountry(conn.country) ||
+                mDomains.matches(conn.info, DomainTrie.EXACT | DomainTrie.SUFFIX));
+    }
+
+    public Iterator<Rule> iterRules() {
+        return mRules.iterator();
+    }
+
+    public void clear() {
+        mRules.clear();
+        mKeys.clear();
+        clearIndexes();
+    }
+
+    public boolean isEmpty() {
+        return(mRules.size() == 0);
+    }
+
+    public String toJson() {
+        Gson gson = new GsonBuilder().registerTypeAdapter(getClass(), new Serializer())
+                .create();
+
+        String serialized = gson.toJson(this);
+
+        return serialized;
+    }
+
+    public void fromJson(String json_str) {
+        JsonObject obj = JsonParser.parseString(json_str).getAsJsonObject();
+        deserialize(obj);
+    }
+}
@@ -28,6 +28,7 @@ import com.emanuelef.remote_capture.Utils;
 public class Prefs {
     public static final String DUMP_HTTP_SERVER = "http_server";
     public static final String DUMP_UDP_EXPORTER = "udp_exporter";
+    public static final String DUMP_TCP_EXPORTER = "tcp_exporter";
     public static final String DUMP_PCAP_FILE = "pcap_file";
     public static final String PREF_COLLECTOR_IP_KEY = "collector_ip_address";
     public static final String PREF_COLLECTOR_PORT_KEY = "collector_port";
@@ -49,12 +50,42 @@ public class Prefs {
     public static final String PREF_MALWARE_WHITELIST = "maware_whitelist";
     public static final String PREF_PCAPDROID_TRAILER = "pcapdroid_trailer";
     public static final String PREF_START_AT_BOOT = "start_at_boot";
+    public static final String PREF_HEADLESS_MODE = "headless_mode";
+    public static final String PREF_PCAP_INPUT = "pcap_input";
+    public static final String PREF_PCAPNG_ENABLED = "pcapng_format";
+    public static final String PREF_PCAP_ROTATE_SIZE = "pcap_rotate_size";
+    public static final String PREF_PCAP_ROTATE_INTERVAL = "pcap_rotate_interval";
+    public static final String PREF_PCAP_MAX_FILES = "pcap_max_files";
+    public static final String PREF_PCAP_COMPRESSION = "pcap_compression";
+    public static final String PREF_PCAP_COMPRESSION_LEVEL = "pcap_compression_level";
+    public static final String PREF_UDP_BATCH_MTU = "udp_batch_mtu";
+    public static final String PREF_HTTP_CLIENT_BUFFER = "http_client_buffer";
+    public static final String PREF_HTTP_SLOW_CLIENT_POLICY = "http_slow_client_policy";
+    public static final String PREF_PCAP_SNAPLEN = "pcap_snaplen";
+    public static final String PREF_PCAP_PAYLOAD_BYTES = "pcap_payload_bytes";
+    public static final String PREF_PCAP_SAMPLING = "pcap_sampling";
+    public static final String PREF_PCAP_SAMPLING_VALUE = "pcap_sampling_value";
+    public static final String PREF_PCAP_INDEX = "pcap_index";
+    public static final String PREF_PACKET_STORE = "packet_store";
+    public static final String PREF_PACKET_STORE_SIZE = "packet_store_size";
+    public static final String PREF_IPFIX_COLLECTOR_IP = "ipfix_collector_ip_address";
+    public static final String PREF_IPFIX_COLLECTOR_PORT = "ipfix_collector_port";
+    public static final String PREF_IPFIX_ACTIVE_TIMEOUT = "ipfix_active_timeout";
 
     public enum DumpMode {
         NONE,
         HTTP_SERVER,
         PCAP_FILE,
-        UDP_EXPORTER
+        UDP_EXPORTER,
+        TCP_EXPORTER
+    }
+
+    // NOTE: must match the native pcap_sampling_t
+    public enum PcapSampling {
+        NONE,
+        FIRST_PACKETS,
+        ONE_IN_N,
+        BYTES
     }
 
     public static DumpMode getDumpMode(String pref) {
@@ -64,10 +95,23 @@ public class Prefs {
             return(DumpMode.PCAP_FILE);
         else if(pref.equals(DUMP_UDP_EXPORTER))
             return(DumpMode.UDP_EXPORTER);
+        else if(pref.equals(DUMP_TCP_EXPORTER))
+            return(DumpMode.TCP_EXPORTER);
         else
             return(DumpMode.NONE);
     }
 
+    public static PcapSampling getPcapSampling(String pref) {
+        if(pref.equals("first_packets"))
+            return(PcapSampling.FIRST_PACKETS);
+        else if(pref.equals("one_in_n"))
+            return(PcapSampling.ONE_IN_N);
+        else if(pref.equals("bytes"))
+            return(PcapSampling.BYTES);
+        else
+            return(PcapSampling.NONE);
+    }
+
     /* Prefs with defaults */
     public static String getCollectorIp(SharedPreferences p) { return(p.getString(PREF_COLLECTOR_IP_KEY, "127.0.0.1")); }
     public static int getCollectorPort(SharedPreferences p)  { return(Integer.parseInt(p.getString(PREF_COLLECTOR_PORT_KEY, "1234"))); }
@@ -81,6 +125,7 @@ public class Prefs {
     public static boolean useEnglishLanguage(SharedPreferences p){ return("english".equals(p.getString(PREF_APP_LANGUAGE, "system")));}
     public static boolean isRootCaptureEnabled(SharedPreferences p) { return(Utils.isRootAvailable() && p.getBoolean(PREF_ROOT_CAPTURE, false)); }
     public static boolean isPcapdroidTrailerEnabled(SharedPreferences p) { return(p.getBoolean(PREF_PCAPDROID_TRAILER, false)); }
+    public static boolean isPcapngEnabled(SharedPreferences p)    { return(p.getBoolean(PREF_PCAPNG_ENABLED, false)); }
     public static String getCaptureInterface(SharedPreferences p) { return(p.getString(PREF_CAPTURE_INTERFACE, "@inet")); }
     public static boolean isMalwareDetectionEnabled(Context ctx, SharedPreferences p) {
         return(Billing.newInstance(ctx).isPurchased(Billing.MALWARE_DETECTION_SKU)
@@ -88,4 +133,6 @@ public class Prefs {
     }
     public static boolean startAtBoot(SharedPreferences p)        { return(p.getBoolean(PREF_START_AT_BOOT, false)); }
     public static String getPCAPUri(SharedPreferences p)          { return(p.getString(PREF_PCAP_URI, "")); }
+    public static boolean isHeadlessModeEnabled(SharedPreferences p) { return(p.getBoolean(PREF_HEADLESS_MODE, false)); }
+    public static boolean isPacketStoreEnabled(SharedPreferences p) { return(p.getBoolean(PREF_PACKET_STORE, false)); }
 }
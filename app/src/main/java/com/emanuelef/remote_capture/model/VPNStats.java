@@ -19,9 +19,8 @@
 
 package com.emanuelef.remote_capture.model;
 
-import java.io.Serializable;
-
-public class VPNStats implements Serializable {
+/* A snapshot of the capture stats, filled by the native code. */
+public class VPNStats {
     public String alloc_summary;
     public long bytes_sent;
     public long bytes_rcvd;
@@ -19,11 +19,8 @@
 
 package com.emanuelef.remote_capture.pcap_dump;
 
-import com.emanuelef.remote_capture.CaptureService;
-import com.emanuelef.remote_capture.Utils;
-
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -31,17 +28,49 @@ import java.util.concurrent.locks.ReentrantLock;
 /* Provides an input stream to read data from bytes chunks produced
    asynchronously via produceData(). bytes[] chunks are used instead of a
    single bytes[] in order to avoid excessive data copies.
+   The chunks are kept into a bounded ring, up to max_bytes. When the reader cannot keep up,
+   the SlowClientPolicy determines what happens to the new data. Chunks are always dropped
+   as a whole, so the reader still gets a valid PCAP stream.
+   NOTE: this class must not depend on the Android framework, as it is also built by the benchmark module.
  */
 public class ChunkedInputStream extends InputStream {
+    private static final int MAX_CHUNKS = 256;
     final Lock mLock = new ReentrantLock();
     final Condition newData = mLock.newCondition();
-    ArrayList<byte[]> mChunks = new ArrayList<byte[]>();
+    final Condition spaceAvailable = mLock.newCondition();
+    private final byte[][] mRing = new byte[MAX_CHUNKS][];
+    private final long mMaxBytes;
+    private final SlowClientPolicy mPolicy;
+    private byte[] mHeader;
+    private int mHeaderPos = 0;
+    private int mHead = 0;
+    private int mNumChunks = 0;
+    private long mQueuedBytes = 0;
+    private long mDroppedBytes = 0;
     int mCurChunkIndex = 0;
     boolean hasFinished = false;
+    private boolean mDisconnected = false;
+
+    public enum SlowClientPolicy {
+        DROP_OLDEST,    // drop the oldest unread chunks
+        DISCONNECT,     // terminate the stream with an error
+        BLOCK           // block the producer until the reader catches up
+    }
+
+    /* header: the first chunk of the stream, e.g. the PCAP header
+     * max_bytes: the max amount of data to queue, the last chunk is always queued when the queue is empty */
+    public ChunkedInputStream(byte[] header, long max_bytes, SlowClientPolicy policy) {
+        mHeader = header;
+        mMaxBytes = max_bytes;
+        mPolicy = policy;
+    }
 
-    public ChunkedInputStream() {
-        // Send the PCAP header as the first chunk
-        mChunks.add(CaptureService.getPcapHeader());
+    public static SlowClientPolicy parsePolicy(String val) {
+        if(val.equals("disconnect"))
+            return SlowClientPolicy.DISCONNECT;
+        else if(val.equals("block"))
+            return SlowClientPolicy.BLOCK;
+        return SlowClientPolicy.DROP_OLDEST;
     }
 
     /* Mark the termination of stream */
@@ -51,27 +80,146 @@ public class ChunkedInputStream extends InputStream {
         try {
             hasFinished = true;
             newData.signal();
+            spaceAvailable.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /* Called when the response is terminated, e.g. when the client disconnects */
+    @Override
+    public void close() {
+        mLock.lock();
+
+        try {
+            hasFinished = true;
+            clearChunks();
+            newData.signal();
+            spaceAvailable.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /* True if the stream was stopped or closed by the reader */
+    public boolean isFinished() {
+        mLock.lock();
+
+        try {
+            return(hasFinished);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /* The amount of data produced but not yet read */
+    public long getLag() {
+        mLock.lock();
+
+        try {
+            return(mQueuedBytes - mCurChunkIndex);
         } finally {
             mLock.unlock();
         }
     }
 
-    /* Produce data to be read from the stream */
+    public long getDroppedBytes() {
+        mLock.lock();
+
+        try {
+            return(mDroppedBytes);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private boolean isFull(int data_len) {
+        return((mNumChunks == MAX_CHUNKS) || ((mNumChunks > 0) && (mQueuedBytes + data_len > mMaxBytes)));
+    }
+
+    private void clearChunks() {
+        while(mNumChunks > 0) {
+            mRing[mHead] = null;
+            mHead = (mHead + 1) % MAX_CHUNKS;
+            mNumChunks--;
+        }
+        mQueuedBytes = 0;
+        mCurChunkIndex = 0;
+    }
+
+    /* Drops the oldest unread chunk. Returns false if there are no chunks to drop. */
+    private boolean dropOldest() {
+        int idx = mHead;
+
+        if(mCurChunkIndex > 0) {
+            // The head chunk is being read, drop the next one and move the head chunk in its slot
+            if(mNumChunks < 2)
+                return(false);
+
+            idx = (mHead + 1) % MAX_CHUNKS;
+        } else if(mNumChunks < 1)
+            return(false);
+
+        byte[] dropped = mRing[idx];
+
+        if(idx != mHead)
+            mRing[idx] = mRing[mHead];
+
+        mRing[mHead] = null;
+        mHead = (mHead + 1) % MAX_CHUNKS;
+        mNumChunks--;
+        mQueuedBytes -= dropped.length;
+        mDroppedBytes += dropped.length;
+        return(true);
+    }
+
+    /* Produce data to be read from the stream. With the BLOCK policy, this blocks until
+     * there is enough space for the data. */
     public void produceData(byte data[]) {
         mLock.lock();
         try {
             if(hasFinished)
                 return;
 
-            mChunks.add(data);
+            if(isFull(data.length)) {
+                switch(mPolicy) {
+                    case DROP_OLDEST:
+                        while(isFull(data.length) && dropOldest());
+
+                        if(isFull(data.length)) {
+                            // the partially read chunk is bigger than the free space
+                            mDroppedBytes += data.length;
+                            return;
+                        }
+                        break;
+                    case DISCONNECT:
+                        mDisconnected = true;
+                        hasFinished = true;
+                        clearChunks();
+                        newData.signal();
+                        return;
+                    case BLOCK:
+                        while(!hasFinished && isFull(data.length))
+                            spaceAvailable.await();
+
+                        if(hasFinished)
+                            return;
+                        break;
+                }
+            }
+
+            mRing[(mHead + mNumChunks) % MAX_CHUNKS] = data;
+            mNumChunks++;
+            mQueuedBytes += data.length;
             newData.signal();
+        } catch (InterruptedException ignored) {
         } finally {
             mLock.unlock();
         }
     }
 
     @Override
-    public int read(byte[] buf, int off, int maxlen) {
+    public int read(byte[] buf, int off, int maxlen) throws IOException {
         int out_size = 0;
 
         if(maxlen <= 0)
@@ -79,39 +227,48 @@ public class ChunkedInputStream extends InputStream {
 
         mLock.lock();
         try {
+            if(mHeader != null) {
+                int copy_length = Math.min(maxlen, mHeader.length - mHeaderPos);
+                System.arraycopy(mHeader, mHeaderPos, buf, off, copy_length);
+                mHeaderPos += copy_length;
+
+                if(mHeaderPos >= mHeader.length)
+                    mHeader = null;
+                if(copy_length > 0)
+                    return(copy_length);
+            }
+
             /* Possibly wait for new data */
-            while((!hasFinished) && (mChunks.size() == 0))
+            while((!hasFinished) && (mNumChunks == 0))
                 newData.await();
 
-            if(mChunks.size() > 0) {
+            if(mDisconnected)
+                throw new IOException("Client too slow, disconnecting");
+
+            if(mNumChunks > 0) {
                 /* At least one byte will be returned here. Do not call await() below,
                    just return the available bytes to provide a more responsive transfer. */
 
-                while((mChunks.size() > 0) && (maxlen > 0)) {
-                    byte[] chunk = mChunks.get(0);
-
-                    if(off > 0) {
-                        // skip bytes due to the offset
-                        int toSkip = Math.min(off, chunk.length - mCurChunkIndex);
-                        off -= toSkip;
-                        mCurChunkIndex += toSkip;
-                    }
+                while((mNumChunks > 0) && (maxlen > 0)) {
+                    byte[] chunk = mRing[mHead];
+                    int copy_length = Math.min(maxlen, chunk.length - mCurChunkIndex);
 
-                    if (mCurChunkIndex < chunk.length) {
-                        int copy_length = Math.min(maxlen, chunk.length - mCurChunkIndex);
-                        System.arraycopy(chunk, mCurChunkIndex, buf, out_size, copy_length);
-                        out_size += copy_length;
-                        mCurChunkIndex += copy_length;
-                        maxlen -= copy_length;
-                    }
+                    System.arraycopy(chunk, mCurChunkIndex, buf, off + out_size, copy_length);
+                    out_size += copy_length;
+                    mCurChunkIndex += copy_length;
+                    maxlen -= copy_length;
 
-                    if (mCurChunkIndex >= chunk.length) {
+                    if(mCurChunkIndex >= chunk.length) {
                         // next chunk
-                        mChunks.remove(0);
+                        mRing[mHead] = null;
+                        mHead = (mHead + 1) % MAX_CHUNKS;
+                        mNumChunks--;
+                        mQueuedBytes -= chunk.length;
                         mCurChunkIndex = 0;
                     }
                 }
 
+                spaceAvailable.signal();
                 return(out_size);
             }
 
@@ -125,13 +282,13 @@ public class ChunkedInputStream extends InputStream {
     }
 
     @Override
-    public int read() {
+    public int read() throws IOException {
         byte[] buf = new byte[1];
         int rv = read(buf, 0, 1);
 
         if(rv == -1)
             return(-1);
         else
-            return(buf[0]);
+            return(buf[0] & 0xFF);
     }
 }
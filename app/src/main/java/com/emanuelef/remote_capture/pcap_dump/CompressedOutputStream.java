@@ -0,0 +1,214 @@
+package com.emanuelef.remote_capture.pcap_dump;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
+
+/* Compresses the data written to it into the provided stream. The compression is performed on a
+ * dedicated writer thread, so that it does not slow down the capture thread, which calls dumpData.
+ * The data is passed to the writer via a bounded queue: when the writer cannot keep up, write blocks.
+ * Errors of the writer are reported by the next write/close.
+ * NOTE: this class must not depend on the Android framework, as it is also built by the benchmark module. */
+public class CompressedOutputStream extends OutputStream {
+    private static final int QUEUE_SIZE = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] END_MARKER = new byte[0];
+    private final BlockingQueue<byte[]> mQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final CountingOutputStream mOutput;
+    private final OutputStream mCompressor;
+    private final Thread mWriter;
+    private volatile IOException mError;
+    private boolean mClosed;
+    private long mInBytes;
+    private long mCompressNs;
+
+    public enum Codec {
+        NONE,
+        GZIP,
+        LZ4
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+            mCount += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    /* level: the compression level, -1 for the codec default.
+     *   GZIP: 1 (fastest) - 9 (best)
+     *   LZ4: 0 for the fast compressor, 1 - 17 for the high compression one */
+    public CompressedOutputStream(OutputStream out, Codec codec, int level) throws IOException {
+        mOutput = new CountingOutputStream(out);
+        final int clamped_level = clampLevel(codec, level);
+
+        if(codec == Codec.GZIP) {
+            mCompressor = new GZIPOutputStream(mOutput, BUFFER_SIZE) {{
+                def.setLevel(clamped_level);
+            }};
+        } else if(codec == Codec.LZ4) {
+            // Only use the Java implementation, as the bundled native libraries do not target Android
+            LZ4Factory factory = LZ4Factory.fastestJavaInstance();
+            LZ4Compressor compressor = (clamped_level > 0) ? factory.highCompressor(clamped_level) : factory.fastCompressor();
+
+            mCompressor = new LZ4FrameOutputStream(mOutput, LZ4FrameOutputStream.BLOCKSIZE.SIZE_256KB, -1L,
+                    compressor, XXHashFactory.fastestJavaInstance().hash32(),
+                    LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE);
+        } else
+            throw new IllegalArgumentException("Invalid codec: " + codec);
+
+        mWriter = new Thread(this::writerLoop, "PcapCompressor");
+        mWriter.start();
+    }
+
+    /* Clamps the level to the range of the codec, see the constructor. Out of range levels would
+     * make the compressors throw. */
+    public static int clampLevel(Codec codec, int level) {
+        if(level < 0)
+            return -1;
+
+        switch(codec) {
+            case GZIP:  return Math.min(level, 9);
+            case LZ4:   return Math.min(level, 17);
+            default:    return -1;
+        }
+    }
+
+    public static Codec parseCodec(String val) {
+        if(val.equals("gzip"))
+            return Codec.GZIP;
+        else if(val.equals("lz4"))
+            return Codec.LZ4;
+        return Codec.NONE;
+    }
+
+    /* Returns the extension to append to the file name */
+    public static String getExtension(Codec codec) {
+        switch(codec) {
+            case GZIP: return ".gz";
+            case LZ4: return ".lz4";
+            default: return "";
+        }
+    }
+
+    private void writerLoop() {
+        try {
+            while(true) {
+                byte[] data = mQueue.take();
+
+                if(data == END_MARKER)
+                    break;
+
+                if(mError == null) {
+                    long start = System.nanoTime();
+                    mCompressor.write(data);
+                    mCompressNs += System.nanoTime() - start;
+                }
+            }
+        } catch (IOException e) {
+            mError = e;
+
+            // Keep draining the queue to unblock the producer until the END_MARKER
+            try {
+                while(mQueue.take() != END_MARKER);
+            } catch (InterruptedException ignored) {}
+        } catch (InterruptedException ignored) {}
+    }
+
+    private void checkError() throws IOException {
+        IOException err = mError;
+
+        if(err != null)
+            throw err;
+    }
+
+    private void enqueue(byte[] data) throws IOException {
+        try {
+            mQueue.put(data);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkError();
+
+        if(len <= 0)
+            return;
+
+        // The caller may reuse the buffer, so it must be copied
+        byte[] data = new byte[len];
+        System.arraycopy(b, off, data, 0, len);
+
+        enqueue(data);
+        mInBytes += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(mClosed)
+            return;
+        mClosed = true;
+
+        try {
+            enqueue(END_MARKER);
+            mWriter.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            // Writes the trailer and closes the underlying stream
+            if(mError == null)
+                mCompressor.close();
+            else
+                mOutput.close();
+        }
+
+        checkError();
+    }
+
+    /* Must be called after close */
+    public String getStats() {
+        return String.format(Locale.ROOT, "%d -> %d bytes (%.1f%%), compression time: %d ms",
+                mInBytes, mOutput.mCount, (mInBytes > 0) ? (mOutput.mCount * 100.0 / mInBytes) : 0,
+                mCompressNs / 1000000);
+    }
+}
@@ -0,0 +1,206 @@
+package com.emanuelef.remote_capture.pcap_dump;
+
+import com.emanuelef.remote_capture.ConnectionsRegister;
+import com.emanuelef.remote_capture.interfaces.ConnectionsListener;
+import com.emanuelef.remote_capture.interfaces.StatsListener;
+import com.emanuelef.remote_capture.model.ConnectionDescriptor;
+import com.emanuelef.remote_capture.model.VPNStats;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Locale;
+
+/* Streams the connections lifecycle events and the capture stats as JSON objects, one per line
+ * (NDJSON) or as Server-Sent Events. The events of a ConnectionsRegister update are batched into a
+ * single chunk of the underlying ChunkedInputStream. Event types:
+ *   new: a new connection, also sent for the connections already in the register on start
+ *   update: the connection stats or info changed
+ *   close: the connection was closed
+ *   stats: the capture stats, sent periodically
+ * NOTE: this class must not depend on the Android framework, as it is also built by the benchmark module. */
+public class EventsStream implements ConnectionsListener, StatsListener {
+    private final ConnectionsRegister mReg;   // null in headless mode
+    private final ChunkedInputStream mStream;
+    private final boolean mSse;
+    private final StringWriter mBatch = new StringWriter();
+    private final HashSet<Integer> mOpenConns = new HashSet<>();
+    private volatile Runnable mCloseListener;
+
+    /* sse: true to use the Server-Sent Events format, false for NDJSON */
+    public EventsStream(ConnectionsRegister reg, boolean sse, long max_bytes) {
+        mReg = reg;
+        mSse = sse;
+
+        // Never block the producers, as the register callbacks are invoked with its lock held
+        mStream = new ChunkedInputStream(new byte[0], max_bytes, ChunkedInputStream.SlowClientPolicy.DROP_OLDEST) {
+            @Override
+            public void close() {
+                super.close();
+
+                Runnable listener = mCloseListener;
+                if(listener != null)
+                    listener.run();
+            }
+        };
+    }
+
+    /* Called when the reader closes the stream, e.g. when the client disconnects */
+    public void setCloseListener(Runnable listener) {
+        mCloseListener = listener;
+    }
+
+    public ChunkedInputStream getInputStream() {
+        return mStream;
+    }
+
+    /* Sends the current connections and starts listening for the changes */
+    public void start() {
+        if(mReg == null)
+            return;
+
+        synchronized (mReg) {
+            for(int i = 0; i < mReg.getConnCount(); i++) {
+                ConnectionDescriptor conn = mReg.getConn(i);
+
+                if(conn != null)
+                    onConnection(true, conn);
+            }
+            flush();
+
+            mReg.addListener(this);
+        }
+    }
+
+    public void stop() {
+        if(mReg != null)
+            mReg.removeListener(this);
+        mStream.stop();
+    }
+
+    private void beginEvent(String type) {
+        if(mSse)
+            mBatch.append("event: ").append(type).append("\ndata: ");
+    }
+
+    private void endEvent() {
+        mBatch.append(mSse ? "\n\n" : "\n");
+    }
+
+    private synchronized void flush() {
+        if(mBatch.getBuffer().length() == 0)
+            return;
+
+        mStream.produceData(mBatch.toString().getBytes(StandardCharsets.UTF_8));
+        mBatch.getBuffer().setLength(0);
+    }
+
+    private synchronized void connEvent(String type, ConnectionDescriptor conn) {
+        beginEvent(type);
+
+        try {
+            JsonWriter w = new JsonWriter(mBatch);
+            w.beginObject();
+            w.name("type").value(type);
+            w.name("id").value(conn.incr_id);
+            w.name("uid").value(conn.uid);
+            w.name("ipver").value(conn.ipver);
+            w.name("ipproto").value(conn.ipproto);
+            w.name("src_ip").value(conn.src_ip);
+            w.name("src_port").value(conn.src_port);
+            w.name("dst_ip").value(conn.dst_ip);
+            w.name("dst_port").value(conn.dst_port);
+            w.name("first_seen").value(conn.first_seen);
+            w.name("last_seen").value(conn.last_seen);
+            w.name("sent_bytes").value(conn.sent_bytes);
+            w.name("rcvd_bytes").value(conn.rcvd_bytes);
+            w.name("sent_pkts").value(conn.sent_pkts);
+            w.name("rcvd_pkts").value(conn.rcvd_pkts);
+            w.name("status").value(conn.getStatus().name()
+                    .substring(7).toLowerCase(Locale.ROOT)); // STATUS_OPEN -> open
+            w.name("l7proto").value(conn.l7proto);
+            w.name("info").value(conn.info);
+            w.name("url").value(conn.url);
+            w.name("country").value(conn.country);
+            w.name("asn").value(conn.asn.number);
+            w.name("blacklisted").value(conn.isBlacklisted());
+            w.endObject();
+            w.flush();
+        } catch (IOException ignored) {
+            // not thrown by the StringWriter
+        }
+
+        endEvent();
+    }
+
+    private void onConnection(boolean is_new, ConnectionDescriptor conn) {
+        boolean closed = (conn.status >= ConnectionDescriptor.CONN_STATUS_CLOSED);
+
+        if(is_new || mOpenConns.contains(conn.incr_id))
+            connEvent(is_new ? "new" : (closed ? "close" : "update"), conn);
+
+        if(closed)
+            mOpenConns.remove(conn.incr_id);
+        else if(is_new)
+            mOpenConns.add(conn.incr_id);
+    }
+
+    @Override
+    public void connectionsChanges(int num_connetions) {}
+
+    @Override
+    public void connectionsAdded(int start, ConnectionDescriptor[] conns) {
+        for(ConnectionDescriptor conn: conns)
+            onConnection(true, conn);
+        flush();
+    }
+
+    @Override
+    public void connectionsRemoved(int start, ConnectionDescriptor[] conns) {
+        // Removed from the register, not from the capture
+        for(ConnectionDescriptor conn: conns) {
+            if(conn != null)
+                mOpenConns.remove(conn.incr_id);
+        }
+    }
+
+    @Override
+    public void connectionsUpdated(int[] positions) {
+        for(int pos: positions) {
+            ConnectionDescriptor conn = mReg.getConn(pos);
+
+            if(conn != null)
+                onConnection(false, conn);
+        }
+        flush();
+    }
+
+    @Override
+    public void onStatsUpdate(VPNStats stats) {
+        synchronized (this) {
+            beginEvent("stats");
+
+            try {
+                JsonWriter w = new JsonWriter(mBatch);
+                w.beginObject();
+                w.name("type").value("stats");
+                w.name("bytes_sent").value(stats.bytes_sent);
+                w.name("bytes_rcvd").value(stats.bytes_rcvd);
+                w.name("pkts_sent").value(stats.pkts_sent);
+                w.name("pkts_rcvd").value(stats.pkts_rcvd);
+                w.name("pkts_dropped").value(stats.pkts_dropped);
+                w.name("dropped_conns").value(stats.num_dropped_conns);
+                w.name("active_conns").value(stats.active_conns);
+                w.name("tot_conns").value(stats.tot_conns);
+                w.name("dns_queries").value(stats.num_dns_queries);
+                w.endObject();
+                w.flush();
+            } catch (IOException ignored) {}
+
+            endEvent();
+            flush();
+        }
+    }
+}
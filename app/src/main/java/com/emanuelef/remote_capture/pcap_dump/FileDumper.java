@@ -8,6 +8,7 @@ import com.emanuelef.remote_capture.CaptureService;
 import com.emanuelef.remote_capture.Utils;
 import com.emanuelef.remote_capture.interfaces.PcapDumper;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -15,12 +16,23 @@ public class FileDumper implements PcapDumper {
     public static final String TAG = "FileDumper";
     private final Context mContext;
     private final Uri mPcapUri;
+    private final CompressedOutputStream.Codec mCodec;
+    private final int mCompressionLevel;
+    private final File mIndexFile;
     private boolean mSendHeader;
     private OutputStream mOutputStream;
+    private FlowIndex mIndex;
+    private long mOffset;
 
-    public FileDumper(Context ctx, Uri pcap_uri) {
+    /* index_file: if not null, write the FlowIndex of the PCAP into this file. Requires an
+     * uncompressed PCAP. */
+    public FileDumper(Context ctx, Uri pcap_uri, CompressedOutputStream.Codec codec, int compression_level,
+                      File index_file) {
         mContext = ctx;
         mPcapUri = pcap_uri;
+        mCodec = codec;
+        mCompressionLevel = compression_level;
+        mIndexFile = (codec == CompressedOutputStream.Codec.NONE) ? index_file : null;
         mSendHeader = true;
     }
 
@@ -28,11 +40,43 @@ public class FileDumper implements PcapDumper {
     public void startDumper() throws IOException {
         Log.d(TAG, "PCAP URI: " + mPcapUri);
         mOutputStream = mContext.getContentResolver().openOutputStream(mPcapUri);
+
+        if(mCodec != CompressedOutputStream.Codec.NONE)
+            mOutputStream = new CompressedOutputStream(mOutputStream, mCodec, mCompressionLevel);
     }
 
     @Override
     public void stopDumper() throws IOException {
         mOutputStream.close();
+        closeIndex();
+
+        if(mOutputStream instanceof CompressedOutputStream)
+            Log.d(TAG, "Compression stats: " + ((CompressedOutputStream) mOutputStream).getStats());
+    }
+
+    private void closeIndex() {
+        if(mIndex == null)
+            return;
+
+        try {
+            mIndex.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close the index: " + e.getMessage());
+        }
+        mIndex = null;
+    }
+
+    private void indexData(byte[] data) {
+        if(mIndex == null)
+            return;
+
+        try {
+            mIndex.addRecords(data, mOffset);
+        } catch (IOException e) {
+            // The PCAP is still valid, just stop indexing it
+            Log.w(TAG, "Index write failed: " + e.getMessage());
+            closeIndex();
+        }
     }
 
     @Override
@@ -44,9 +88,22 @@ public class FileDumper implements PcapDumper {
     public void dumpData(byte[] data) throws IOException {
         if(mSendHeader) {
             mSendHeader = false;
-            mOutputStream.write(CaptureService.getPcapHeader());
+
+            byte[] hdr = CaptureService.getPcapHeader();
+            mOutputStream.write(hdr);
+            mOffset = hdr.length;
+
+            if(mIndexFile != null) {
+                try {
+                    mIndex = new FlowIndex(mIndexFile, hdr);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not create the index: " + e.getMessage());
+                }
+            }
         }
 
         mOutputStream.write(data);
+        indexData(data);
+        mOffset += data.length;
     }
 }
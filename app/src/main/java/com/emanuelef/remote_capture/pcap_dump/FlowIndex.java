@@ -0,0 +1,336 @@
+package com.emanuelef.remote_capture.pcap_dump;
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/* A sidecar index of a PCAP file, e.g. dump.pcap -> dump.pcap.idx, which allows to extract the
+ * packets of a connection, or of a time range, by seeking into the PCAP file instead of scanning it.
+ * The index is written incrementally, along with the PCAP records. All the fields are little endian:
+ *
+ *   header:  [magic: "PDIX" (4) | version (2) | flags (2) | pcap_hdr_len (4) | reserved (4)]
+ *   entries: [flow_key (8) | rec_offset (8) | prev_entry (4) | ts_sec (4)], one per record
+ *   footer:  [flow_key (8) | last_entry (4) | num_entries (4)], one per flow
+ *   trailer: [footer_offset (8) | num_flows (4) | magic: "PDIE" (4)]
+ *
+ * The prev_entry links the entries of the same flow, from the most recent one, so the records of a
+ * flow are located by following the chain from the footer last_entry. The footer and trailer are
+ * written on close: if missing, e.g. after a crash, the entries are scanned instead.
+ * The flow key is a direction independent hash of the 5-tuple, see PcapRecordFilter.getFlowKey.
+ * The entries are in the capture order, so the ts_sec are sorted unless the system clock changes. */
+public class FlowIndex {
+    public static final String EXTENSION = ".idx";
+    private static final int MAGIC = 0x58494450;           // "PDIX"
+    private static final int TRAILER_MAGIC = 0x45494450;   // "PDIE"
+    private static final int VERSION = 1;
+    private static final int FLAG_PCAPNG = 0x1;
+    private static final int HDR_SIZE = 16;
+    private static final int ENTRY_SIZE = 24;
+    private static final int FLOW_SIZE = 16;
+    private static final int TRAILER_SIZE = 16;
+    private static final int NO_ENTRY = -1;
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final int PCAPNG_SHB_TYPE = 0x0a0d0d0a;
+    private static final int ETH_HDR_SIZE = 14;
+    private static final int MAX_RECORD_SIZE = 256 * 1024;  // sanity limit on the lengths read from the files
+
+    /* Writer */
+    private final OutputStream mOut;
+    private final boolean mPcapngFormat;
+    private final boolean mHasEthHdr;
+    private final PcapRecordCursor mCursor;
+    private final ByteBuffer mEntry = ByteBuffer.allocate(ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final HashMap<Long, int[]> mFlows = new HashMap<>();  // flow_key -> [last_entry, num_entries]
+    private int mNumEntries;
+
+    /* Creates the index of a new PCAP file, which starts with the pcap_header */
+    public FlowIndex(File idx_file, byte[] pcap_header) throws IOException {
+        ByteBuffer hdr = ByteBuffer.wrap(pcap_header).order(ByteOrder.nativeOrder());
+
+        mPcapngFormat = (hdr.getInt(0) == PCAPNG_SHB_TYPE);
+
+        // 20: pcap_hdr_s.network, the PCAPdroid trailer adds a bogus ethernet header
+        mHasEthHdr = !mPcapngFormat && (hdr.getInt(20) == LINKTYPE_ETHERNET);
+        mCursor = new PcapRecordCursor(mPcapngFormat);
+        mOut = new BufferedOutputStream(new FileOutputStream(idx_file), 64 * 1024);
+
+        ByteBuffer buf = ByteBuffer.allocate(HDR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC);
+        buf.putShort((short) VERSION);
+        buf.putShort((short) (mPcapngFormat ? FLAG_PCAPNG : 0));
+        buf.putInt(pcap_header.length);
+        buf.putInt(0);
+        mOut.write(buf.array());
+    }
+
+    public static File getIndexFile(File pcap_file) {
+        return new File(pcap_file.getPath() + EXTENSION);
+    }
+
+    /* Indexes the records of data, which was written at data_offset of the PCAP file */
+    public void addRecords(byte[] data, long data_offset) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+        PcapRecordCursor cursor = mCursor.reset(data);
+
+        while(cursor.next()) {
+            if(!cursor.isPacket())
+                continue;
+
+            int pkt_pos = cursor.getPacketOffset();
+            int pkt_len = cursor.getPacketLength();
+
+            if(mHasEthHdr) {
+                pkt_pos += ETH_HDR_SIZE;
+                pkt_len -= ETH_HDR_SIZE;
+            }
+
+            addEntry(PcapRecordFilter.getFlowKey(buf, pkt_pos, pkt_len),
+                    data_offset + cursor.getOffset(), cursor.getTimestampSec());
+        }
+    }
+
+    private void addEntry(long flow_key, long rec_offset, long ts_sec) throws IOException {
+        int[] flow = mFlows.get(flow_key);
+
+        if(flow == null) {
+            flow = new int[] {NO_ENTRY, 0};
+            mFlows.put(flow_key, flow);
+        }
+
+        mEntry.clear();
+        mEntry.putLong(flow_key);
+        mEntry.putLong(rec_offset);
+        mEntry.putInt(flow[0]);
+        mEntry.putInt((int) ts_sec);
+        mOut.write(mEntry.array());
+
+        flow[0] = mNumEntries++;
+        flow[1]++;
+    }
+
+    /* Writes the footer and closes the index */
+    public void close() throws IOException {
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(FLOW_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            for(Map.Entry<Long, int[]> flow: mFlows.entrySet()) {
+                buf.clear();
+                buf.putLong(flow.getKey());
+                buf.putInt(flow.getValue()[0]);
+                buf.putInt(flow.getValue()[1]);
+                mOut.write(buf.array());
+            }
+
+            buf = ByteBuffer.allocate(TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putLong(HDR_SIZE + (long) mNumEntries * ENTRY_SIZE);
+            buf.putInt(mFlows.size());
+            buf.putInt(TRAILER_MAGIC);
+            mOut.write(buf.array());
+        } finally {
+            mOut.close();
+        }
+    }
+
+    /* Returns the flow key of the 5-tuple, to be used with extract */
+    public static long getFlowKey(byte[] src_addr, int sport, byte[] dst_addr, int dport, int proto) {
+        return PcapRecordFilter.getFlowKey(src_addr, sport, dst_addr, dport, proto);
+    }
+
+    /* Extracts the records of the PCAP file into out, as a new PCAP file.
+     * flow_key: only extract the records of this flow, 0 for any flow
+     * start_sec, end_sec: only extract the records within this time range, 0 for no limit
+     * Returns the number of extracted records. Throws an IOException if the files are corrupted. */
+    public static int extract(File pcap_file, File idx_file, long flow_key, long start_sec, long end_sec,
+                              OutputStream out) throws IOException {
+        try(RandomAccessFile idx = new RandomAccessFile(idx_file, "r");
+            RandomAccessFile pcap = new RandomAccessFile(pcap_file, "r")) {
+            Reader reader = new Reader(idx);
+            byte[] header = new byte[reader.mPcapHdrLen];
+
+            pcap.readFully(header);
+            out.write(header);
+
+            int num_extracted = 0;
+            byte[] rec = new byte[0];
+            ByteBuffer rec_hdr = ByteBuffer.allocate(16).order(ByteOrder.nativeOrder());
+
+            for(long rec_offset: reader.getRecords(flow_key, start_sec, end_sec)) {
+                // Read the record length from the record header
+                pcap.seek(rec_offset);
+                pcap.readFully(rec_hdr.array());
+
+                int rec_len = reader.mPcapngFormat ? rec_hdr.getInt(4) : (rec_hdr.getInt(8) + 16);
+
+                // The index or the PCAP file may be corrupted
+                if((rec_len < 16) || (rec_len > MAX_RECORD_SIZE))
+                    throw new IOException("Invalid record length " + rec_len + " at offset " + rec_offset);
+
+                if(rec.length < rec_len)
+                    rec = new byte[rec_len];
+
+                pcap.seek(rec_offset);
+                pcap.readFully(rec, 0, rec_len);
+                out.write(rec, 0, rec_len);
+                num_extracted++;
+            }
+
+            return num_extracted;
+        }
+    }
+
+    private static class Reader {
+        private final RandomAccessFile mIdx;
+        private final boolean mPcapngFormat;
+        private final int mPcapHdrLen;
+        private final int mNumEntries;
+        private final long mFooterOffset;     // -1 if the footer is missing
+        private final int mNumFlows;
+        private final ByteBuffer mEntry = ByteBuffer.allocate(ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        Reader(RandomAccessFile idx) throws IOException {
+            mIdx = idx;
+
+            ByteBuffer buf = ByteBuffer.allocate(HDR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            idx.readFully(buf.array());
+
+            if((buf.getInt(0) != MAGIC) || (buf.getShort(4) != VERSION))
+                throw new IOException("Invalid index file");
+
+            mPcapngFormat = ((buf.getShort(6) & FLAG_PCAPNG) != 0);
+            mPcapHdrLen = buf.getInt(8);
+
+            if((mPcapHdrLen <= 0) || (mPcapHdrLen > MAX_RECORD_SIZE))
+                throw new IOException("Invalid index file");
+
+            long footer_offset = -1;
+            int num_flows = 0;
+            long len = idx.length();
+
+            if(len >= HDR_SIZE + TRAILER_SIZE) {
+                buf = ByteBuffer.allocate(TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                idx.seek(len - TRAILER_SIZE);
+                idx.readFully(buf.array());
+
+                if(buf.getInt(12) == TRAILER_MAGIC) {
+                    footer_offset = buf.getLong(0);
+                    num_flows = buf.getInt(8);
+                }
+            }
+
+            mFooterOffset = footer_offset;
+            mNumFlows = num_flows;
+
+            // Without the footer, ignore any partially written entry
+            mNumEntries = (int)(((footer_offset >= 0) ? footer_offset : len) - HDR_SIZE) / ENTRY_SIZE;
+        }
+
+        private void readEntry(int entry_idx) throws IOException {
+            mIdx.seek(HDR_SIZE + (long) entry_idx * ENTRY_SIZE);
+            mIdx.readFully(mEntry.array());
+        }
+
+        private static boolean inRange(long ts_sec, long start_sec, long end_sec) {
+            return(((start_sec == 0) || (ts_sec >= start_sec)) && ((end_sec == 0) || (ts_sec <= end_sec)));
+        }
+
+        /* Returns the last entry of the flow via the footer, NO_ENTRY if not found */
+        private int findFlow(long flow_key) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(FLOW_SIZE * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            int flows_read = 0;
+
+            mIdx.seek(mFooterOffset);
+
+            while(flows_read < mNumFlows) {
+                int n = Math.min(mNumFlows - flows_read, 1024);
+                mIdx.readFully(buf.array(), 0, n * FLOW_SIZE);
+
+                for(int i = 0; i < n; i++) {
+                    if(buf.getLong(i * FLOW_SIZE) == flow_key)
+                        return buf.getInt(i * FLOW_SIZE + 8);
+                }
+                flows_read += n;
+            }
+
+            return NO_ENTRY;
+        }
+
+        /* Returns the index of the first entry with ts_sec >= start_sec */
+        private int findTime(long start_sec) throws IOException {
+            int lo = 0, hi = mNumEntries;
+
+            while(lo < hi) {
+                int mid = (lo + hi) >>> 1;
+
+                readEntry(mid);
+                if((mEntry.getInt(20) & 0xFFFFFFFFL) < start_sec)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+
+            return lo;
+        }
+
+        /* Returns the offsets of the matching records, in the capture order */
+        ArrayList<Long> getRecords(long flow_key, long start_sec, long end_sec) throws IOException {
+            ArrayList<Long> rv = new ArrayList<>();
+
+            if((flow_key != 0) && (mFooterOffset >= 0)) {
+                // Follow the flow chain, from the most recent entry
+                int entry_idx = findFlow(flow_key);
+                int prev_idx = mNumEntries;
+
+                while(entry_idx != NO_ENTRY) {
+                    // The chain goes back to the older entries, this also prevents loops
+                    if((entry_idx < 0) || (entry_idx >= prev_idx))
+                        throw new IOException("Invalid flow entry " + entry_idx + " in the index");
+
+                    readEntry(entry_idx);
+                    prev_idx = entry_idx;
+
+                    if(inRange(mEntry.getInt(20) & 0xFFFFFFFFL, start_sec, end_sec))
+                        rv.add(mEntry.getLong(8));
+                    entry_idx = mEntry.getInt(16);
+                }
+
+                Collections.reverse(rv);
+                return rv;
+            }
+
+            // Scan the entries, starting from the time range start
+            int entry_idx = (start_sec > 0) ? findTime(start_sec) : 0;
+            ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+            mIdx.seek(HDR_SIZE + (long) entry_idx * ENTRY_SIZE);
+
+            while(entry_idx < mNumEntries) {
+                int n = Math.min(mNumEntries - entry_idx, 1024);
+                mIdx.readFully(buf.array(), 0, n * ENTRY_SIZE);
+
+                for(int i = 0; i < n; i++) {
+                    int pos = i * ENTRY_SIZE;
+                    long ts_sec = buf.getInt(pos + 20) & 0xFFFFFFFFL;
+
+                    if((end_sec != 0) && (ts_sec > end_sec))
+                        return rv;
+
+                    if(((flow_key == 0) || (buf.getLong(pos) == flow_key)) && inRange(ts_sec, start_sec, end_sec))
+                        rv.add(buf.getLong(pos + 8));
+                }
+                entry_idx += n;
+            }
+
+            return rv;
+        }
+    }
+}
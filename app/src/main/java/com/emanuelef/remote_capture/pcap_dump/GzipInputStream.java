@@ -0,0 +1,103 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture.pcap_dump;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+
+/* Compresses a live stream in the gzip format. Each chunk read from the source is compressed and
+   flushed via Deflater.SYNC_FLUSH, so that the reader gets the data as soon as it is available,
+   instead of waiting for the deflater to fill its buffer. This costs a few bytes per chunk.
+   NOTE: this class must not depend on the Android framework, as it is also built by the benchmark module.
+ */
+public class GzipInputStream extends InputStream {
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private final InputStream mSource;
+    private final ByteArrayOutputStream mCompressed = new ByteArrayOutputStream(CHUNK_SIZE);
+    private final GZIPOutputStream mGzip;
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private byte[] mPending = new byte[0];
+    private int mPendingPos = 0;
+    private boolean mFinished = false;
+
+    public GzipInputStream(InputStream source) throws IOException {
+        mSource = source;
+        mGzip = new GZIPOutputStream(mCompressed, CHUNK_SIZE, true /* syncFlush */);
+    }
+
+    /* Blocks until some compressed data is available. Returns false at the end of the stream. */
+    private boolean fill() throws IOException {
+        while(mPendingPos >= mPending.length) {
+            if(mFinished)
+                return false;
+
+            int num_read = mSource.read(mChunk, 0, mChunk.length);
+
+            if(num_read < 0) {
+                // Write the gzip trailer
+                mGzip.finish();
+                mFinished = true;
+            } else if(num_read > 0) {
+                mGzip.write(mChunk, 0, num_read);
+                mGzip.flush();
+            }
+
+            mPending = mCompressed.toByteArray();
+            mPendingPos = 0;
+            mCompressed.reset();
+        }
+
+        return true;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int maxlen) throws IOException {
+        if(maxlen <= 0)
+            return(0);
+        if(!fill())
+            return(-1);
+
+        int copy_length = Math.min(maxlen, mPending.length - mPendingPos);
+        System.arraycopy(mPending, mPendingPos, buf, off, copy_length);
+        mPendingPos += copy_length;
+
+        return(copy_length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!fill())
+            return(-1);
+
+        return(mPending[mPendingPos++] & 0xFF);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mSource.close();
+        } finally {
+            // Releases the deflater
+            mGzip.close();
+        }
+    }
+}
@@ -20,62 +20,218 @@
 package com.emanuelef.remote_capture.pcap_dump;
 
 import android.content.Context;
+import android.content.pm.PackageManager;
 
+import com.emanuelef.remote_capture.CaptureService;
 import com.emanuelef.remote_capture.R;
 import com.emanuelef.remote_capture.Utils;
 import com.emanuelef.remote_capture.interfaces.PcapDumper;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.NanoHTTPD.Response.Status;
 
 public class HTTPServer extends NanoHTTPD implements PcapDumper {
     private static final String PCAP_MIME = "application/vnd.tcpdump.pcap";
+    private static final String PCAPNG_MIME = "application/x-pcapng";
+    private static final String NDJSON_MIME = "application/x-ndjson";
+    private static final String SSE_MIME = "text/event-stream";
     private boolean mAcceptConnections = false;
     private int mPort;
     private final Context mContext;
+    private final boolean mPcapngFormat;
+    private final boolean mGzipEnabled;
+    private final long mClientBufferSize;
+    private final ChunkedInputStream.SlowClientPolicy mSlowClientPolicy;
 
     /* NOTE: access to mActiveResponses must be synchronized */
-    private final ArrayList<Response> mActiveResponses = new ArrayList<>();
+    private final ArrayList<ClientStream> mActiveResponses = new ArrayList<>();
 
-    public HTTPServer(Context context, int port) {
+    private static class ClientStream {
+        final Response res;
+        final ChunkedInputStream stream;
+        final String address;
+        final PcapRecordFilter filter;  // null if not filtered
+        final EventsStream events;      // null for the PCAP streams
+
+        ClientStream(Response _res, ChunkedInputStream _stream, String _address, PcapRecordFilter _filter,
+                     EventsStream _events) {
+            res = _res;
+            stream = _stream;
+            address = _address;
+            filter = _filter;
+            events = _events;
+        }
+    }
+
+    public static class ClientLag {
+        public final String address;
+        public final long lag_bytes;
+        public final long dropped_bytes;
+
+        ClientLag(String _address, long _lag_bytes, long _dropped_bytes) {
+            address = _address;
+            lag_bytes = _lag_bytes;
+            dropped_bytes = _dropped_bytes;
+        }
+    }
+
+    /* gzip_enabled: compress the stream when the client accepts the gzip Content-Encoding
+     * client_buffer_size: the max data to queue for each client, see ChunkedInputStream */
+    public HTTPServer(Context context, int port, boolean pcapng_format, boolean gzip_enabled,
+                      long client_buffer_size, ChunkedInputStream.SlowClientPolicy slow_client_policy) {
         super(port);
         mPort = port;
         mContext = context;
+        mPcapngFormat = pcapng_format;
+        mGzipEnabled = gzip_enabled;
+        mClientBufferSize = client_buffer_size;
+        mSlowClientPolicy = slow_client_policy;
     }
 
-    private Response redirectToPcap() {
-        String fname = Utils.getUniquePcapFileName(mContext);
+    private Response redirectToPcap(IHTTPSession session) {
+        String fname = Utils.getUniquePcapFileName(mContext, mPcapngFormat);
+        String query = session.getQueryParameterString();
         Response r = newFixedLengthResponse(Status.TEMPORARY_REDIRECT, MIME_HTML, "");
-        r.addHeader("Location", "/" + fname);
+
+        // Preserve the filter
+        r.addHeader("Location", "/" + fname + (((query != null) && !query.isEmpty()) ? ("?" + query) : ""));
         return(r);
     }
 
+    /* Returns the UID to filter, -1 for any */
+    private int getFilterUid(Map<String, String> params) {
+        String app = params.get("app");
+
+        if(app != null) {
+            try {
+                return mContext.getPackageManager().getApplicationInfo(app, 0).uid;
+            } catch (PackageManager.NameNotFoundException e) {
+                throw new IllegalArgumentException("Unknown app: " + app);
+            }
+        }
+
+        return PcapRecordFilter.parseInt(params, "uid", 0, Integer.MAX_VALUE);
+    }
+
     /* Creates a new Response and add it to the active responses.
      * NOTE: socket protect not needed for inbound connections. */
-    private synchronized Response newPcapStream() {
+    private Response newPcapStream(IHTTPSession session) {
         /* NOTE: response length is unknown */
-        Response res = newChunkedResponse(Status.OK, PCAP_MIME, new ChunkedInputStream());
+        String mime = mPcapngFormat ? PCAPNG_MIME : PCAP_MIME;
+        byte[] header = CaptureService.getPcapHeader();
+        Map<String, String> params = session.getParms();
+        PcapRecordFilter filter = null;
+
+        if(params.containsKey("bpf"))
+            return newFixedLengthResponse(Status.BAD_REQUEST, MIME_PLAINTEXT,
+                    "BPF filters are not supported, use the uid/app, host, port and proto parameters");
 
-        mActiveResponses.add(res);
+        if(PcapRecordFilter.hasFilter(params)) {
+            try {
+                filter = new PcapRecordFilter(header, params, getFilterUid(params));
+            } catch (IllegalArgumentException e) {
+                return newFixedLengthResponse(Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+            }
+        }
+
+        ChunkedInputStream stream = new ChunkedInputStream(header, mClientBufferSize, mSlowClientPolicy);
+        String accept_encoding = session.getHeaders().get("accept-encoding");
+        boolean gzip = mGzipEnabled && (accept_encoding != null) && accept_encoding.contains("gzip");
+        Response res;
+
+        if(gzip) {
+            // The PCAP stream is compressed on the response thread, so it does not slow down the capture.
+            // The client transparently decompresses it, so the file name is unchanged.
+            try {
+                res = newChunkedResponse(Status.OK, mime, new GzipInputStream(stream));
+            } catch (IOException e) {
+                return newFixedLengthResponse(Status.INTERNAL_ERROR, MIME_PLAINTEXT, e.getMessage());
+            }
+            res.addHeader("Content-Encoding", "gzip");
+        } else
+            res = newChunkedResponse(Status.OK, mime, stream);
+
+        synchronized (this) {
+            mActiveResponses.add(new ClientStream(res, stream, session.getRemoteIpAddress(), filter, null));
+        }
 
         return res;
     }
 
+    /* Streams the connections events, see EventsStream. The SSE format is used when requested by the
+     * client (e.g. a browser EventSource) or via the format=sse parameter, NDJSON otherwise. */
+    private Response newEventsStream(IHTTPSession session) {
+        String accept = session.getHeaders().get("accept");
+        boolean sse = "sse".equals(session.getParms().get("format")) ||
+                ((accept != null) && accept.contains(SSE_MIME));
+        EventsStream events = new EventsStream(CaptureService.getConnsRegister(), sse, mClientBufferSize);
+        Response res = newChunkedResponse(Status.OK, sse ? SSE_MIME : NDJSON_MIME, events.getInputStream());
+
+        res.addHeader("Cache-Control", "no-cache");
+
+        ClientStream client = new ClientStream(res, events.getInputStream(),
+                session.getRemoteIpAddress(), null, events);
+
+        // Unregister the listeners as soon as the client disconnects
+        events.setCloseListener(() -> {
+            synchronized (HTTPServer.this) {
+                if(mActiveResponses.remove(client))
+                    stopClient(client);
+            }
+        });
+
+        // Register the listeners along with the client, so that stopDumper cannot run in between
+        synchronized (this) {
+            if(!mAcceptConnections)
+                return newFixedLengthResponse(Status.FORBIDDEN, MIME_PLAINTEXT,
+                        mContext.getString(R.string.capture_not_running));
+
+            mActiveResponses.add(client);
+            events.start();
+            CaptureService.addStatsListener(events);
+        }
+
+        return res;
+    }
+
+    private void stopClient(ClientStream client) {
+        if(client.events != null) {
+            CaptureService.removeStatsListener(client.events);
+            client.events.stop();
+        } else
+            client.stream.stop();
+    }
+
     @Override
     public Response serve(IHTTPSession session) {
         if(!mAcceptConnections)
             return newFixedLengthResponse(Status.FORBIDDEN, MIME_PLAINTEXT,
                     mContext.getString(R.string.capture_not_running));
 
+        if(session.getUri().equals("/events"))
+            return newEventsStream(session);
+
         if(session.getUri().endsWith("/")) {
             /* Use a redirect to provide a file name */
-            return redirectToPcap();
+            return redirectToPcap(session);
         }
 
-        return newPcapStream();
+        return newPcapStream(session);
+    }
+
+    @Override
+    protected boolean useGzipWhenAccepted(Response r) {
+        // NanoHTTPD never flushes its compressor, which would delay the live streams until its buffer
+        // fills up. The PCAP stream is compressed via GzipInputStream instead, the events are not compressed.
+        if((r.getData() instanceof ChunkedInputStream) || (r.getData() instanceof GzipInputStream))
+            return false;
+
+        return super.useGzipWhenAccepted(r);
     }
 
     @Override
@@ -87,17 +243,8 @@ public class HTTPServer extends NanoHTTPD implements PcapDumper {
     @Override
     public void stopDumper() throws IOException {
         synchronized (this) {
-            for (int i = mActiveResponses.size() - 1; i >= 0; i--) {
-                Response res = mActiveResponses.get(i);
-
-                if (res.isCloseConnection()) {
-                    /* Cleanup closed connections */
-                    mActiveResponses.remove(i);
-                    continue;
-                }
-
-                ((ChunkedInputStream) res.getData()).stop();
-            }
+            for(ClientStream client: mActiveResponses)
+                stopClient(client);
 
             mActiveResponses.clear();
             mAcceptConnections = false;
@@ -113,19 +260,47 @@ public class HTTPServer extends NanoHTTPD implements PcapDumper {
 
     @Override
     public void dumpData(byte[] data) throws IOException {
+        ClientStream[] clients;
+
         synchronized (this) {
-            /* Dispatch PCAP data to the active connections */
             for (int i = mActiveResponses.size() - 1; i >= 0; i--) {
-                Response res = mActiveResponses.get(i);
+                ClientStream client = mActiveResponses.get(i);
 
-                if (res.isCloseConnection()) {
+                if (client.res.isCloseConnection() || client.stream.isFinished()) {
                     /* Cleanup closed connections */
                     mActiveResponses.remove(i);
-                    continue;
-                }
 
-                ((ChunkedInputStream) res.getData()).produceData(data);
+                    if(client.events != null)
+                        stopClient(client);
+                }
             }
+
+            clients = mActiveResponses.toArray(new ClientStream[0]);
         }
+
+        /* Dispatch PCAP data to the active connections.
+         * NOTE: with the BLOCK policy, this blocks until the client reads the data, so it must not
+         * hold the lock */
+        for(ClientStream client: clients) {
+            if(client.events != null)
+                continue;
+
+            byte[] client_data = (client.filter != null) ? client.filter.filter(data) : data;
+
+            if(client_data != null)
+                client.stream.produceData(client_data);
+        }
+    }
+
+    /* Returns the lag of the connected clients */
+    public synchronized List<ClientLag> getClientsLag() {
+        ArrayList<ClientLag> rv = new ArrayList<>();
+
+        for(ClientStream client: mActiveResponses) {
+            if(!client.res.isCloseConnection())
+                rv.add(new ClientLag(client.address, client.stream.getLag(), client.stream.getDroppedBytes()));
+        }
+
+        return rv;
     }
 }
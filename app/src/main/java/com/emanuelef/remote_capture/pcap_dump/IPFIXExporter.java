@@ -0,0 +1,401 @@
+package com.emanuelef.remote_capture.pcap_dump;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.emanuelef.remote_capture.CaptureService;
+import com.emanuelef.remote_capture.ConnectionsRegister;
+import com.emanuelef.remote_capture.interfaces.ConnectionsListener;
+import com.emanuelef.remote_capture.model.ConnectionDescriptor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/* Exports the connections as IPFIX (RFC 7011) flow records to a UDP collector. A record is
+ * exported when a connection is closed and, for the long-lived connections, every active_timeout
+ * seconds. The counters of each record are deltas since the previous record of the connection, the
+ * ones of the responder are exported as reverse elements (RFC 5103).
+ * The records of a ConnectionsRegister update are batched into as few messages as possible, up to
+ * MAX_MESSAGE_SIZE bytes each. The templates are sent in the first message and then every
+ * TEMPLATE_REFRESH_MS, as required by the UDP transport.
+ * The uid, app, l7proto and server name are exported as enterprise elements, see docs/app_api.md. */
+public class IPFIXExporter implements ConnectionsListener {
+    private static final String TAG = "IPFIXExporter";
+    public static final int DEFAULT_PORT = 4739;
+    public static final int PCAPDROID_PEN = 32473; // RFC 5612 documentation PEN
+    private static final int REVERSE_PEN = 29305;  // RFC 5103
+    private static final int IPFIX_VERSION = 10;
+    private static final int MESSAGE_HDR_SIZE = 16;
+    private static final int SET_HDR_SIZE = 4;
+    private static final int TEMPLATE_SET_ID = 2;
+    private static final int TEMPLATE_IPV4 = 256;
+    private static final int TEMPLATE_IPV6 = 257;
+    private static final int MAX_MESSAGE_SIZE = 1400;
+    private static final int MAX_STRING_LEN = 254;
+    private static final long TEMPLATE_REFRESH_MS = 60000;
+
+    // flowEndReason values
+    private static final int END_ACTIVE_TIMEOUT = 0x02;
+    private static final int END_OF_FLOW = 0x03;
+    private static final int END_FORCED = 0x04;
+    private static final int END_LACK_OF_RESOURCES = 0x05;
+
+    // Enterprise elements
+    private static final int PEN_UID = 1;
+    private static final int PEN_APP = 2;
+    private static final int PEN_L7PROTO = 3;
+    private static final int PEN_SERVER_NAME = 4;
+
+    private static final int VARLEN = 0xFFFF;
+
+    /* {element ID, length, enterprise number}. The address elements are set per template. */
+    private static final int[][] TEMPLATE_FIELDS = {
+            {0 /* src addr */, 0, 0},
+            {0 /* dst addr */, 0, 0},
+            {7 /* sourceTransportPort */, 2, 0},
+            {11 /* destinationTransportPort */, 2, 0},
+            {4 /* protocolIdentifier */, 1, 0},
+            {6 /* tcpControlBits */, 2, 0},
+            {152 /* flowStartMilliseconds */, 8, 0},
+            {153 /* flowEndMilliseconds */, 8, 0},
+            {1 /* octetDeltaCount */, 8, 0},
+            {2 /* packetDeltaCount */, 8, 0},
+            {1 /* reverse octetDeltaCount */, 8, REVERSE_PEN},
+            {2 /* reverse packetDeltaCount */, 8, REVERSE_PEN},
+            {136 /* flowEndReason */, 1, 0},
+            {PEN_UID, 4, PCAPDROID_PEN},
+            {PEN_APP, VARLEN, PCAPDROID_PEN},
+            {PEN_L7PROTO, VARLEN, PCAPDROID_PEN},
+            {PEN_SERVER_NAME, VARLEN, PCAPDROID_PEN},
+    };
+
+    public interface AppNameResolver {
+        @Nullable String getAppName(int uid);
+    }
+
+    private static class FlowState {
+        long sent_bytes;
+        long rcvd_bytes;
+        int sent_pkts;
+        int rcvd_pkts;
+        long last_export;
+    }
+
+    private final ConnectionsRegister mReg;
+    private final InetSocketAddress mCollector;
+    private final long mActiveTimeout;
+    private final AppNameResolver mResolver;
+    private final HashMap<Integer, FlowState> mFlows = new HashMap<>();
+    private final HashSet<Integer> mClosed = new HashSet<>(); // exported closed connections in the register
+    private final ByteBuffer mMessage = ByteBuffer.allocate(MAX_MESSAGE_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private DatagramChannel mChannel;
+    private int mSetStart;      // -1 if no set is open
+    private int mSetTemplate;
+    private int mMessageRecords;
+    private int mSequence;      // data records sent so far
+    private long mLastTemplates; // the time of the last message with the templates
+    private boolean mMessageTemplates;
+
+    /* active_timeout: seconds, 0 to only export the connections when closed */
+    public IPFIXExporter(ConnectionsRegister reg, InetSocketAddress collector, int active_timeout,
+                         AppNameResolver resolver) {
+        mReg = reg;
+        mCollector = collector;
+        mActiveTimeout = active_timeout * 1000L;
+        mResolver = resolver;
+    }
+
+    public void start() throws IOException {
+        mChannel = DatagramChannel.open();
+        CaptureService.requireInstance().protect(mChannel.socket());
+
+        // NOTE: the channel is not connected, see UDPDumper
+        mSequence = 0;
+        mLastTemplates = 0;
+        startMessage();
+
+        synchronized (mReg) {
+            for(int i = 0; i < mReg.getConnCount(); i++) {
+                ConnectionDescriptor conn = mReg.getConn(i);
+
+                if(conn != null)
+                    onConnection(conn);
+            }
+            flush();
+
+            mReg.addListener(this);
+        }
+    }
+
+    /* Exports the connections still open and stops the exporter */
+    public void stop() {
+        synchronized (mReg) {
+            mReg.removeListener(this);
+
+            for(int i = 0; i < mReg.getConnCount(); i++) {
+                ConnectionDescriptor conn = mReg.getConn(i);
+
+                if((conn != null) && mFlows.containsKey(conn.incr_id))
+                    exportFlow(conn, END_FORCED);
+            }
+            flush();
+        }
+
+        mFlows.clear();
+        mClosed.clear();
+
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public String getBpf() {
+        return "not (host " + mCollector.getAddress().getHostAddress() + " and udp port " + mCollector.getPort() + ")";
+    }
+
+    private void startMessage() {
+        mMessage.clear();
+        mMessage.position(MESSAGE_HDR_SIZE);
+        mSetStart = -1;
+        mMessageRecords = 0;
+        mMessageTemplates = false;
+    }
+
+    /* Called on the first record of a message, which is then sent within the same update */
+    private void checkTemplatesRefresh() {
+        if(System.currentTimeMillis() - mLastTemplates >= TEMPLATE_REFRESH_MS) {
+            putTemplates();
+            mMessageTemplates = true;
+        }
+    }
+
+    private void putTemplates() {
+        int set_start = mMessage.position();
+
+        mMessage.putShort((short) TEMPLATE_SET_ID);
+        mMessage.putShort((short) 0); // length, set below
+
+        for(int template_id: new int[]{TEMPLATE_IPV4, TEMPLATE_IPV6}) {
+            boolean ipv4 = (template_id == TEMPLATE_IPV4);
+
+            mMessage.putShort((short) template_id);
+            mMessage.putShort((short) TEMPLATE_FIELDS.length);
+
+            for(int i = 0; i < TEMPLATE_FIELDS.length; i++) {
+                int[] field = TEMPLATE_FIELDS[i];
+                int id = field[0];
+                int len = field[1];
+
+                if(i < 2) {
+                    // sourceIPv4Address/destinationIPv4Address, sourceIPv6Address/destinationIPv6Address
+                    id = ipv4 ? ((i == 0) ? 8 : 12) : ((i == 0) ? 27 : 28);
+                    len = ipv4 ? 4 : 16;
+                }
+
+                if(field[2] != 0) {
+                    mMessage.putShort((short) (id | 0x8000));
+                    mMessage.putShort((short) len);
+                    mMessage.putInt(field[2]);
+                } else {
+                    mMessage.putShort((short) id);
+                    mMessage.putShort((short) len);
+                }
+            }
+        }
+
+        mMessage.putShort(set_start + 2, (short) (mMessage.position() - set_start));
+    }
+
+    private void closeSet() {
+        if(mSetStart >= 0) {
+            mMessage.putShort(mSetStart + 2, (short) (mMessage.position() - mSetStart));
+            mSetStart = -1;
+        }
+    }
+
+    private void flush() {
+        closeSet();
+
+        if(mMessageRecords > 0) {
+            int len = mMessage.position();
+            long now = System.currentTimeMillis();
+
+            mMessage.putShort(0, (short) IPFIX_VERSION);
+            mMessage.putShort(2, (short) len);
+            mMessage.putInt(4, (int) (now / 1000));
+            mMessage.putInt(8, mSequence);
+            mMessage.putInt(12, 0); // observation domain
+
+            mMessage.flip();
+
+            try {
+                mChannel.send(mMessage, mCollector);
+            } catch (IOException e) {
+                Log.w(TAG, "send failed: " + e.getMessage());
+            }
+
+            if(mMessageTemplates)
+                mLastTemplates = now;
+
+            mSequence += mMessageRecords;
+            startMessage();
+        }
+    }
+
+    private static byte[] getStringBytes(@Nullable String s) {
+        if(s == null)
+            return new byte[0];
+
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length <= MAX_STRING_LEN)
+            return bytes;
+
+        // truncate, without splitting a multi-byte character
+        int len = MAX_STRING_LEN;
+        while((len > 0) && ((bytes[len] & 0xC0) == 0x80))
+            len--;
+
+        byte[] rv = new byte[len];
+        System.arraycopy(bytes, 0, rv, 0, len);
+        return rv;
+    }
+
+    private void exportFlow(ConnectionDescriptor conn, int end_reason) {
+        InetAddress src, dst;
+
+        try {
+            src = InetAddress.getByName(conn.src_ip);
+            dst = InetAddress.getByName(conn.dst_ip);
+        } catch (IOException e) {
+            // not expected, as the addresses are numeric
+            return;
+        }
+
+        FlowState state = mFlows.get(conn.incr_id);
+        if(state == null) {
+            state = new FlowState();
+            mFlows.put(conn.incr_id, state);
+        }
+
+        byte[] src_addr = src.getAddress();
+        byte[] dst_addr = dst.getAddress();
+        byte[] app = getStringBytes(mResolver.getAppName(conn.uid));
+        byte[] l7proto = getStringBytes(conn.l7proto);
+        byte[] server_name = getStringBytes(conn.info);
+        int template_id = (src_addr.length == 4) ? TEMPLATE_IPV4 : TEMPLATE_IPV6;
+        int rec_len = 2 * src_addr.length + 2 + 2 + 1 + 2 + 6 * 8 + 1 + 4 +
+                3 + app.length + l7proto.length + server_name.length;
+
+        if((mSetStart >= 0) && (mSetTemplate != template_id))
+            closeSet();
+
+        if(mMessage.remaining() < rec_len + ((mSetStart < 0) ? SET_HDR_SIZE : 0))
+            flush();
+
+        // The message is empty here, so the templates and the record always fit
+        if(mMessageRecords == 0)
+            checkTemplatesRefresh();
+
+        if(mSetStart < 0) {
+            mSetStart = mMessage.position();
+            mSetTemplate = template_id;
+            mMessage.putShort((short) template_id);
+            mMessage.putShort((short) 0); // length, set in closeSet
+        }
+
+        mMessage.put(src_addr);
+        mMessage.put(dst_addr);
+        mMessage.putShort((short) conn.src_port);
+        mMessage.putShort((short) conn.dst_port);
+        mMessage.put((byte) conn.ipproto);
+        mMessage.putShort((short) (conn.getSentTcpFlags() | conn.getRcvdTcpFlags()));
+        mMessage.putLong(conn.first_seen);
+        mMessage.putLong(conn.last_seen);
+        mMessage.putLong(conn.sent_bytes - state.sent_bytes);
+        mMessage.putLong(conn.sent_pkts - state.sent_pkts);
+        mMessage.putLong(conn.rcvd_bytes - state.rcvd_bytes);
+        mMessage.putLong(conn.rcvd_pkts - state.rcvd_pkts);
+        mMessage.put((byte) end_reason);
+        mMessage.putInt(conn.uid);
+        mMessage.put((byte) app.length).put(app);
+        mMessage.put((byte) l7proto.length).put(l7proto);
+        mMessage.put((byte) server_name.length).put(server_name);
+        mMessageRecords++;
+
+        if(end_reason == END_ACTIVE_TIMEOUT) {
+            state.sent_bytes = conn.sent_bytes;
+            state.rcvd_bytes = conn.rcvd_bytes;
+            state.sent_pkts = conn.sent_pkts;
+            state.rcvd_pkts = conn.rcvd_pkts;
+            state.last_export = conn.last_seen;
+        } else
+            mFlows.remove(conn.incr_id);
+    }
+
+    private void onConnection(ConnectionDescriptor conn) {
+        // the closed connections may still be updated, e.g. on whitelist changes
+        if(mClosed.contains(conn.incr_id))
+            return;
+
+        if(conn.status >= ConnectionDescriptor.CONN_STATUS_CLOSED) {
+            exportFlow(conn, END_OF_FLOW);
+            mClosed.add(conn.incr_id);
+            return;
+        }
+
+        FlowState state = mFlows.get(conn.incr_id);
+        if(state == null) {
+            state = new FlowState();
+            state.last_export = conn.first_seen;
+            mFlows.put(conn.incr_id, state);
+        }
+
+        if((mActiveTimeout > 0) && (conn.last_seen - state.last_export >= mActiveTimeout))
+            exportFlow(conn, END_ACTIVE_TIMEOUT);
+    }
+
+    @Override
+    public void connectionsChanges(int num_connetions) {}
+
+    @Override
+    public void connectionsAdded(int start, ConnectionDescriptor[] conns) {
+        for(ConnectionDescriptor conn: conns)
+            onConnection(conn);
+        flush();
+    }
+
+    @Override
+    public void connectionsRemoved(int start, ConnectionDescriptor[] conns) {
+        // Evicted from the register while open, no more updates will be received
+        for(ConnectionDescriptor conn: conns) {
+            if(conn == null)
+                continue;
+
+            if(mFlows.containsKey(conn.incr_id))
+                exportFlow(conn, END_LACK_OF_RESOURCES);
+            mClosed.remove(conn.incr_id);
+        }
+        flush();
+    }
+
+    @Override
+    public void connectionsUpdated(int[] positions) {
+        for(int pos: positions) {
+            ConnectionDescriptor conn = mReg.getConn(pos);
+
+            if(conn != null)
+                onConnection(conn);
+        }
+        flush();
+    }
+}
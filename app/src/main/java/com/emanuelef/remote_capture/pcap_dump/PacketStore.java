@@ -0,0 +1,317 @@
+package com.emanuelef.remote_capture.pcap_dump;
+
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/* Keeps the most recent PCAP records of each connection, so that they can be inspected or exported
+ * without a global PCAP dump. The records are stored off-heap, into fixed size pages of a single
+ * direct buffer, within a global byte budget:
+ *  - each flow owns a ring of pages, up to 1/MAX_FLOW_SHARE of the budget. When full, the oldest
+ *    records of the flow are dropped
+ *  - when no page is free, the least recently active flow is dropped
+ * The records are stored as received, so each flow is a byte stream of records which may span
+ * multiple pages. The flows are identified by the 5-tuple, see PcapRecordFilter.getFlowKey. */
+public class PacketStore {
+    public static final int PAGE_SIZE = 4096;
+    private static final int MAX_FLOW_SHARE = 8;
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final int PCAPNG_SHB_TYPE = 0x0a0d0d0a;
+    private static final int ETH_HDR_SIZE = 14;
+    private final byte[] mPcapHeader;
+    private final boolean mPcapngFormat;
+    private final boolean mHasEthHdr;
+    private final PcapRecordCursor mCursor;
+    private final ByteBuffer mArena;
+    private final int[] mFreePages;
+    private int mNumFree;
+    private final int mMaxFlowPages;
+    private final LinkedHashMap<Long, Flow> mFlows = new LinkedHashMap<>(16, 0.75f, true); // LRU
+    private long mStoredRecords;
+    private long mDroppedRecords;
+
+    private static class Flow {
+        int[] pages = new int[4];   // ring of the page indexes, from the oldest one
+        int head;
+        int count;
+        int headSkip;               // offset of the first complete record in the head page
+        int tailUsed;               // bytes used in the tail page
+        int numRecords;
+    }
+
+    /* A packet of the records returned by getRecords */
+    public static class PacketInfo {
+        public int rec_offset;      // offset of the record into the records
+        public int rec_len;
+        public long ts_usec;
+        public int orig_len;
+        public int pkt_offset;      // offset of the IP packet into the records
+        public int pkt_len;         // captured length of the IP packet
+    }
+
+    public PacketStore(long max_bytes, byte[] pcap_header) {
+        ByteBuffer hdr = ByteBuffer.wrap(pcap_header).order(ByteOrder.nativeOrder());
+        int num_pages = (int) Math.max(Math.min(max_bytes / PAGE_SIZE, Integer.MAX_VALUE / PAGE_SIZE), MAX_FLOW_SHARE);
+
+        mPcapHeader = pcap_header;
+        mPcapngFormat = (hdr.getInt(0) == PCAPNG_SHB_TYPE);
+
+        // 20: pcap_hdr_s.network, the PCAPdroid trailer adds a bogus ethernet header
+        mHasEthHdr = !mPcapngFormat && (hdr.getInt(20) == LINKTYPE_ETHERNET);
+        mCursor = new PcapRecordCursor(mPcapngFormat);
+        mArena = ByteBuffer.allocateDirect(num_pages * PAGE_SIZE);
+        mFreePages = new int[num_pages];
+        mMaxFlowPages = num_pages / MAX_FLOW_SHARE;
+
+        for(int i = 0; i < num_pages; i++)
+            mFreePages[mNumFree++] = num_pages - 1 - i;
+    }
+
+    public byte[] getPcapHeader() {
+        return mPcapHeader;
+    }
+
+    public boolean isPcapngFormat() {
+        return mPcapngFormat;
+    }
+
+    /* Returns the flow key of a connection, 0 if the addresses are invalid */
+    public static long getFlowKey(String src_ip, int sport, String dst_ip, int dport, int proto) {
+        try {
+            // NOTE: numeric addresses, no DNS lookup is performed
+            return PcapRecordFilter.getFlowKey(InetAddress.getByName(src_ip).getAddress(), sport,
+                    InetAddress.getByName(dst_ip).getAddress(), dport, proto);
+        } catch (UnknownHostException e) {
+            return 0;
+        }
+    }
+
+    /* Stores the records of the data, as received by PcapDumper.dumpData */
+    public synchronized void addRecords(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+        PcapRecordCursor cursor = mCursor.reset(data);
+
+        while(cursor.next()) {
+            if(!cursor.isPacket())
+                continue;
+
+            int pos = cursor.getOffset();
+            int rec_len = cursor.getLength();
+            int pkt_pos = cursor.getPacketOffset();
+            int pkt_len = cursor.getPacketLength();
+
+            if(mHasEthHdr) {
+                pkt_pos += ETH_HDR_SIZE;
+                pkt_len -= ETH_HDR_SIZE;
+            }
+
+            long key = PcapRecordFilter.getFlowKey(buf, pkt_pos, pkt_len);
+
+            if((key != 0) && (rec_len <= mMaxFlowPages * PAGE_SIZE))
+                addRecord(key, data, pos, rec_len);
+            else
+                mDroppedRecords++;
+        }
+    }
+
+    private void addRecord(long key, byte[] data, int offset, int len) {
+        Flow flow = mFlows.get(key);
+
+        if(flow == null) {
+            flow = new Flow();
+            mFlows.put(key, flow);
+        }
+
+        // Make room for the record within the flow budget
+        while(true) {
+            int space = (flow.count > 0) ? ((PAGE_SIZE - flow.tailUsed) + (mMaxFlowPages - flow.count) * PAGE_SIZE) :
+                    mMaxFlowPages * PAGE_SIZE;
+
+            if(space >= len)
+                break;
+            dropHeadPage(flow);
+        }
+
+        while(len > 0) {
+            if((flow.count == 0) || (flow.tailUsed == PAGE_SIZE))
+                addPage(flow, allocPage(flow));
+
+            int page = flow.pages[(flow.head + flow.count - 1) % flow.pages.length];
+            int to_copy = Math.min(PAGE_SIZE - flow.tailUsed, len);
+
+            mArena.position(page * PAGE_SIZE + flow.tailUsed);
+            mArena.put(data, offset, to_copy);
+
+            flow.tailUsed += to_copy;
+            offset += to_copy;
+            len -= to_copy;
+        }
+
+        flow.numRecords++;
+        mStoredRecords++;
+    }
+
+    private int allocPage(Flow flow) {
+        if(mNumFree == 0) {
+            // Drop the least recently active flow. As a flow cannot own all the pages, there is
+            // always another flow to drop.
+            Iterator<Map.Entry<Long, Flow>> it = mFlows.entrySet().iterator();
+
+            while(it.hasNext()) {
+                Flow eldest = it.next().getValue();
+
+                if(eldest != flow) {
+                    mDroppedRecords += eldest.numRecords;
+
+                    for(int i = 0; i < eldest.count; i++)
+                        mFreePages[mNumFree++] = eldest.pages[(eldest.head + i) % eldest.pages.length];
+                    it.remove();
+                    break;
+                }
+            }
+        }
+
+        return mFreePages[--mNumFree];
+    }
+
+    private void addPage(Flow flow, int page) {
+        if(flow.count == flow.pages.length) {
+            int[] pages = new int[Math.min(flow.pages.length * 2, mMaxFlowPages)];
+
+            for(int i = 0; i < flow.count; i++)
+                pages[i] = flow.pages[(flow.head + i) % flow.pages.length];
+            flow.pages = pages;
+            flow.head = 0;
+        }
+
+        flow.pages[(flow.head + flow.count) % flow.pages.length] = page;
+        flow.count++;
+        flow.tailUsed = 0;
+    }
+
+    private void freeHeadPage(Flow flow) {
+        mFreePages[mNumFree++] = flow.pages[flow.head];
+        flow.head = (flow.head + 1) % flow.pages.length;
+        flow.count--;
+    }
+
+    /* Drops the oldest page of the flow, along with the records which start into it */
+    private void dropHeadPage(Flow flow) {
+        int used = (flow.count == 1) ? flow.tailUsed : PAGE_SIZE;
+        int pos = flow.headSkip;
+
+        while(pos < used) {
+            pos += getRecordLen(flow, pos);
+            flow.numRecords--;
+            mDroppedRecords++;
+        }
+
+        freeHeadPage(flow);
+        pos -= PAGE_SIZE;
+
+        // The rest of a big record may span multiple pages
+        while((pos >= PAGE_SIZE) && (flow.count > 0)) {
+            freeHeadPage(flow);
+            pos -= PAGE_SIZE;
+        }
+
+        if(flow.count == 0) {
+            flow.head = 0;
+            flow.headSkip = 0;
+            flow.tailUsed = 0;
+            flow.numRecords = 0;
+        } else
+            flow.headSkip = pos;
+    }
+
+    /* Reads a byte at the offset of the flow stream, relative to the head page */
+    private byte getByte(Flow flow, int offset) {
+        int page = flow.pages[(flow.head + offset / PAGE_SIZE) % flow.pages.length];
+        return mArena.get(page * PAGE_SIZE + offset % PAGE_SIZE);
+    }
+
+    private int getRecordLen(Flow flow, int rec_offset) {
+        // PCAPNG: block_total_length, PCAP: incl_len + sizeof(pcaprec_hdr_s)
+        int len_offset = rec_offset + (mPcapngFormat ? 4 : 8);
+        ByteBuffer val = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+
+        for(int i = 0; i < 4; i++)
+            val.put(getByte(flow, len_offset + i));
+
+        return mPcapngFormat ? val.getInt(0) : (val.getInt(0) + 16);
+    }
+
+    /* Returns the stored records of the flow, in the capture order, or null if none */
+    public synchronized byte[] getRecords(long key) {
+        Flow flow = mFlows.get(key);
+
+        if((flow == null) || (flow.count == 0))
+            return null;
+
+        int len = (flow.count - 1) * PAGE_SIZE + flow.tailUsed - flow.headSkip;
+        byte[] rv = new byte[len];
+        int out = 0;
+
+        for(int i = 0; i < flow.count; i++) {
+            int page = flow.pages[(flow.head + i) % flow.pages.length];
+            int start = (i == 0) ? flow.headSkip : 0;
+            int end = (i == flow.count - 1) ? flow.tailUsed : PAGE_SIZE;
+
+            mArena.position(page * PAGE_SIZE + start);
+            mArena.get(rv, out, end - start);
+            out += end - start;
+        }
+
+        return rv;
+    }
+
+    /* Parses the records returned by getRecords. Only returns the packets with a timestamp within
+     * [min_ts_usec, max_ts_usec], which allows to exclude the packets of a previous connection with
+     * the same 5-tuple. Use 0 for no limit. */
+    public ArrayList<PacketInfo> getPackets(byte[] records, long min_ts_usec, long max_ts_usec) {
+        // Not synchronized, so it cannot use mCursor
+        PcapRecordCursor cursor = new PcapRecordCursor(mPcapngFormat).reset(records);
+        ArrayList<PacketInfo> rv = new ArrayList<>();
+
+        while(cursor.next()) {
+            if(!cursor.isPacket())
+                continue;
+
+            long ts_usec = cursor.getTimestampUsec();
+
+            if(((min_ts_usec != 0) && (ts_usec < min_ts_usec)) ||
+                    ((max_ts_usec != 0) && (ts_usec > max_ts_usec)))
+                continue;
+
+            PacketInfo pkt = new PacketInfo();
+            pkt.rec_offset = cursor.getOffset();
+            pkt.rec_len = cursor.getLength();
+            pkt.ts_usec = ts_usec;
+            pkt.orig_len = cursor.getOrigLength();
+            pkt.pkt_offset = cursor.getPacketOffset();
+            pkt.pkt_len = cursor.getPacketLength();
+
+            if(mHasEthHdr) {
+                // NOTE: the orig_len also includes the PCAPdroid trailer
+                pkt.pkt_offset += ETH_HDR_SIZE;
+                pkt.pkt_len -= ETH_HDR_SIZE;
+            }
+
+            rv.add(pkt);
+        }
+
+        return rv;
+    }
+
+    public synchronized String getStats() {
+        return String.format(Locale.ROOT, "flows=%d, used=%d/%d pages, stored=%d, dropped=%d records",
+                mFlows.size(), mFreePages.length - mNumFree, mFreePages.length, mStoredRecords, mDroppedRecords);
+    }
+}
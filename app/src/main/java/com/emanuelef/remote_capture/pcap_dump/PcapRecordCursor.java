@@ -0,0 +1,175 @@
+package com.emanuelef.remote_capture.pcap_dump;
+
+import java.nio.ByteOrder;
+
+/* A reusable cursor over the PCAP records (or PCAPNG blocks) of a buffer, e.g. the data received
+ * via CaptureService::dumpPcapData. The fields are read directly from the array, so iterating the
+ * records does not allocate. Usage:
+ *
+ *   cursor.reset(data);
+ *   while(cursor.next()) { ... cursor.getOffset(), cursor.getLength() ... }
+ *
+ * A record which is truncated or has an invalid length stops the iteration, see isTruncated.
+ * The packet accessors are only valid if isPacket returns true. With the PCAPdroid trailer, the
+ * packet also includes the Ethernet header and the trailer.
+ * NOTE: this class must not depend on the Android framework, as it is also built by the benchmark module. */
+public class PcapRecordCursor {
+    private static final boolean LITTLE_ENDIAN = (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+    private static final int PCAPREC_HDR_SIZE = 16;     // sizeof(pcaprec_hdr_s)
+    private static final int PCAPNG_BLOCK_MIN_SIZE = 12;
+    private static final int PCAPNG_EPB_TYPE = 0x00000006;
+    private static final int PCAPNG_EPB_HDR_SIZE = 28;
+    private static final int PCAPNG_EPB_MIN_SIZE = 32;  // header + block_total_length
+
+    private final boolean mPcapngFormat;
+    private byte[] mData;
+    private int mEnd;
+    private int mNextPos;
+    private int mPos;
+    private int mLen;
+    private boolean mIsPacket;
+    private boolean mTruncated;
+
+    public PcapRecordCursor(boolean pcapng_format) {
+        mPcapngFormat = pcapng_format;
+        reset(new byte[0]);
+    }
+
+    public PcapRecordCursor reset(byte[] data) {
+        return reset(data, 0, data.length);
+    }
+
+    /* Iterates the records in data[offset, offset + length) */
+    public PcapRecordCursor reset(byte[] data, int offset, int length) {
+        mData = data;
+        mNextPos = offset;
+        mEnd = offset + length;
+        mPos = offset;
+        mLen = 0;
+        mIsPacket = false;
+        mTruncated = false;
+        return this;
+    }
+
+    private int getInt(int pos) {
+        if(LITTLE_ENDIAN)
+            return (mData[pos] & 0xFF) | ((mData[pos + 1] & 0xFF) << 8) |
+                    ((mData[pos + 2] & 0xFF) << 16) | ((mData[pos + 3] & 0xFF) << 24);
+        else
+            return ((mData[pos] & 0xFF) << 24) | ((mData[pos + 1] & 0xFF) << 16) |
+                    ((mData[pos + 2] & 0xFF) << 8) | (mData[pos + 3] & 0xFF);
+    }
+
+    /* Moves to the next record. Returns false at the end of the data, or if the next record is invalid */
+    public boolean next() {
+        int remaining = mEnd - mNextPos;
+
+        if(mTruncated || (remaining <= 0))
+            return false;
+
+        int pos = mNextPos;
+        int rec_len;
+        boolean is_packet;
+
+        if(mPcapngFormat) {
+            if(remaining < PCAPNG_BLOCK_MIN_SIZE)
+                return truncated();
+
+            // the block_total_length includes the block header
+            rec_len = getInt(pos + 4);
+            if((rec_len < PCAPNG_BLOCK_MIN_SIZE) || ((rec_len & 0x03) != 0) || (rec_len > remaining))
+                return truncated();
+
+            is_packet = (getInt(pos) == PCAPNG_EPB_TYPE);
+            if(is_packet) {
+                if(rec_len < PCAPNG_EPB_MIN_SIZE)
+                    return truncated();
+
+                int captured_len = getInt(pos + 20);
+                if((captured_len < 0) || (captured_len > rec_len - PCAPNG_EPB_MIN_SIZE))
+                    return truncated();
+            }
+        } else {
+            if(remaining < PCAPREC_HDR_SIZE)
+                return truncated();
+
+            int incl_len = getInt(pos + 8);
+            if((incl_len < 0) || (incl_len > remaining - PCAPREC_HDR_SIZE))
+                return truncated();
+
+            rec_len = PCAPREC_HDR_SIZE + incl_len;
+            is_packet = true;
+        }
+
+        mPos = pos;
+        mLen = rec_len;
+        mIsPacket = is_packet;
+        mNextPos = pos + rec_len;
+        return true;
+    }
+
+    private boolean truncated() {
+        mTruncated = true;
+        mLen = 0;
+        mIsPacket = false;
+        return false;
+    }
+
+    /* True if the iteration was stopped by a truncated or invalid record */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    /* The number of bytes of the data which were not iterated */
+    public int getRemaining() {
+        return mEnd - mNextPos;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    /* The record offset in the data */
+    public int getOffset() {
+        return mPos;
+    }
+
+    /* The whole record length, including the record header */
+    public int getLength() {
+        return mLen;
+    }
+
+    /* False for the PCAPNG blocks which do not contain a packet, e.g. an Interface Description Block */
+    public boolean isPacket() {
+        return mIsPacket;
+    }
+
+    public long getTimestampUsec() {
+        if(mPcapngFormat)
+            return ((getInt(mPos + 12) & 0xFFFFFFFFL) << 32) | (getInt(mPos + 16) & 0xFFFFFFFFL);
+        else
+            return (getInt(mPos) & 0xFFFFFFFFL) * 1000000 + (getInt(mPos + 4) & 0xFFFFFFFFL);
+    }
+
+    public long getTimestampSec() {
+        if(mPcapngFormat)
+            return getTimestampUsec() / 1000000;
+        else
+            return getInt(mPos) & 0xFFFFFFFFL;
+    }
+
+    /* The packet offset in the data */
+    public int getPacketOffset() {
+        return mPos + (mPcapngFormat ? PCAPNG_EPB_HDR_SIZE : PCAPREC_HDR_SIZE);
+    }
+
+    /* The captured length of the packet */
+    public int getPacketLength() {
+        return mPcapngFormat ? getInt(mPos + 20) : (mLen - PCAPREC_HDR_SIZE);
+    }
+
+    /* The original length of the packet, before the snaplen truncation */
+    public int getOrigLength() {
+        return getInt(mPos + (mPcapngFormat ? 24 : 12));
+    }
+}
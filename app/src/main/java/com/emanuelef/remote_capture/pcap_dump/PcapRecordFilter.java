@@ -0,0 +1,337 @@
+package com.emanuelef.remote_capture.pcap_dump;
+
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Filters the PCAP records produced by the capture, so that an HTTP client only receives the
+ * packets it is interested in. The filter is parsed from the query parameters of the stream URL,
+ * all the specified fields must match:
+ *   uid: the app UID
+ *   host: the IP address of either endpoint
+ *   port: the port of either endpoint
+ *   proto: tcp, udp, icmp or an IP protocol number
+ * The UID is only available in the PCAP records when the PCAPdroid trailer is enabled. In the
+ * PCAPNG format, it is read from the comment of the first packet of each connection, so the
+ * connections started before the filter was created do not match.
+ * NOTE: this class must not depend on the Android framework, as it is also built by the benchmark module. */
+public class PcapRecordFilter {
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final int PCAPNG_SHB_TYPE = 0x0a0d0d0a;
+    private static final int PCAPNG_EPB_TYPE = 6;
+    private static final int PCAPNG_EPB_HDR_SIZE = 28;
+    private static final int PCAPNG_OPT_COMMENT = 1;
+    private static final int PCAPDROID_TRAILER_MAGIC = 0x01072021;
+    private static final int PCAPDROID_TRAILER_SIZE = 32;
+    private static final int ETH_HDR_SIZE = 14;
+    private static final int MAX_UID_FLOWS = 16384;
+    private final boolean mPcapngFormat;
+    private final boolean mHasTrailer;
+    private final int mUid;         // -1: any
+    private final byte[] mHost;     // null: any
+    private final int mPort;        // -1: any
+    private final int mProto;       // -1: any
+    private final LinkedHashMap<Long, Boolean> mUidFlows;    // PCAPNG only, the most recent flows of mUid
+    private final PcapRecordCursor mCursor;
+    private byte[] mScratch = new byte[0];
+
+    /* pcap_header: the PCAP header of the stream, used to determine the records format
+     * params: the query parameters. Throws IllegalArgumentException on invalid parameters. */
+    public PcapRecordFilter(byte[] pcap_header, Map<String, String> params, int uid) {
+        ByteBuffer hdr = ByteBuffer.wrap(pcap_header).order(ByteOrder.nativeOrder());
+
+        mPcapngFormat = (hdr.getInt(0) == PCAPNG_SHB_TYPE);
+
+        // 20: pcap_hdr_s.network
+        mHasTrailer = !mPcapngFormat && (hdr.getInt(20) == LINKTYPE_ETHERNET);
+        mCursor = new PcapRecordCursor(mPcapngFormat);
+        mUid = uid;
+        mUidFlows = new LinkedHashMap<Long, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return(size() > MAX_UID_FLOWS);
+            }
+        };
+
+        if((mUid != -1) && !mPcapngFormat && !mHasTrailer)
+            throw new IllegalArgumentException("Filtering by app requires the PCAPdroid trailer or the PCAPNG format");
+
+        String host = params.get("host");
+        if(host != null) {
+            try {
+                mHost = InetAddress.getByName(host).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Invalid host: " + host);
+            }
+        } else
+            mHost = null;
+
+        mPort = parseInt(params, "port", 0, 65535);
+        mProto = parseProto(params.get("proto"));
+    }
+
+    /* Returns true if the params contain a filter */
+    public static boolean hasFilter(Map<String, String> params) {
+        return(params.containsKey("uid") || params.containsKey("app") || params.containsKey("host") ||
+                params.containsKey("port") || params.containsKey("proto"));
+    }
+
+    public static int parseInt(Map<String, String> params, String key, int min, int max) {
+        String val = params.get(key);
+
+        if(val == null)
+            return -1;
+
+        try {
+            int rv = Integer.parseInt(val);
+
+            if((rv >= min) && (rv <= max))
+                return rv;
+        } catch (NumberFormatException ignored) {}
+
+        throw new IllegalArgumentException("Invalid " + key + ": " + val);
+    }
+
+    private static int parseProto(String proto) {
+        if(proto == null)
+            return -1;
+
+        switch(proto.toLowerCase()) {
+            case "tcp": return 6;
+            case "udp": return 17;
+            case "icmp": return 1;
+            case "icmpv6": return 58;
+        }
+
+        try {
+            int rv = Integer.parseInt(proto);
+
+            if((rv >= 0) && (rv <= 255))
+                return rv;
+        } catch (NumberFormatException ignored) {}
+
+        throw new IllegalArgumentException("Invalid proto: " + proto);
+    }
+
+    /* Returns the matching records of the data, or null if no record matches.
+     * NOTE: not thread safe, it must be called by the dumper thread only */
+    public byte[] filter(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+        PcapRecordCursor cursor = mCursor.reset(data);
+        int out_len = 0;
+
+        if(mScratch.length < data.length)
+            mScratch = new byte[data.length];
+
+        while(cursor.next()) {
+            int pos = cursor.getOffset();
+            int rec_len = cursor.getLength();
+
+            if(matches(buf, pos, rec_len)) {
+                System.arraycopy(data, pos, mScratch, out_len, rec_len);
+                out_len += rec_len;
+            }
+        }
+
+        if(out_len == 0)
+            return null;
+        else if(out_len == data.length)
+            return data;
+
+        byte[] rv = new byte[out_len];
+        System.arraycopy(mScratch, 0, rv, 0, out_len);
+        return rv;
+    }
+
+    private boolean matches(ByteBuffer buf, int rec_pos, int rec_len) {
+        int pkt_pos;
+        int pkt_len;
+        int uid = -1;
+
+        if(mPcapngFormat) {
+            if(buf.getInt(rec_pos) != PCAPNG_EPB_TYPE)
+                return true; // e.g. a new interface
+
+            pkt_pos = rec_pos + PCAPNG_EPB_HDR_SIZE;
+            pkt_len = buf.getInt(rec_pos + 20); // captured_len
+
+            if(mUid != -1)
+                uid = getCommentUid(buf, pkt_pos + ((pkt_len + 3) & ~3), rec_pos + rec_len - 4);
+        } else {
+            pkt_pos = rec_pos + 16; // sizeof(pcaprec_hdr_s)
+            pkt_len = rec_len - 16;
+
+            if(mHasTrailer) {
+                if(pkt_len < ETH_HDR_SIZE)
+                    return false;
+
+                int trailer_pos = rec_pos + rec_len - PCAPDROID_TRAILER_SIZE;
+
+                // The trailer fields are in network byte order
+                if((pkt_len >= ETH_HDR_SIZE + PCAPDROID_TRAILER_SIZE) &&
+                        (buf.order(ByteOrder.BIG_ENDIAN).getInt(trailer_pos) == PCAPDROID_TRAILER_MAGIC))
+                    uid = buf.getInt(trailer_pos + 4);
+                buf.order(ByteOrder.nativeOrder());
+
+                pkt_pos += ETH_HDR_SIZE;
+                pkt_len -= ETH_HDR_SIZE;
+            }
+        }
+
+        return matchesPacket(buf, pkt_pos, pkt_len, uid);
+    }
+
+    /* Returns the UID in the "uid=%d" EPB comment, -1 if not found */
+    private static int getCommentUid(ByteBuffer buf, int opt_pos, int opt_end) {
+        while(opt_pos + 4 <= opt_end) {
+            int code = buf.getShort(opt_pos) & 0xFFFF;
+            int len = buf.getShort(opt_pos + 2) & 0xFFFF;
+
+            if(code == 0) // opt_endofopt
+                break;
+
+            if((code == PCAPNG_OPT_COMMENT) && (len > 4) && (opt_pos + 4 + len <= opt_end)) {
+                String comment = new String(buf.array(), opt_pos + 4, len, StandardCharsets.UTF_8);
+
+                if(comment.startsWith("uid=")) {
+                    int end = comment.indexOf(' ');
+
+                    try {
+                        return Integer.parseInt(comment.substring(4, (end > 0) ? end : comment.length()));
+                    } catch (NumberFormatException ignored) {}
+                }
+            }
+
+            opt_pos += 4 + ((len + 3) & ~3);
+        }
+
+        return -1;
+    }
+
+    private boolean matchesPacket(ByteBuffer buf, int pos, int len, int uid) {
+        if(len < 20)
+            return false;
+
+        int ipver = (buf.get(pos) >> 4) & 0x0F;
+        int proto;
+        int l4_pos;
+        int addr_pos;
+        int addr_len;
+
+        if(ipver == 4) {
+            proto = buf.get(pos + 9) & 0xFF;
+            l4_pos = pos + (buf.get(pos) & 0x0F) * 4;
+            addr_pos = pos + 12;
+            addr_len = 4;
+        } else if((ipver == 6) && (len >= 40)) {
+            // NOTE: the extension headers are not handled
+            proto = buf.get(pos + 6) & 0xFF;
+            l4_pos = pos + 40;
+            addr_pos = pos + 8;
+            addr_len = 16;
+        } else
+            return false;
+
+        if((mProto != -1) && (proto != mProto))
+            return false;
+
+        if((mHost != null) && ((mHost.length != addr_len) ||
+                (!addrEquals(buf, addr_pos) && !addrEquals(buf, addr_pos + addr_len))))
+            return false;
+
+        boolean has_ports = ((proto == 6) || (proto == 17)) && (l4_pos + 4 <= pos + len);
+        int sport = has_ports ? getPort(buf, l4_pos) : 0;
+        int dport = has_ports ? getPort(buf, l4_pos + 2) : 0;
+
+        if((mPort != -1) && (!has_ports || ((sport != mPort) && (dport != mPort))))
+            return false;
+
+        if(mUid == -1)
+            return true;
+
+        if(!mPcapngFormat)
+            return(uid == mUid);
+
+        // PCAPNG: the UID is only reported in the first packet of the connection
+        long flow = flowHash(buf, addr_pos, addr_len, proto, sport, dport);
+
+        if(uid == mUid) {
+            mUidFlows.put(flow, true);
+            return true;
+        }
+
+        return mUidFlows.containsKey(flow);
+    }
+
+    /* NOTE: the buffer is in the native byte order */
+    private static int getPort(ByteBuffer buf, int pos) {
+        return(((buf.get(pos) & 0xFF) << 8) | (buf.get(pos + 1) & 0xFF));
+    }
+
+    private boolean addrEquals(ByteBuffer buf, int pos) {
+        for(int i = 0; i < mHost.length; i++) {
+            if(buf.get(pos + i) != mHost[i])
+                return false;
+        }
+        return true;
+    }
+
+    /* Returns the flow key of the IP packet, 0 if the packet cannot be parsed, see flowHash */
+    static long getFlowKey(ByteBuffer buf, int pos, int len) {
+        if(len < 20)
+            return 0;
+
+        int ipver = (buf.get(pos) >> 4) & 0x0F;
+        int proto, l4_pos, addr_pos, addr_len;
+
+        if(ipver == 4) {
+            proto = buf.get(pos + 9) & 0xFF;
+            l4_pos = pos + (buf.get(pos) & 0x0F) * 4;
+            addr_pos = pos + 12;
+            addr_len = 4;
+        } else if((ipver == 6) && (len >= 40)) {
+            proto = buf.get(pos + 6) & 0xFF;
+            l4_pos = pos + 40;
+            addr_pos = pos + 8;
+            addr_len = 16;
+        } else
+            return 0;
+
+        boolean has_ports = ((proto == 6) || (proto == 17)) && (l4_pos + 4 <= pos + len);
+        int sport = has_ports ? getPort(buf, l4_pos) : 0;
+        int dport = has_ports ? getPort(buf, l4_pos + 2) : 0;
+
+        return flowHash(buf, addr_pos, addr_len, proto, sport, dport);
+    }
+
+    /* Returns the flow key of the specified 5-tuple, see flowHash */
+    static long getFlowKey(byte[] src_addr, int sport, byte[] dst_addr, int dport, int proto) {
+        ByteBuffer buf = ByteBuffer.allocate(src_addr.length * 2);
+        buf.put(src_addr).put(dst_addr);
+
+        if((proto != 6) && (proto != 17))
+            sport = dport = 0;
+
+        return flowHash(buf, 0, src_addr.length, proto, sport, dport);
+    }
+
+    /* A direction independent hash of the 5-tuple */
+    private static long flowHash(ByteBuffer buf, int addr_pos, int addr_len, int proto, int sport, int dport) {
+        long src = 0, dst = 0;
+
+        for(int i = 0; i < addr_len; i++) {
+            src = src * 31 + (buf.get(addr_pos + i) & 0xFF);
+            dst = dst * 31 + (buf.get(addr_pos + addr_len + i) & 0xFF);
+        }
+
+        src = src * 65537 + sport;
+        dst = dst * 65537 + dport;
+
+        return((src ^ dst) * 257 + (src + dst) + proto);
+    }
+}
@@ -0,0 +1,233 @@
+package com.emanuelef.remote_capture.pcap_dump;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import com.emanuelef.remote_capture.CaptureService;
+import com.emanuelef.remote_capture.interfaces.PcapDumper;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/* Dumps the PCAP data into a sequence of files, e.g. dump.pcap -> dump_00001.pcap, dump_00002.pcap, ...
+ * A new file is started when the current one would exceed max_size or when the rotation interval
+ * elapses. When max_files is set, the oldest files are deleted. Rotation only happens between the
+ * dumpData calls, so each file is a valid PCAP file, starting with its own header.
+ * When compression is enabled, max_size refers to the uncompressed data and each file is a separate
+ * compressed stream, e.g. dump_00001.pcap.gz.
+ * When indexing is enabled, each uncompressed file gets its own FlowIndex, e.g. dump_00001.pcap.idx
+ * The numbering continues from the existing files, and max_files only applies to the files of the
+ * current capture, so the files of the previous captures are preserved.
+ * Only works with a local directory, as the Storage Access Framework URIs cannot be rotated. */
+public class RotatingFileDumper implements PcapDumper {
+    public static final String TAG = "RotatingFileDumper";
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private final File mDir;
+    private final String mPrefix;
+    private final String mExtension;
+    private final long mMaxSize;        // 0: unlimited
+    private final long mIntervalMs;     // 0: unlimited
+    private final int mMaxFiles;        // 0: unlimited
+    private final CompressedOutputStream.Codec mCodec;
+    private final int mCompressionLevel;
+    private final boolean mIndexEnabled;
+    private final ArrayDeque<File> mFiles = new ArrayDeque<>();
+    private FileOutputStream mFileStream;
+    private OutputStream mOutputStream;
+    private FlowIndex mIndex;
+    private int mFileIdx;
+    private long mFileSize;
+    private int mHeaderSize;
+    private long mFileStart;
+
+    public RotatingFileDumper(File base_file, long max_size, long interval_ms, int max_files,
+                              CompressedOutputStream.Codec codec, int compression_level, boolean index) {
+        String fname = base_file.getName();
+        int extPos = fname.lastIndexOf('.');
+
+        mDir = base_file.getParentFile();
+        mPrefix = (extPos > 0) ? fname.substring(0, extPos) : fname;
+        mExtension = (extPos > 0) ? fname.substring(extPos) : "";
+        mMaxSize = max_size;
+        mIntervalMs = interval_ms;
+        mMaxFiles = max_files;
+        mCodec = codec;
+        mCompressionLevel = compression_level;
+        mIndexEnabled = index && (codec == CompressedOutputStream.Codec.NONE);
+    }
+
+    @Override
+    public void startDumper() throws IOException {
+        Log.d(TAG, "Dumping to " + new File(mDir, mPrefix + "_*" + mExtension) + " [max_size=" + mMaxSize +
+                ", interval_ms=" + mIntervalMs + ", max_files=" + mMaxFiles + "]");
+
+        if((mDir == null) || (!mDir.isDirectory() && !mDir.mkdirs()))
+            throw new IOException("Invalid directory: " + mDir);
+
+        // Continue the numbering, to avoid overwriting the files of the previous captures
+        mFileIdx = getLastFileIdx();
+        mFiles.clear();
+    }
+
+    /* Returns the highest index of the existing dump files, e.g. 2 for dump_00002.pcap.gz, 0 if none */
+    private int getLastFileIdx() {
+        String[] names = mDir.list();
+        String prefix = mPrefix + "_";
+        int last_idx = 0;
+
+        if(names == null)
+            return 0;
+
+        for(String name: names) {
+            if(!name.startsWith(prefix))
+                continue;
+
+            int end = prefix.length();
+            while((end < name.length()) && (name.charAt(end) >= '0') && (name.charAt(end) <= '9'))
+                end++;
+
+            if((end == prefix.length()) || !name.startsWith(mExtension, end))
+                continue;
+
+            try {
+                last_idx = Math.max(last_idx, Integer.parseInt(name.substring(prefix.length(), end)));
+            } catch (NumberFormatException ignored) {}
+        }
+
+        return last_idx;
+    }
+
+    @Override
+    public void stopDumper() throws IOException {
+        closeFile();
+    }
+
+    @Override
+    public String getBpf() {
+        return "";
+    }
+
+    private void openFile() throws IOException {
+        File file = new File(mDir, String.format(Locale.ROOT, "%s_%05d%s%s", mPrefix, ++mFileIdx, mExtension,
+                CompressedOutputStream.getExtension(mCodec)));
+
+        Log.d(TAG, "New file: " + file.getName());
+        mFileStream = new FileOutputStream(file);
+
+        if((mMaxSize > 0) && (mCodec == CompressedOutputStream.Codec.NONE)) {
+            // Pre-allocate the file to reduce the fragmentation, the unused space is released on close.
+            // Not done with compression, as the compressed size is not known in advance.
+            try {
+                Os.posix_fallocate(mFileStream.getFD(), 0, mMaxSize);
+            } catch (ErrnoException e) {
+                // not supported by the filesystem
+                Log.d(TAG, "posix_fallocate failed: " + e.getMessage());
+            }
+        }
+
+        mOutputStream = new BufferedOutputStream(mFileStream, WRITE_BUFFER_SIZE);
+
+        if(mCodec != CompressedOutputStream.Codec.NONE)
+            mOutputStream = new CompressedOutputStream(mOutputStream, mCodec, mCompressionLevel);
+        mFiles.add(file);
+        mFileStart = SystemClock.elapsedRealtime();
+
+        byte[] hdr = CaptureService.getPcapHeader();
+        mOutputStream.write(hdr);
+        mHeaderSize = hdr.length;
+        mFileSize = hdr.length;
+
+        if(mIndexEnabled) {
+            try {
+                mIndex = new FlowIndex(FlowIndex.getIndexFile(file), hdr);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not create the index: " + e.getMessage());
+            }
+        }
+
+        // Retention policy
+        while((mMaxFiles > 0) && (mFiles.size() > mMaxFiles)) {
+            File old = mFiles.removeFirst();
+            File old_idx = FlowIndex.getIndexFile(old);
+
+            if(!old.delete())
+                Log.w(TAG, "Could not delete " + old.getName());
+            if(old_idx.exists() && !old_idx.delete())
+                Log.w(TAG, "Could not delete " + old_idx.getName());
+        }
+    }
+
+    private void closeIndex() {
+        if(mIndex == null)
+            return;
+
+        try {
+            mIndex.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close the index: " + e.getMessage());
+        }
+        mIndex = null;
+    }
+
+    private void closeFile() throws IOException {
+        closeIndex();
+
+        if(mOutputStream == null)
+            return;
+
+        try {
+            if(mOutputStream instanceof CompressedOutputStream) {
+                mOutputStream.close();
+                Log.d(TAG, "Compression stats: " + ((CompressedOutputStream) mOutputStream).getStats());
+            } else {
+                mOutputStream.flush();
+
+                // Release the pre-allocated space
+                mFileStream.getChannel().truncate(mFileSize);
+            }
+        } finally {
+            mOutputStream.close();
+            mOutputStream = null;
+            mFileStream = null;
+        }
+    }
+
+    private boolean shouldRotate(int data_len) {
+        // Only rotate non-empty files, so that a single dump which exceeds mMaxSize is still written
+        return(((mMaxSize > 0) && (mFileSize + data_len > mMaxSize) && (mFileSize > mHeaderSize)) ||
+                ((mIntervalMs > 0) && ((SystemClock.elapsedRealtime() - mFileStart) >= mIntervalMs)));
+    }
+
+    @Override
+    public void dumpData(byte[] data) throws IOException {
+        if((mOutputStream != null) && shouldRotate(data.length)) {
+            closeFile();
+
+            // Dump the PCAPNG comments again, so that each file is self-contained
+            CaptureService.resetPcapngComments();
+        }
+
+        if(mOutputStream == null)
+            openFile();
+
+        mOutputStream.write(data);
+
+        if(mIndex != null) {
+            try {
+                mIndex.addRecords(data, mFileSize);
+            } catch (IOException e) {
+                // The PCAP is still valid, just stop indexing it
+                Log.w(TAG, "Index write failed: " + e.getMessage());
+                closeIndex();
+            }
+        }
+        mFileSize += data.length;
+    }
+}
@@ -0,0 +1,290 @@
+package com.emanuelef.remote_capture.pcap_dump;
+
+import android.util.Log;
+
+import com.emanuelef.remote_capture.CaptureService;
+import com.emanuelef.remote_capture.interfaces.PcapDumper;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/* Streams the PCAP data to a TCP collector.
+ * The capture thread never blocks on the network: dumpData appends the data to a bounded backlog,
+ * which is sent by a dedicated thread via a non-blocking SocketChannel. When the backlog is full,
+ * the new data is dropped and accounted into the stats.
+ * On connection errors, the dumper reconnects with an exponential backoff and resumes from the
+ * oldest unsent dump, so no data is lost as long as the backlog does not fill up. Each connection
+ * is a complete PCAP stream, starting with the PCAP header. A dump partially sent on the broken
+ * connection is sent again in full on the new one. */
+public class TCPDumper implements PcapDumper {
+    public static final String TAG = "TCPDumper";
+    private static final long MAX_BACKLOG_BYTES = 8 * 1024 * 1024;
+    private static final long RECONNECT_MIN_DELAY_MS = 1000;
+    private static final long RECONNECT_MAX_DELAY_MS = 30000;
+    private static final long STOP_FLUSH_TIMEOUT_MS = 3000;
+    private final InetSocketAddress mServer;
+    private final ArrayDeque<byte[]> mBacklog = new ArrayDeque<>();     // guarded by this
+    private volatile byte[] mPcapHeader;
+    private volatile boolean mRunning;
+    private Selector mSelector;
+    private Thread mThread;
+
+    /* Used by the sender thread only */
+    private SocketChannel mChannel;
+    private ByteBuffer mHeaderBuf;      // the PCAP header of the current connection
+    private ByteBuffer mOut;            // the backlog head being sent, null if none
+    private long mReconnectDelay;
+    private long mNextConnect;
+
+    /* Stats, guarded by this */
+    private long mBacklogBytes;
+    private long mMaxBacklogBytes;
+    private long mSentBytes;
+    private long mDroppedBytes;
+    private int mDroppedDumps;
+    private int mConnections;
+
+    public TCPDumper(InetSocketAddress server) {
+        mServer = server;
+    }
+
+    @Override
+    public void startDumper() throws IOException {
+        mSelector = Selector.open();
+        mReconnectDelay = RECONNECT_MIN_DELAY_MS;
+        mNextConnect = 0;
+        mRunning = true;
+
+        mThread = new Thread(this::senderLoop, "TCPDumper");
+        mThread.start();
+    }
+
+    @Override
+    public void stopDumper() throws IOException {
+        mRunning = false;
+        mSelector.wakeup();
+
+        try {
+            mThread.join();
+        } catch (InterruptedException ignored) {}
+
+        Log.i(TAG, "Stats: " + getStats());
+    }
+
+    @Override
+    public String getBpf() {
+        return "not (host " + mServer.getAddress().getHostAddress() + " and tcp port " + mServer.getPort() + ")";
+    }
+
+    /* NOTE: the data array is retained until sent, so it must not be reused by the caller */
+    @Override
+    public void dumpData(byte[] data) {
+        if(mPcapHeader == null)
+            mPcapHeader = CaptureService.getPcapHeader();
+
+        synchronized (this) {
+            if(mBacklogBytes + data.length > MAX_BACKLOG_BYTES) {
+                mDroppedBytes += data.length;
+                mDroppedDumps++;
+                return;
+            }
+
+            mBacklog.add(data);
+            mBacklogBytes += data.length;
+            mMaxBacklogBytes = Math.max(mMaxBacklogBytes, mBacklogBytes);
+        }
+
+        mSelector.wakeup();
+    }
+
+    public synchronized String getStats() {
+        return String.format(Locale.ROOT, "sent=%d B, dropped=%d B (%d dumps), backlog=%d B (max %d B), connections=%d",
+                mSentBytes, mDroppedBytes, mDroppedDumps, mBacklogBytes, mMaxBacklogBytes, mConnections);
+    }
+
+    private void connect() throws IOException {
+        Log.d(TAG, "Connecting to " + mServer);
+
+        mChannel = SocketChannel.open();
+        CaptureService.requireInstance().protect(mChannel.socket());
+        mChannel.configureBlocking(false);
+
+        // Always start a new connection with the PCAP header, then resend the backlog head in full
+        mHeaderBuf = null;
+        mOut = null;
+
+        if(mChannel.connect(mServer))
+            onConnected();
+        else
+            mChannel.register(mSelector, SelectionKey.OP_CONNECT);
+    }
+
+    private void onConnected() throws IOException {
+        Log.d(TAG, "Connected to " + mServer);
+
+        boolean reconnected;
+
+        synchronized (this) {
+            reconnected = (mConnections++ > 0);
+        }
+        mReconnectDelay = RECONNECT_MIN_DELAY_MS;
+
+        // OP_READ is only used to detect the connection close
+        mChannel.register(mSelector, SelectionKey.OP_READ);
+
+        // The collector may not have received the PCAPNG comments of the active connections
+        if(reconnected)
+            CaptureService.resetPcapngComments();
+    }
+
+    private void disconnect(IOException e) {
+        Log.w(TAG, "Connection error: " + e.getMessage() + ", reconnecting in " + mReconnectDelay + " ms [" + getStats() + "]");
+
+        try {
+            mChannel.close();
+        } catch (IOException ignored) {}
+
+        mChannel = null;
+        mNextConnect = System.currentTimeMillis() + mReconnectDelay;
+        mReconnectDelay = Math.min(mReconnectDelay * 2, RECONNECT_MAX_DELAY_MS);
+    }
+
+    /* Returns true if there is more data to send */
+    private boolean sendPending() throws IOException {
+        if(mHeaderBuf == null) {
+            byte[] header = mPcapHeader;
+
+            if(header == null)
+                return false; // no data yet
+
+            mHeaderBuf = ByteBuffer.wrap(header);
+        }
+
+        if(mHeaderBuf.hasRemaining()) {
+            mChannel.write(mHeaderBuf);
+
+            if(mHeaderBuf.hasRemaining())
+                return true; // socket buffer full
+        }
+
+        while(true) {
+            if(mOut == null) {
+                byte[] next;
+
+                synchronized (this) {
+                    next = mBacklog.peek();
+                }
+
+                if(next == null)
+                    return false;
+
+                mOut = ByteBuffer.wrap(next);
+            }
+
+            mChannel.write(mOut);
+
+            if(mOut.hasRemaining())
+                return true; // socket buffer full
+
+            // The dump was fully sent, it can now be removed from the backlog
+            synchronized (this) {
+                byte[] sent = mBacklog.poll();
+
+                if(sent != null) {
+                    mBacklogBytes -= sent.length;
+                    mSentBytes += sent.length;
+                }
+            }
+            mOut = null;
+        }
+    }
+
+    private void handleIO(int ready_ops) throws IOException {
+        SelectionKey key = mChannel.keyFor(mSelector);
+
+        if((key == null) || !key.isValid())
+            return;
+
+        if(((ready_ops & SelectionKey.OP_CONNECT) != 0) && mChannel.finishConnect())
+            onConnected();
+
+        if(!mChannel.isConnected())
+            return;
+
+        if((ready_ops & SelectionKey.OP_READ) != 0) {
+            ByteBuffer discard = ByteBuffer.allocate(512);
+
+            if(mChannel.read(discard) < 0)
+                throw new IOException("Connection closed by the collector");
+        }
+
+        boolean morePending = sendPending();
+        key.interestOps(SelectionKey.OP_READ | (morePending ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private synchronized boolean hasBacklog() {
+        return !mBacklog.isEmpty();
+    }
+
+    private void senderLoop() {
+        long stopDeadline = 0;
+
+        while(true) {
+            long now = System.currentTimeMillis();
+
+            if(!mRunning) {
+                // Try to flush the backlog before terminating
+                if(stopDeadline == 0)
+                    stopDeadline = now + STOP_FLUSH_TIMEOUT_MS;
+
+                if(!hasBacklog() || (mChannel == null) || (now >= stopDeadline))
+                    break;
+            }
+
+            try {
+                if(mChannel == null) {
+                    if(now >= mNextConnect)
+                        connect();
+                }
+
+                long timeout = (mChannel == null) ? Math.max(mNextConnect - now, 1) :
+                        (!mRunning ? Math.max(stopDeadline - now, 1) : 0);
+
+                mSelector.select(timeout);
+
+                if(mChannel != null) {
+                    // NOTE: the readyOps of a key are only meaningful if it was selected
+                    SelectionKey key = mChannel.keyFor(mSelector);
+                    int ready_ops = ((key != null) && mSelector.selectedKeys().contains(key)) ? key.readyOps() : 0;
+
+                    mSelector.selectedKeys().clear();
+                    handleIO(ready_ops);
+                }
+            } catch (IOException e) {
+                if(mChannel != null)
+                    disconnect(e);
+                else {
+                    Log.w(TAG, "Connection failed: " + e.getMessage());
+                    mNextConnect = System.currentTimeMillis() + mReconnectDelay;
+                }
+            }
+        }
+
+        if(mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException ignored) {}
+            mChannel = null;
+        }
+
+        try {
+            mSelector.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -1,35 +1,69 @@
 package com.emanuelef.remote_capture.pcap_dump;
 
+import android.util.Log;
+
 import com.emanuelef.remote_capture.CaptureService;
-import com.emanuelef.remote_capture.Utils;
 import com.emanuelef.remote_capture.interfaces.PcapDumper;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
 
+/* Sends the PCAP records to a UDP collector, see tools/udp_receiver.py.
+ * By default, each record is sent into a separate datagram. When batching is enabled (batch_mtu > 0),
+ * multiple whole records are packed into a single datagram, up to batch_mtu bytes, prepended with
+ * a batch header (all fields in network byte order):
+ *
+ *   [magic (4) | version (2) | num_records (2) | seq (4) | record_1 | ... | record_n ]
+ *
+ * The seq is incremented on each batch, so that the collector can detect the lost batches. The
+ * version 1 header has no seq field.
+ * A record bigger than batch_mtu is sent into a batch on its own, or without the batch header if
+ * the header would not fit into the max datagram size. The records of a dumpData call
+ * are never delayed to the next call. The PCAP header is always sent in a separate datagram. */
 public class UDPDumper implements PcapDumper {
     public static final String TAG = "UDPDumper";
+    public static final int BATCH_MAGIC = 0x50444231; // "PDB1"
+    public static final int BATCH_VERSION = 2;
+    public static final int BATCH_HDR_SIZE = 12;
+    private static final int MAX_DATAGRAM_SIZE = 65507;
     private final InetSocketAddress mServer;
+    private final int mBatchMtu;
+    private final PcapRecordCursor mCursor;
     private boolean mSendHeader;
-    private DatagramSocket mSocket;
+    private DatagramChannel mChannel;
+    private ByteBuffer mBatch;
+    private int mBatchRecords;
+    private int mBatchSeq;
 
-    public UDPDumper(InetSocketAddress server) {
+    public UDPDumper(InetSocketAddress server, boolean pcapng_format, int batch_mtu) {
         mServer = server;
+        mBatchMtu = (batch_mtu > 0) ? Math.max(Math.min(batch_mtu, MAX_DATAGRAM_SIZE), BATCH_HDR_SIZE + 16) : 0;
         mSendHeader = true;
+        mCursor = new PcapRecordCursor(pcapng_format);
     }
 
     @Override
     public void startDumper() throws IOException {
-        mSocket = new DatagramSocket();
-        CaptureService.requireInstance().protect(mSocket);
+        mChannel = DatagramChannel.open();
+        CaptureService.requireInstance().protect(mChannel.socket());
+
+        // NOTE: the channel is not connected, otherwise an ICMP port unreachable from the
+        // collector would make the next write fail
+
+        if(mBatchMtu > 0) {
+            mBatch = ByteBuffer.allocateDirect(mBatchMtu);
+            mBatch.order(ByteOrder.BIG_ENDIAN);
+            mBatchRecords = 0;
+        }
+        mBatchSeq = 0;
     }
 
     @Override
     public void stopDumper() throws IOException {
-        mSocket.close();
+        mChannel.close();
     }
 
     @Override
@@ -37,9 +71,74 @@ public class UDPDumper implements PcapDumper {
         return "not (host " + mServer.getAddress().getHostAddress() + " and udp port " + mServer.getPort() + ")";
     }
 
-    private void sendDatagram(byte[] data, int offset, int len) throws IOException {
-        DatagramPacket request = new DatagramPacket(data, offset, len, mServer);
-        mSocket.send(request);
+    private void startBatch() {
+        mBatch.clear();
+        mBatch.putInt(BATCH_MAGIC);
+        mBatch.putShort((short) BATCH_VERSION);
+        mBatch.putShort((short) 0); // num_records, set in flushBatch
+        mBatch.putInt(0);           // seq, set in flushBatch
+        mBatchRecords = 0;
+    }
+
+    private void flushBatch() throws IOException {
+        if(mBatchRecords == 0)
+            return;
+
+        mBatch.putShort(6, (short) mBatchRecords);
+        mBatch.putInt(8, mBatchSeq++);
+        mBatch.flip();
+        mChannel.send(mBatch, mServer);
+        mBatchRecords = 0;
+    }
+
+    private void sendBigRecord(ByteBuffer rec) throws IOException {
+        // Should be rare, e.g. with GRO packets in root mode
+        if(BATCH_HDR_SIZE + rec.remaining() > MAX_DATAGRAM_SIZE) {
+            if(rec.remaining() > MAX_DATAGRAM_SIZE) {
+                Log.w(TAG, "Record too big for a datagram, " + rec.remaining() + " bytes dropped");
+                return;
+            }
+
+            // No room for the batch header, send the raw record as in the non-batched mode
+            mChannel.send(rec, mServer);
+            return;
+        }
+
+        ByteBuffer big = ByteBuffer.allocate(BATCH_HDR_SIZE + rec.remaining());
+        big.putInt(BATCH_MAGIC);
+        big.putShort((short) BATCH_VERSION);
+        big.putShort((short) 1);
+        big.putInt(mBatchSeq++);
+        big.put(rec);
+        big.flip();
+
+        mChannel.send(big, mServer);
+    }
+
+    private void dumpBatched(ByteBuffer data) throws IOException {
+        startBatch();
+
+        while(mCursor.next()) {
+            int pos = mCursor.getOffset();
+            int rec_len = mCursor.getLength();
+
+            data.limit(pos + rec_len).position(pos);
+
+            if(mBatch.remaining() < rec_len) {
+                flushBatch();
+                startBatch();
+
+                if(mBatch.remaining() < rec_len) {
+                    sendBigRecord(data);
+                    continue;
+                }
+            }
+
+            mBatch.put(data);
+            mBatchRecords++;
+        }
+
+        flushBatch();
     }
 
     @Override
@@ -48,16 +147,25 @@ public class UDPDumper implements PcapDumper {
             mSendHeader = false;
 
             byte[] hdr = CaptureService.getPcapHeader();
-            sendDatagram(hdr, 0, hdr.length);
+            mChannel.send(ByteBuffer.wrap(hdr), mServer);
         }
 
-        Iterator<Integer> it = Utils.iterPcapRecords(data);
-        int pos = 0;
+        // The same buffer is reused for all the records
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        mCursor.reset(data);
+
+        if(mBatchMtu > 0)
+            dumpBatched(buf);
+        else {
+            while(mCursor.next()) {
+                int pos = mCursor.getOffset();
 
-        while(it.hasNext()) {
-            int rec_len = it.next();
-            sendDatagram(data, pos, rec_len);
-            pos += rec_len;
+                buf.limit(pos + mCursor.getLength()).position(pos);
+                mChannel.send(buf, mServer);
+            }
         }
+
+        if(mCursor.isTruncated())
+            Log.w(TAG, "Truncated PCAP data, " + mCursor.getRemaining() + " bytes dropped");
     }
 }
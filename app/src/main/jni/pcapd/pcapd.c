@@ -41,6 +41,7 @@
 #include <linux/ip.h>
 #include <net/if.h>
 #include <time.h>
+#include <inttypes.h>
 #include <pcap.h>
 #include <pcap/sll.h>
 #include "pcapd.h"
@@ -50,7 +51,6 @@
 #include "common/utils.h"
 #include "zdtun.h"
 
-//#define READ_FROM_PCAP "/sdcard/test.pcap"
 #define MAX_IFACES 16
 
 /* ******************************************************* */
@@ -59,6 +59,7 @@ typedef struct {
   char *ifnames[MAX_IFACES];
   char *bpf;
   char *log_file;
+  char *read_file;
   int uid_filter;
   int num_interfaces;
   int daemonize;
@@ -321,11 +322,13 @@ static int init_pcapd_capture(pcapd_runtime_t *rt, pcapd_conf_t *conf) {
   rt->client = -1;
   rt->conf = conf;
 
-  if(!(rt->lru = uid_lru_init(64)))
-    goto err;
+  if(!conf->read_file) {
+    if(!(rt->lru = uid_lru_init(64)))
+      goto err;
 
-  if(!(rt->resolver = init_uid_resolver_from_proc()))
-    goto err;
+    if(!(rt->resolver = init_uid_resolver_from_proc()))
+      goto err;
+  }
 
   for(int i=0; i<conf->num_interfaces; i++)
     init_interface(&rt->ifaces[i]);
@@ -338,13 +341,15 @@ static int init_pcapd_capture(pcapd_runtime_t *rt, pcapd_conf_t *conf) {
     goto err;
   }
 
-  rt->nlsock = nl_socket(RTMGRP_IPV4_ROUTE | RTMGRP_IPV4_IFADDR | RTMGRP_IPV4_RULE |
-                                 RTMGRP_IPV6_ROUTE | RTMGRP_IPV6_IFADDR | RTMGRP_LINK);
-  if(rt->nlsock < 0) {
-    log_e("could not create netlink socket[%d]: %s", errno, strerror(errno));
-    goto err;
+  if(!conf->read_file) {
+    rt->nlsock = nl_socket(RTMGRP_IPV4_ROUTE | RTMGRP_IPV4_IFADDR | RTMGRP_IPV4_RULE |
+                                   RTMGRP_IPV6_ROUTE | RTMGRP_IPV6_IFADDR | RTMGRP_LINK);
+    if(rt->nlsock < 0) {
+      log_e("could not create netlink socket[%d]: %s", errno, strerror(errno));
+      goto err;
+    }
+    rt->maxfd = max(rt->maxfd, rt->nlsock);
   }
-  rt->maxfd = max(rt->maxfd, rt->nlsock);
 
   signal(SIGINT, &sighandler);
   signal(SIGTERM, &sighandler);
@@ -390,8 +395,7 @@ static void init_interface(pcapd_iface_t *iface) {
 
 /* ******************************************************* */
 
-static int open_interface(pcapd_iface_t *iface, pcapd_runtime_t *rt, const char *ifname, int ifid) {
-#ifndef READ_FROM_PCAP
+static pcap_t* open_live(const char *ifname) {
   int mtu = get_iface_mtu(ifname);
 
   if(mtu < 0) {
@@ -407,22 +411,30 @@ static int open_interface(pcapd_iface_t *iface, pcapd_runtime_t *rt, const char
 
   if(!pd) {
     log_i("pcap_open_live(%s) failed: %s", ifname, errbuf);
-    return -1;
+    return NULL;
   }
 
   // Fixes pcap_next_ex sometimes hanging on interface down
   // https://github.com/the-tcpdump-group/libpcap/issues/899
   pcap_setnonblock(pd, 1, errbuf);
-#else
-  pcap_t *pd = pcap_open_offline(READ_FROM_PCAP, errbuf);
 
-  if(!pd) {
-    log_i("pcap_open_offline(%s) failed: %s", READ_FROM_PCAP, errbuf);
-    return -1;
-  }
+  return pd;
+}
 
-  strcpy(ifname, "pcap");
-#endif
+/* ******************************************************* */
+
+static int open_interface(pcapd_iface_t *iface, pcapd_runtime_t *rt, const char *ifname, int ifid) {
+  const char *read_file = rt->conf->read_file;
+  pcap_t *pd;
+
+  if(read_file) {
+    // PCAP and PCAPNG files are both supported by libpcap
+    if(!(pd = pcap_open_offline(read_file, errbuf))) {
+      log_i("pcap_open_offline(%s) failed: %s", read_file, errbuf);
+      return -1;
+    }
+  } else if(!(pd = open_live(ifname)))
+    return -1;
 
   int dlink = pcap_datalink(pd);
   int ipoffset;
@@ -463,7 +475,19 @@ static int open_interface(pcapd_iface_t *iface, pcapd_runtime_t *rt, const char
   // Success
   iface->pd = pd;
   iface->mac = 0;
+  iface->ip = 0;
   iface->ifid = ifid;
+  iface->dlink = dlink;
+  iface->ipoffset = ipoffset;
+  strncpy(iface->name, ifname, IFNAMSIZ);
+  iface->name[IFNAMSIZ - 1] = '\0';
+
+  if(read_file) {
+    // Not a real interface, the direction can only be determined from the datalink header
+    memset(&iface->ip6, 0, sizeof(iface->ip6));
+    return 0;
+  }
+
   iface->ifidx = if_nametoindex(ifname);
 
   errno = 0;
@@ -471,7 +495,6 @@ static int open_interface(pcapd_iface_t *iface, pcapd_runtime_t *rt, const char
     log_i("Could not get interface \"%s\" MAC[%d]: %s", ifname, errno, strerror(errno));
 
   uint32_t netmask;
-  iface->ip = 0;
   if(get_iface_ip(ifname, &iface->ip, &netmask) < 0)
     log_i("Could not get interface \"%s\" IP[%d]: %s", ifname, errno, strerror(errno));
 
@@ -480,12 +503,8 @@ static int open_interface(pcapd_iface_t *iface, pcapd_runtime_t *rt, const char
     memset(&iface->ip6, 0, sizeof(iface->ip6));
   }
 
-  iface->dlink = dlink;
-  iface->ipoffset = ipoffset;
   iface->pf = pcap_get_selectable_fd(pd);
   rt->maxfd = max(rt->maxfd, iface->pf);
-  strncpy(iface->name, ifname, IFNAMSIZ);
-  iface->name[IFNAMSIZ - 1] = '\0';
 
   return 0;
 }
@@ -569,10 +588,6 @@ static int handle_nl_message(pcapd_runtime_t *rt) {
   ssize_t len = recvmsg(rt->nlsock, &msg, 0);
   uint8_t recheck_inet = 0;
 
-#ifdef READ_FROM_PCAP
-  return 0;
-#endif
-
   if(len <= 0) {
     log_e("netlink recvmsg failed [%d]: %s\n", errno, strerror(errno));
     return -1;
@@ -703,7 +718,10 @@ static int read_pkt(pcapd_runtime_t *rt, pcapd_iface_t *iface, time_t now) {
   int to_skip = iface->ipoffset;
   int rv1 = pcap_next_ex(iface->pd, &hdr, &pkt);
 
-  if(rv1 == PCAP_ERROR) {
+  if(rv1 == PCAP_ERROR_BREAK) {
+    // No more packets in the PCAP file
+    return 1;
+  } else if(rv1 == PCAP_ERROR) {
     log_i("pcap_next_ex failed: %s", pcap_geterr(iface->pd));
 
     // Do not abort, just wait for route changes
@@ -726,11 +744,16 @@ static int read_pkt(pcapd_runtime_t *rt, pcapd_iface_t *iface, time_t now) {
         tupleSwapPeers(&zpkt.tuple);
       }
 
-      int uid = uid_lru_find(rt->lru, &zpkt.tuple);
+      int uid = UID_UNKNOWN;
 
-      if(uid == -2) {
-        uid = get_uid(rt->resolver, &zpkt.tuple);
-        uid_lru_add(rt->lru, &zpkt.tuple, uid);
+      // The connections of a PCAP file do not belong to the local processes
+      if(!rt->conf->read_file) {
+        uid = uid_lru_find(rt->lru, &zpkt.tuple);
+
+        if(uid == -2) {
+          uid = get_uid(rt->resolver, &zpkt.tuple);
+          uid_lru_add(rt->lru, &zpkt.tuple, uid);
+        }
       }
 
       if((rt->conf->uid_filter == -1) || (rt->conf->uid_filter == uid)) {
@@ -767,7 +790,7 @@ static int read_pkt(pcapd_runtime_t *rt, pcapd_iface_t *iface, time_t now) {
     }
   }
 
-  if(now >= iface->next_stats_update) {
+  if(!rt->conf->read_file && (now >= iface->next_stats_update)) {
     // TODO stats for all the interfaces
     pcap_stats(iface->pd, &iface->stats);
     iface->next_stats_update = now + 3;
@@ -778,6 +801,32 @@ static int read_pkt(pcapd_runtime_t *rt, pcapd_iface_t *iface, time_t now) {
 
 /* ******************************************************* */
 
+/* Read all the packets of the PCAP file as fast as possible. The pace is only determined by the
+ * client, which blocks the writes on the UNIX socket when it cannot keep up. */
+static int read_pcap_file(pcapd_runtime_t *rt) {
+  pcapd_iface_t *iface = &rt->ifaces[0];
+  uint64_t num_pkts = 0;
+  int rv;
+
+  while(running) {
+    if((rv = read_pkt(rt, iface, 0)) != 0)
+      break;
+
+    if(!iface->pd) {
+      // read error, see read_pkt
+      rv = -1;
+      break;
+    }
+
+    num_pkts++;
+  }
+
+  log_i("PCAP file read completed: %" PRIu64 " packets", num_pkts);
+  return (rv < 0) ? -1 : 0;
+}
+
+/* ******************************************************* */
+
 static int run_pcap_dump(pcapd_conf_t *conf) {
   int rv = -1;
   struct timespec ts = {0};
@@ -799,6 +848,14 @@ static int run_pcap_dump(pcapd_conf_t *conf) {
 
   log_d("Using BPF: %s", rt.bpf);
 
+  if(conf->read_file) {
+    running = 1;
+
+    if(open_interface(&rt.ifaces[0], &rt, conf->ifnames[0], 0) == 0)
+      rv = read_pcap_file(&rt);
+    goto cleanup;
+  }
+
   check_inet_interface(&rt);
 
   for(int i=0; i<conf->num_interfaces; i++) {
@@ -881,6 +938,8 @@ static void usage() {
     " -b [bpf]       filter packets by BPF filter\n"
     " -l [file]      log output to the specified file\n"
     " -n             do not connect to the UNIX socket, log to stdout instead\n"
+    " -r [file]      read packets from the specified PCAP/PCAPNG file as fast as\n"
+    "                possible, instead of capturing them. Exits at end of file\n"
   );
 
   exit(1);
@@ -896,7 +955,7 @@ static void parse_args(pcapd_conf_t *conf, int argc, char **argv) {
   conf->inet_ifid = -1;
   opterr = 0;
 
-  while ((c = getopt (argc, argv, "hdtni:u:b:l:")) != -1) {
+  while ((c = getopt (argc, argv, "hdtni:u:b:l:r:")) != -1) {
     switch(c) {
       case 'i':
         if(conf->num_interfaces >= MAX_IFACES) {
@@ -936,6 +995,10 @@ static void parse_args(pcapd_conf_t *conf, int argc, char **argv) {
         if(conf->log_file) free(conf->log_file);
         conf->log_file = strdup(optarg);
         break;
+      case 'r':
+        if(conf->read_file) free(conf->read_file);
+        conf->read_file = strdup(optarg);
+        break;
       default:
         usage();
     }
@@ -954,7 +1017,14 @@ static void parse_args(pcapd_conf_t *conf, int argc, char **argv) {
       log_e("Could not open log file[%d]: %s", errno, strerror(errno));
   }
 
-  if(conf->num_interfaces == 0) {
+  if(conf->read_file) {
+    if(conf->num_interfaces > 0) {
+      fprintf(stderr, "-i cannot be used with -r\n");
+      exit(1);
+    }
+
+    conf->ifnames[conf->num_interfaces++] = "pcap";
+  } else if(conf->num_interfaces == 0) {
     conf->inet_ifid = 0;
     conf->ifnames[conf->num_interfaces++] = "@inet";
   }
@@ -977,6 +1047,8 @@ int main(int argc, char *argv[]) {
     free(conf.bpf);
   if(conf.log_file)
     free(conf.log_file);
+  if(conf.read_file)
+    free(conf.read_file);
   if(logf)
     fclose(logf);
 
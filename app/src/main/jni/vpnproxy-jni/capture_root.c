@@ -117,6 +117,36 @@ static int su_cmd(const char *prog, const char *args, bool check_error) {
 
 /* ******************************************************* */
 
+/* Quotes the string for the shell: wraps it into single quotes, with the embedded single quotes
+ * escaped as '\''. Returns -1 if the output does not fit into bufsize. */
+static int shell_quote(const char *str, char *buf, int bufsize) {
+    int len = 0;
+
+    if(bufsize < 3)
+        return -1;
+
+    buf[len++] = '\'';
+
+    for(; *str; str++) {
+        if(*str == '\'') {
+            if(len + 4 >= bufsize - 1)
+                return -1;
+            memcpy(buf + len, "'\\''", 4);
+            len += 4;
+        } else {
+            if(len + 1 >= bufsize - 1)
+                return -1;
+            buf[len++] = *str;
+        }
+    }
+
+    buf[len++] = '\'';
+    buf[len] = '\0';
+    return 0;
+}
+
+/* ******************************************************* */
+
 static void get_libprog_path(vpnproxy_data_t *proxy, const char *prog_name, char *buf, int bufsize) {
     JNIEnv *env = proxy->env;
     jobject prog_str = (*env)->NewStringUTF(env, prog_name);
@@ -216,8 +246,23 @@ static int connectPcapd(vpnproxy_data_t *proxy) {
         log_d("Using dumper BPF \"%s\"", bpf);
 
     // Start the daemon
-    char args[256];
-    snprintf(args, sizeof(args), "-l pcapd.log -i %s -d -u %d -b \"%s\"", capture_interface, proxy->app_filter, bpf);
+    char args[4 * PATH_MAX + 32];
+
+    if(proxy->pcap_input[0]) {
+        // The dumper BPF is not needed, as no traffic is generated by the file replay.
+        // The path is passed to the root shell, so it must be quoted.
+        char quoted_path[4 * PATH_MAX];
+
+        log_d("Replaying PCAP file \"%s\"", proxy->pcap_input);
+
+        if(shell_quote(proxy->pcap_input, quoted_path, sizeof(quoted_path)) != 0) {
+            log_f("PCAP file path too long");
+            goto cleanup;
+        }
+
+        snprintf(args, sizeof(args), "-l pcapd.log -r %s -d", quoted_path);
+    } else
+        snprintf(args, sizeof(args), "-l pcapd.log -i %s -d -u %d -b \"%s\"", capture_interface, proxy->app_filter, bpf);
     if(su_cmd(pcapd, args, true) != 0)
         goto cleanup;
 
@@ -336,6 +381,17 @@ static void update_connection_status(vpnproxy_data_t *proxy, pcap_conn_t *conn,
 
 /* ******************************************************* */
 
+/* The time used to expire the connections. When replaying a PCAP file, the packets are read much
+ * faster than they were captured, so the packets timestamps must be used instead of the clock. */
+static uint64_t conn_time_ms(vpnproxy_data_t *proxy) {
+    if(proxy->pcap_input[0])
+        return timeval2ms(&proxy->last_pkt_ts);
+
+    return proxy->now_ms;
+}
+
+/* ******************************************************* */
+
 static void handle_packet(vpnproxy_data_t *proxy, pcapd_hdr_t *hdr, const char *buffer) {
     zdtun_pkt_t pkt;
     pcap_conn_t *conn = NULL;
@@ -421,7 +477,7 @@ static void handle_packet(vpnproxy_data_t *proxy, pcapd_hdr_t *hdr, const char *
     }
 
     proxy->last_pkt_ts = hdr->ts;
-    conn->data->last_update_ms = proxy->now_ms;
+    conn->data->last_update_ms = conn_time_ms(proxy);
 
     uint64_t pkt_ms = (uint64_t)hdr->ts.tv_sec * 1000 + hdr->ts.tv_usec / 1000;
     account_packet(proxy, &pkt, from_tun, &conn->tuple, conn->data, pkt_ms);
@@ -433,6 +489,7 @@ static void handle_packet(vpnproxy_data_t *proxy, pcapd_hdr_t *hdr, const char *
 
 static void purge_expired_connections(vpnproxy_data_t *proxy, uint8_t purge_all) {
     pcap_conn_t *conn, *tmp;
+    uint64_t now_ms = conn_time_ms(proxy);
 
     HASH_ITER(hh, proxy->connections, conn, tmp) {
         uint64_t timeout = 0;
@@ -449,7 +506,7 @@ static void purge_expired_connections(vpnproxy_data_t *proxy, uint8_t purge_all)
                 break;
         }
 
-        if(purge_all || (proxy->now_ms >= (conn->data->last_update_ms + timeout))) {
+        if(purge_all || (now_ms >= (conn->data->last_update_ms + timeout))) {
             //log_d("IDLE (type=%d)", conn->tuple.ipproto);
 
             // The connection data will be purged
@@ -483,6 +540,8 @@ int run_root(vpnproxy_data_t *proxy) {
     if((proxy->tun = zdtun_init(&callbacks, NULL)) == NULL)
         return(-1);
 
+    getStringPref(proxy, "getPcapInputPath", proxy->pcap_input, sizeof(proxy->pcap_input));
+
     if((sock = connectPcapd(proxy)) < 0) {
         rv = -1;
         goto cleanup;
@@ -515,6 +574,12 @@ int run_root(vpnproxy_data_t *proxy) {
             goto housekeeping;
 
         if(xread(sock, &hdr, sizeof(hdr)) < 0) {
+            if(proxy->pcap_input[0]) {
+                // pcapd closes the socket at the end of the file
+                log_i("PCAP file replay completed");
+                break;
+            }
+
             log_e("read hdr from pcapd failed[%d]: %s", errno, strerror(errno));
             goto cleanup;
         }
@@ -25,8 +25,15 @@
 #define SNAPLEN 65535
 #define LINKTYPE_ETHERNET 1
 #define LINKTYPE_RAW      101
+#define PCAPNG_USERAPPL   "PCAPdroid"
 
 static uint8_t pcapdroid_trailer = 0;
+static uint8_t pcapng_format = 0;
+static int snaplen = SNAPLEN;
+static int payload_bytes = -1;
+static pcap_sampling_t sampling = PCAP_SAMPLING_NONE;
+static int sampling_value = 0;
+static uint32_t pcapng_comment_epoch = 1;
 
 /* ******************************************************* */
 
@@ -37,42 +44,266 @@ void pcap_set_pcapdroid_trailer(uint8_t enabled) {
 
 /* ******************************************************* */
 
-void pcap_build_hdr(struct pcap_hdr_s *pcap_hdr) {
+/* Enable the PCAPNG format. When enabled, the pcapdroid_trailer is not used. */
+void pcap_set_pcapng_format(uint8_t enabled) {
+    pcapng_format = enabled;
+}
+
+/* ******************************************************* */
+
+/* Dump the PCAPNG app metadata comment again on the next packet of each connection. Called when the
+ * dumped packets start a new file or stream, which would otherwise lack the comments of the
+ * connections started before. Must be called from the capture thread. */
+void pcap_reset_pcapng_comments() {
+    pcapng_comment_epoch++;
+}
+
+/* ******************************************************* */
+
+static inline bool pcapng_comment_pending(const conn_data_t *conn) {
+    return(conn->pcapng_comment_epoch != pcapng_comment_epoch);
+}
+
+/* ******************************************************* */
+
+/* Limit the bytes dumped for each packet. The snaplen limits the size of the dumped frame, including
+ * the PCAPdroid trailer, which is never truncated. When payload_bytes is >= 0, only the L3/L4 headers
+ * plus the first payload_bytes of the L4 payload are dumped ("headers only" mode).
+ * The original length of the packet is always reported in the record. */
+void pcap_set_snaplen(int len, int max_payload_bytes) {
+    snaplen = max(min(len, SNAPLEN), PCAP_MIN_SNAPLEN);
+    payload_bytes = max_payload_bytes;
+}
+
+/* ******************************************************* */
+
+/* Only dump a subset of the packets of each connection, see pcap_sample_pkt */
+void pcap_set_sampling(pcap_sampling_t mode, int value) {
+    if((mode <= PCAP_SAMPLING_NONE) || (mode > PCAP_SAMPLING_BYTES) || (value <= 0))
+        mode = PCAP_SAMPLING_NONE;
+
+    sampling = mode;
+    sampling_value = value;
+}
+
+/* ******************************************************* */
+
+/* Returns true if the packet should be dumped, according to the sampling policy. The connection
+ * counters must already account the packet. The TCP packets with the SYN, FIN or RST flags are always
+ * dumped, so that the connections boundaries are preserved. The dumped packets are never truncated
+ * by the sampling, so their orig_len is always accurate. */
+bool pcap_sample_pkt(const zdtun_pkt_t *pkt, const conn_data_t *conn) {
+    if(sampling == PCAP_SAMPLING_NONE)
+        return(true);
+
+    if((pkt->tuple.ipproto == IPPROTO_TCP) &&
+            (!(pkt->flags & ZDTUN_PKT_IS_FRAGMENT) || (pkt->flags & ZDTUN_PKT_IS_FIRST_FRAGMENT)) &&
+            (pkt->tcp->th_flags & (TH_SYN | TH_FIN | TH_RST)))
+        return(true);
+
+    // 1-based index of the packet in the connection
+    int pkt_idx = conn->sent_pkts + conn->rcvd_pkts;
+
+    switch(sampling) {
+        case PCAP_SAMPLING_FIRST_PACKETS:
+            return(pkt_idx <= sampling_value);
+        case PCAP_SAMPLING_ONE_IN_N:
+            // Always dump the first packets, which usually carry the handshakes and the DPI metadata
+            return((pkt_idx <= PCAP_SAMPLING_MIN_PKTS) || ((pkt_idx % sampling_value) == 0));
+        case PCAP_SAMPLING_BYTES:
+            // Dump the packets which start within the bytes budget
+            return((conn->sent_bytes + conn->rcvd_bytes - pkt->len) < sampling_value);
+        default:
+            return(true);
+    }
+}
+
+/* ******************************************************* */
+
+/* Returns the number of bytes of the packet to dump, see pcap_set_snaplen */
+static int pcap_captured_len(const zdtun_pkt_t *pkt) {
+    int max_len = snaplen;
+
+    if(pcapdroid_trailer && !pcapng_format)
+        // Leave room for the bogus ethernet header, the alignment padding and the trailer
+        max_len = ((snaplen - (int)sizeof(pcapdroid_trailer_t)) & ~0x3) - (int)sizeof(struct ethhdr);
+
+    if(payload_bytes >= 0) {
+        // pkt->l7_len is the L4 payload length
+        int headers_len = pkt->len - pkt->l7_len;
+
+        max_len = min(max_len, headers_len + payload_bytes);
+    }
+
+    return(min(pkt->len, max_len));
+}
+
+/* ******************************************************* */
+
+static inline int pad4(int len) {
+    return (len + 3) & ~0x3;
+}
+
+/* Writes a PCAPNG option into the buffer. Returns the number of bytes written. */
+static int pcapng_write_option(u_char *buffer, uint16_t code, const void *value, uint16_t len) {
+    pcapng_option_t *opt = (pcapng_option_t*) buffer;
+    int padded_len = pad4(len);
+
+    opt->code = code;
+    opt->length = len;
+    buffer += sizeof(pcapng_option_t);
+
+    if(len > 0)
+        memcpy(buffer, value, len);
+    memset(buffer + len, 0, padded_len - len);
+
+    return((int)sizeof(pcapng_option_t) + padded_len);
+}
+
+/* ******************************************************* */
+
+static int pcapng_shb_size() {
+    return((int)sizeof(pcapng_shb_t) +
+        (int)sizeof(pcapng_option_t) + pad4(strlen(PCAPNG_USERAPPL)) + /* shb_userappl */
+        (int)sizeof(pcapng_option_t) +                                  /* opt_endofopt */
+        (int)sizeof(uint32_t));                                         /* total_length */
+}
+
+static int pcapng_idb_size() {
+    return((int)sizeof(pcapng_idb_t) + (int)sizeof(uint32_t));
+}
+
+/* ******************************************************* */
+
+/* Returns the size of the header returned by pcap_build_hdr */
+int pcap_hdr_size() {
+    if(pcapng_format)
+        return(pcapng_shb_size() + pcapng_idb_size());
+
+    return((int)sizeof(struct pcap_hdr_s));
+}
+
+/* ******************************************************* */
+
+/* Builds the file header. The buffer must have at least pcap_hdr_size() bytes available. */
+void pcap_build_hdr(u_char *buffer) {
+    if(pcapng_format) {
+        // Section Header Block
+        pcapng_shb_t *shb = (pcapng_shb_t*) buffer;
+        int offset = sizeof(pcapng_shb_t);
+
+        shb->block_type = PCAPNG_SHB_TYPE;
+        shb->total_length = pcapng_shb_size();
+        shb->byte_order_magic = PCAPNG_BYTE_ORDER_MAGIC;
+        shb->version_major = 1;
+        shb->version_minor = 0;
+        shb->section_length = -1; // unknown
+
+        offset += pcapng_write_option(buffer + offset, PCAPNG_OPT_SHB_USERAPPL,
+                                      PCAPNG_USERAPPL, strlen(PCAPNG_USERAPPL));
+        offset += pcapng_write_option(buffer + offset, PCAPNG_OPT_ENDOFOPT, NULL, 0);
+        *(uint32_t*)(buffer + offset) = shb->total_length;
+        buffer += shb->total_length;
+
+        // Interface Description Block, the timestamps resolution defaults to microseconds
+        pcapng_idb_t *idb = (pcapng_idb_t*) buffer;
+
+        idb->block_type = PCAPNG_IDB_TYPE;
+        idb->total_length = pcapng_idb_size();
+        idb->linktype = LINKTYPE_RAW;
+        idb->reserved = 0;
+        idb->snaplen = snaplen;
+        *(uint32_t*)(buffer + sizeof(pcapng_idb_t)) = idb->total_length;
+        return;
+    }
+
+    struct pcap_hdr_s *pcap_hdr = (struct pcap_hdr_s*) buffer;
+
     pcap_hdr->magic_number = 0xa1b2c3d4;
     pcap_hdr->version_major = 2;
     pcap_hdr->version_minor = 4;
     pcap_hdr->thiszone = 0;
     pcap_hdr->sigfigs = 0;
-    pcap_hdr->snaplen = SNAPLEN;
+    pcap_hdr->snaplen = snaplen;
     pcap_hdr->network = pcapdroid_trailer ? LINKTYPE_ETHERNET : LINKTYPE_RAW;
 }
 
 /* ******************************************************* */
 
-/* Returns the size of a PCAP record */
-int pcap_rec_size(int pkt_len) {
+/* Returns the maximum size of a PCAP record. In PCAPNG format, this accounts for the app metadata
+ * comment, which is only dumped in the first packet of the connection, see pcap_reset_pcapng_comments. */
+int pcap_rec_size(const zdtun_pkt_t *pkt, const conn_data_t *conn) {
+    int captured_len = pcap_captured_len(pkt);
+
+    if(pcapng_format) {
+        int size = (int)sizeof(pcapng_epb_t) + pad4(captured_len) + (int)sizeof(uint32_t);
+
+        if(pcapng_comment_pending(conn))
+            size += (int)sizeof(pcapng_option_t) + pad4(PCAPNG_MAX_COMMENT_LEN) + /* opt_comment */
+                    (int)sizeof(pcapng_option_t);                                 /* opt_endofopt */
+
+        return(size);
+    }
+
     if(pcapdroid_trailer) {
-        pkt_len += (int)(sizeof(pcapdroid_trailer_t) + sizeof(struct ethhdr));
+        captured_len += (int)(sizeof(pcapdroid_trailer_t) + sizeof(struct ethhdr));
 
         // Pad the frame so that the buffer keeps its 4-bytes alignment
-        pkt_len += (~pkt_len + 1) & 0x3;
+        captured_len += (~captured_len + 1) & 0x3;
+    }
+
+    return(captured_len + (int)sizeof(struct pcaprec_hdr_s));
+}
+
+/* ******************************************************* */
+
+static int pcapng_dump_epb(const zdtun_pkt_t *pkt, u_char *buffer, vpnproxy_data_t *proxy, conn_data_t *conn) {
+    pcapng_epb_t *epb = (pcapng_epb_t*) buffer;
+    uint64_t ts = (uint64_t)proxy->last_pkt_ts.tv_sec * 1000000 + proxy->last_pkt_ts.tv_usec;
+    int captured_len = pcap_captured_len(pkt);
+    int offset = sizeof(pcapng_epb_t);
+
+    epb->block_type = PCAPNG_EPB_TYPE;
+    epb->interface_id = 0;
+    epb->timestamp_high = (uint32_t)(ts >> 32);
+    epb->timestamp_low = (uint32_t)ts;
+    epb->captured_len = captured_len;
+    epb->original_len = pkt->len;
+
+    memcpy(buffer + offset, pkt->buf, captured_len);
+    memset(buffer + offset + captured_len, 0, pad4(captured_len) - captured_len);
+    offset += pad4(captured_len);
+
+    if(pcapng_comment_pending(conn)) {
+        char comment[PCAPNG_MAX_COMMENT_LEN];
+        int comment_len = fill_pcapng_comment(comment, sizeof(comment), proxy, conn);
+
+        offset += pcapng_write_option(buffer + offset, PCAPNG_OPT_COMMENT, comment, comment_len);
+        offset += pcapng_write_option(buffer + offset, PCAPNG_OPT_ENDOFOPT, NULL, 0);
+        conn->pcapng_comment_epoch = pcapng_comment_epoch;
     }
 
-    return((pkt_len < SNAPLEN ? pkt_len : SNAPLEN) +
-            (int)sizeof(struct pcaprec_hdr_s));
+    offset += sizeof(uint32_t);
+    epb->total_length = offset;
+    *(uint32_t*)(buffer + offset - sizeof(uint32_t)) = offset;
+
+    return(offset);
 }
 
 /* ******************************************************* */
 
 /* Dumps a packet into the provided buffer. The buffer must have at least pcap_rec_size()
- * bytes available */
-void pcap_dump_rec(const zdtun_pkt_t *pkt, u_char *buffer, vpnproxy_data_t *proxy, conn_data_t *conn) {
+ * bytes available. Returns the number of bytes written. */
+int pcap_dump_rec(const zdtun_pkt_t *pkt, u_char *buffer, vpnproxy_data_t *proxy, conn_data_t *conn) {
+    if(pcapng_format)
+        return(pcapng_dump_epb(pkt, buffer, proxy, conn));
+
     struct pcaprec_hdr_s *pcap_rec = (pcaprec_hdr_s*) buffer;
     int offset = 0;
 
     pcap_rec->ts_sec = proxy->last_pkt_ts.tv_sec;
     pcap_rec->ts_usec = proxy->last_pkt_ts.tv_usec;
-    pcap_rec->incl_len = pcap_rec_size(pkt->len) - (int)sizeof(struct pcaprec_hdr_s);
+    pcap_rec->incl_len = pcap_rec_size(pkt, conn) - (int)sizeof(struct pcaprec_hdr_s);
     pcap_rec->orig_len = pkt->len;
     buffer += sizeof(struct pcaprec_hdr_s);
 
@@ -89,7 +320,7 @@ void pcap_dump_rec(const zdtun_pkt_t *pkt, u_char *buffer, vpnproxy_data_t *prox
         offset += sizeof(struct ethhdr);
     }
 
-    int payload_to_copy = min(pkt->len, pcap_rec->incl_len - offset);
+    int payload_to_copy = min(pcap_captured_len(pkt), pcap_rec->incl_len - offset);
     memcpy(buffer + offset, pkt->buf, payload_to_copy);
     offset += payload_to_copy;
 
@@ -113,6 +344,9 @@ void pcap_dump_rec(const zdtun_pkt_t *pkt, u_char *buffer, vpnproxy_data_t *prox
         //double cpu_time_used = ((double) (clock() - start)) / CLOCKS_PER_SEC;
         //log_d("crc cpu_time_used: %f sec", cpu_time_used);
 
-        pcap_rec->orig_len += padding + sizeof(pcapdroid_trailer_t);
+        // The original frame padding, which differs from the actual one when the packet is truncated
+        pcap_rec->orig_len += ((~pcap_rec->orig_len + 1) & 0x03) + sizeof(pcapdroid_trailer_t);
     }
+
+    return((int)sizeof(struct pcaprec_hdr_s) + pcap_rec->incl_len);
 }
@@ -57,9 +57,75 @@ typedef struct pcapdroid_trailer {
     uint32_t fcs;
 } __packed pcapdroid_trailer_t;
 
+/* PCAPNG format, see https://www.ietf.org/archive/id/draft-tuexen-opsawg-pcapng-03.html
+ * The app metadata is stored into a comment of the first packet dumped for each connection,
+ * e.g. "uid=10123 app=com.example". In Wireshark, use the "frame.comment" filter to locate it,
+ * then follow the stream. Unlike the PCAPdroid trailer, this does not add per-packet overhead. */
+#define PCAPNG_SHB_TYPE             0x0A0D0D0A
+#define PCAPNG_IDB_TYPE             0x00000001
+#define PCAPNG_EPB_TYPE             0x00000006
+#define PCAPNG_BYTE_ORDER_MAGIC     0x1A2B3C4D
+
+#define PCAPNG_OPT_ENDOFOPT         0
+#define PCAPNG_OPT_COMMENT          1
+#define PCAPNG_OPT_SHB_USERAPPL     4
+
+#define PCAPNG_MAX_COMMENT_LEN      96
+
+typedef struct pcapng_shb {
+    uint32_t block_type;
+    uint32_t total_length;
+    uint32_t byte_order_magic;
+    uint16_t version_major;
+    uint16_t version_minor;
+    int64_t section_length;
+} __packed pcapng_shb_t;
+
+typedef struct pcapng_idb {
+    uint32_t block_type;
+    uint32_t total_length;
+    uint16_t linktype;
+    uint16_t reserved;
+    uint32_t snaplen;
+} __packed pcapng_idb_t;
+
+typedef struct pcapng_epb {
+    uint32_t block_type;
+    uint32_t total_length;
+    uint32_t interface_id;
+    uint32_t timestamp_high;
+    uint32_t timestamp_low;
+    uint32_t captured_len;
+    uint32_t original_len;
+} __packed pcapng_epb_t;
+
+typedef struct pcapng_option {
+    uint16_t code;
+    uint16_t length;
+} __packed pcapng_option_t;
+
+#define PCAP_HDR_MAX_SIZE 128
+#define PCAP_MIN_SNAPLEN  96
+
+/* Must match the Prefs.PcapSampling enum */
+typedef enum {
+    PCAP_SAMPLING_NONE = 0,
+    PCAP_SAMPLING_FIRST_PACKETS,    // the first N packets of each connection
+    PCAP_SAMPLING_ONE_IN_N,         // one packet every N packets of each connection
+    PCAP_SAMPLING_BYTES,            // the first N bytes of each connection
+} pcap_sampling_t;
+
+#define PCAP_SAMPLING_MIN_PKTS 8
+
 void pcap_set_pcapdroid_trailer(uint8_t enabled);
-void pcap_build_hdr(struct pcap_hdr_s *pcap_hdr);
-int pcap_rec_size(int pkt_len);
-void pcap_dump_rec(const zdtun_pkt_t *pkt, u_char *buffer, vpnproxy_data_t *proxy, conn_data_t *conn);
+void pcap_set_pcapng_format(uint8_t enabled);
+void pcap_reset_pcapng_comments();
+void pcap_set_snaplen(int len, int max_payload_bytes);
+void pcap_set_sampling(pcap_sampling_t mode, int value);
+bool pcap_sample_pkt(const zdtun_pkt_t *pkt, const conn_data_t *conn);
+int pcap_hdr_size();
+void pcap_build_hdr(u_char *buffer);
+int pcap_rec_size(const zdtun_pkt_t *pkt, const conn_data_t *conn);
+int pcap_dump_rec(const zdtun_pkt_t *pkt, u_char *buffer, vpnproxy_data_t *proxy, conn_data_t *conn);
 
 #endif // __MY_PCAP_H__
@@ -37,7 +37,9 @@ uint32_t new_dns_server = 0;
 bool block_private_dns = false;
 
 static bool dump_capture_stats_now = false;
+static bool has_stats_listeners = false;
 static bool reload_blacklists_now = false;
+static bool reset_pcapng_comments_now = false;
 static ndpi_protocol_bitmask_struct_t masterProtos;
 static int bl_num_checked_connections = 0;
 
@@ -95,6 +97,11 @@ void notify_connection(conn_array_t *arr, const zdtun_5tuple_t *tuple, conn_data
     if(data->pending_notification)
         return;
 
+    // In headless mode, the connections are not sent to java, so only track the connections to free,
+    // see releaseConnectionsDump
+    if(global_proxy->headless && !data->to_purge && (data->status < CONN_STATUS_CLOSED))
+        return;
+
     if(arr->cur_items >= arr->size) {
         /* Extend array */
         arr->size = (arr->size == 0) ? 8 : (arr->size * 2);
@@ -326,6 +333,13 @@ conn_data_t* new_connection(vpnproxy_data_t *proxy, const zdtun_5tuple_t *tuple,
         return(NULL);
     }
 
+    data->uid = uid;
+
+    // In headless mode, the connections metadata is not exported, so skip the DPI and the
+    // host/blacklist lookups. Only the PCAP dump and the counters are needed.
+    if(proxy->headless)
+        return(data);
+
     /* nDPI */
     if((data->ndpi_flow = ndpi_calloc(1, SIZEOF_FLOW_STRUCT)) == NULL) {
         log_e("ndpi_flow_malloc failed");
@@ -342,8 +356,6 @@ conn_data_t* new_connection(vpnproxy_data_t *proxy, const zdtun_5tuple_t *tuple,
         conn_free_ndpi(data);
     }
 
-    data->uid = uid;
-
     // Try to resolve host name via the LRU cache
     const zdtun_ip_t dst_ip = tuple->dst_ip;
     data->info = ip_lru_find(proxy->ip_to_host, &dst_ip);
@@ -658,10 +670,12 @@ int resolve_uid(vpnproxy_data_t *proxy, const zdtun_5tuple_t *conn_info) {
     uid = get_uid(proxy->resolver, conn_info);
 
     if(uid >= 0) {
-        char appbuf[64];
+        if(!proxy->headless) {
+            char appbuf[64];
 
-        get_appname_by_uid(proxy, uid, appbuf, sizeof(appbuf));
-        log_i( "%s [%d/%s]", buf, uid, appbuf);
+            get_appname_by_uid(proxy, uid, appbuf, sizeof(appbuf));
+            log_i( "%s [%d/%s]", buf, uid, appbuf);
+        }
     } else {
         uid = UID_UNKNOWN;
         log_w("%s => UID not found!", buf);
@@ -794,11 +808,35 @@ static int dumpConnectionUpdate(vpnproxy_data_t *proxy, const vpn_conn_t *conn,
 
 /* ******************************************************* */
 
+/* In headless mode, connections are not sent to java. The notification arrays only contain the
+ * closed connections, to keep track of the connections to free (see to_purge), so just release them. */
+static void releaseConnectionsDump(vpnproxy_data_t *proxy) {
+    for(int i=0; i<proxy->new_conns.cur_items; i++)
+        proxy->new_conns.items[i].data->pending_notification = false;
+
+    for(int i=0; i<proxy->conns_updates.cur_items; i++) {
+        conn_data_t *data = proxy->conns_updates.items[i].data;
+
+        data->pending_notification = false;
+        data->update_type = 0;
+    }
+
+    conns_clear(&proxy->new_conns, false);
+    conns_clear(&proxy->conns_updates, false);
+}
+
+/* ******************************************************* */
+
 /* Perform a full dump of the active connections */
 static void sendConnectionsDump(vpnproxy_data_t *proxy) {
     if((proxy->new_conns.cur_items == 0) && (proxy->conns_updates.cur_items == 0))
         return;
 
+    if(proxy->headless) {
+        releaseConnectionsDump(proxy);
+        return;
+    }
+
     log_d("sendConnectionsDump [after %" PRIu64 " ms]: new=%d, updates=%d",
           proxy->now_ms - last_connections_dump,
           proxy->new_conns.cur_items, proxy->conns_updates.cur_items);
@@ -1138,8 +1176,11 @@ static void* load_new_blacklists(void *data) {
 /* ******************************************************* */
 
 void run_housekeeping(vpnproxy_data_t *proxy) {
-    if(proxy->capture_stats.new_stats
-            && ((proxy->now_ms - proxy->capture_stats.last_update_ms) >= CAPTURE_STATS_UPDATE_FREQUENCY_MS) ||
+    // In headless mode, the stats are only needed by the stats listeners, as the notification is not updated
+    bool stats_needed = !proxy->headless || has_stats_listeners;
+
+    if((stats_needed && proxy->capture_stats.new_stats
+            && ((proxy->now_ms - proxy->capture_stats.last_update_ms) >= CAPTURE_STATS_UPDATE_FREQUENCY_MS)) ||
             dump_capture_stats_now) {
         dump_capture_stats_now = false;
 
@@ -1222,6 +1263,23 @@ void fill_custom_data(struct pcapdroid_trailer *cdata, vpnproxy_data_t *proxy, c
 
 /* ******************************************************* */
 
+/* Fills the PCAPNG comment with the app metadata. Returns the comment length. */
+int fill_pcapng_comment(char *buf, int bufsize, vpnproxy_data_t *proxy, conn_data_t *conn) {
+    char appname[64];
+
+    get_appname_by_uid(proxy, conn->uid, appname, sizeof(appname));
+
+    int len = snprintf(buf, bufsize, "uid=%d app=%s", conn->uid, appname);
+
+    if(len < 0)
+        len = 0;
+    else if(len >= bufsize)
+        len = bufsize - 1; // truncated
+    return(len);
+}
+
+/* ******************************************************* */
+
 void account_packet(vpnproxy_data_t *proxy, const zdtun_pkt_t *pkt, uint8_t from_tun,
                     const zdtun_5tuple_t *conn_tuple, conn_data_t *data, uint64_t pkt_ms) {
 #if 0
@@ -1272,8 +1330,13 @@ void account_packet(vpnproxy_data_t *proxy, const zdtun_pkt_t *pkt, uint8_t from
     data->update_type |= CONN_UPDATE_STATS;
     notify_connection(&proxy->conns_updates, conn_tuple, data);
 
-    if (proxy->pcap_dump.buffer) {
-        int rec_size = pcap_rec_size(pkt->len);
+    if (proxy->pcap_dump.buffer && pcap_sample_pkt(pkt, data)) {
+        if(reset_pcapng_comments_now) {
+            reset_pcapng_comments_now = false;
+            pcap_reset_pcapng_comments();
+        }
+
+        int rec_size = pcap_rec_size(pkt, data);
 
         if ((JAVA_PCAP_BUFFER_SIZE - proxy->pcap_dump.buffer_idx) <= rec_size) {
             // Flush the buffer
@@ -1284,10 +1347,9 @@ void account_packet(vpnproxy_data_t *proxy, const zdtun_pkt_t *pkt, uint8_t from
             log_e("Invalid buffer size [size=%d, idx=%d, tot_size=%d]",
                   JAVA_PCAP_BUFFER_SIZE, proxy->pcap_dump.buffer_idx, rec_size);
         else {
-            pcap_dump_rec(pkt, (u_char *) proxy->pcap_dump.buffer + proxy->pcap_dump.buffer_idx,
-                    proxy, data);
-
-            proxy->pcap_dump.buffer_idx += rec_size;
+            // NOTE: the actual size may be lower than rec_size
+            proxy->pcap_dump.buffer_idx += pcap_dump_rec(pkt,
+                    (u_char *) proxy->pcap_dump.buffer + proxy->pcap_dump.buffer_idx, proxy, data);
         }
     }
 }
@@ -1348,6 +1410,7 @@ static int run_tun(JNIEnv *env, jclass vpn, int tunfd, jint sdk) {
             .dns_server = getIPv4Pref(env, vpn, "getDnsServer"),
             .app_filter = getIntPref(env, vpn, "getAppFilterUid"),
             .root_capture = (bool) getIntPref(env, vpn, "isRootCapture"),
+            .headless = (bool) getIntPref(env, vpn, "headlessModeEnabled"),
             .incr_id = 0,
             .pcap_dump = {
                     .enabled = (bool) getIntPref(env, vpn, "pcapDumpEnabled"),
@@ -1374,8 +1437,11 @@ static int run_tun(JNIEnv *env, jclass vpn, int tunfd, jint sdk) {
     strcat(proxy.filesdir, "/");
     proxy.filesdir_len = strlen(proxy.filesdir);
 
-    // Enable or disable the PCAPdroid trailer
+    // Configure the PCAP dump format
     pcap_set_pcapdroid_trailer((bool)getIntPref(env, vpn, "addPcapdroidTrailer"));
+    pcap_set_pcapng_format((bool)getIntPref(env, vpn, "pcapngFormatEnabled"));
+    pcap_set_snaplen(getIntPref(env, vpn, "getPcapSnaplen"), getIntPref(env, vpn, "getPcapPayloadBytes"));
+    pcap_set_sampling(getIntPref(env, vpn, "getPcapSamplingMode"), getIntPref(env, vpn, "getPcapSamplingValue"));
 
     /* Important: init global state every time. Android may reuse the service. */
     running = true;
@@ -1500,6 +1566,21 @@ Java_com_emanuelef_remote_1capture_CaptureService_askStatsDump(JNIEnv *env, jcla
         dump_capture_stats_now = true;
 }
 
+JNIEXPORT void JNICALL
+Java_com_emanuelef_remote_1capture_CaptureService_setHasStatsListeners(JNIEnv *env, jclass clazz, jboolean has_listeners) {
+    // Provide the current stats to the first listener
+    if(running && has_listeners && !has_stats_listeners)
+        dump_capture_stats_now = true;
+
+    has_stats_listeners = has_listeners;
+}
+
+JNIEXPORT void JNICALL
+Java_com_emanuelef_remote_1capture_CaptureService_resetPcapngComments(JNIEnv *env, jclass clazz) {
+    if(running)
+        reset_pcapng_comments_now = true;
+}
+
 JNIEXPORT jint JNICALL
 Java_com_emanuelef_remote_1capture_CaptureService_getFdSetSize(JNIEnv *env, jclass clazz) {
     return FD_SETSIZE;
@@ -1517,15 +1598,21 @@ Java_com_emanuelef_remote_1capture_CaptureService_setDnsServer(JNIEnv *env, jcla
 
 JNIEXPORT jbyteArray JNICALL
 Java_com_emanuelef_remote_1capture_CaptureService_getPcapHeader(JNIEnv *env, jclass clazz) {
-    struct pcap_hdr_s pcap_hdr;
+    u_char pcap_hdr[PCAP_HDR_MAX_SIZE] __attribute__((aligned (4)));
+    int hdr_size = pcap_hdr_size();
+
+    if(hdr_size > sizeof(pcap_hdr)) {
+        log_e("PCAP header too big: %d", hdr_size);
+        return NULL;
+    }
 
-    pcap_build_hdr(&pcap_hdr);
+    pcap_build_hdr(pcap_hdr);
 
-    jbyteArray barray = (*env)->NewByteArray(env, sizeof(struct pcap_hdr_s));
+    jbyteArray barray = (*env)->NewByteArray(env, hdr_size);
     if((barray == NULL) || jniCheckException(env))
         return NULL;
 
-    (*env)->SetByteArrayRegion(env, barray, 0, sizeof(struct pcap_hdr_s), (jbyte*)&pcap_hdr);
+    (*env)->SetByteArrayRegion(env, barray, 0, hdr_size, (jbyte*)pcap_hdr);
 
     if(jniCheckException(env)) {
         (*env)->DeleteLocalRef(env, barray);
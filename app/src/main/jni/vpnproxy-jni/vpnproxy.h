@@ -85,6 +85,7 @@ typedef struct {
     bool request_done;
     bool blacklisted_ip;
     bool blacklisted_domain;
+    uint32_t pcapng_comment_epoch; // the app metadata was dumped in this epoch, see pcap_dump_rec
     char *request_data;
     char *url;
     uint8_t update_type;
@@ -155,9 +156,11 @@ typedef struct {
     zdtun_t *tun;
     bool last_conn_blocked;
     bool root_capture;
+    bool headless;              // connections are not exported to java, see headlessModeEnabled
     zdtun_statistics_t stats;
     uid_to_app_t *uid2app;
     pcap_conn_t *connections;   // root only
+    char pcap_input[PATH_MAX];  // root only, PCAP file to replay instead of capturing, see getPcapInputPath
 
     struct {
         bool enabled;
@@ -266,6 +269,7 @@ void refresh_time(vpnproxy_data_t *proxy);
 void init_protocols_bitmask(ndpi_protocol_bitmask_struct_t *b);
 void vpn_protect_socket(vpnproxy_data_t *proxy, socket_t sock);
 void fill_custom_data(struct pcapdroid_trailer *cdata, vpnproxy_data_t *proxy, conn_data_t *conn);
+int fill_pcapng_comment(char *buf, int bufsize, vpnproxy_data_t *proxy, conn_data_t *conn);
 uint32_t crc32(u_char *buf, size_t len, uint32_t crc);
 const char* get_cache_path(const char *subpath);
 const char* get_file_path(const char *subpath);
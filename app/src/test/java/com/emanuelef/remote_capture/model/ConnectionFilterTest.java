@@ -0,0 +1,224 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+
+public class ConnectionFilterTest {
+    private static final int CHROME_UID = 10100;
+
+    private static final ConnectionFilter.AppResolver APPS = new ConnectionFilter.AppResolver() {
+        @Override
+        public String getAppName(int uid) {
+            return (uid == CHROME_UID) ? "Google Chrome" : null;
+        }
+
+        @Override
+        public String getPackageName(int uid) {
+            return (uid == CHROME_UID) ? "com.android.chrome" : null;
+        }
+    };
+
+    // A TLS connection of Chrome to www.google.com, 2 KB sent, 1 MB received in 10 seconds
+    private static ConnectionDescriptor newConn() {
+        ConnectionDescriptor conn = new ConnectionDescriptor(1, 4, 6, "10.215.173.1",
+                "142.250.180.4", 41234, 443, CHROME_UID, 1000);
+        conn.info = "www.google.com";
+        conn.l7proto = "TLS";
+        conn.country = "US";
+        conn.asn = new Geomodel.ASN(15169, "GOOGLE");
+        conn.sent_bytes = 2048;
+        conn.rcvd_bytes = 1024 * 1024;
+        conn.sent_pkts = 10;
+        conn.rcvd_pkts = 700;
+        conn.last_seen = 11000;
+        conn.status = ConnectionDescriptor.CONN_STATUS_CONNECTED;
+        return conn;
+    }
+
+    private static boolean matches(String expr) throws ParseException {
+        return ConnectionFilter.parse(expr).matches(newConn(), APPS);
+    }
+
+    private static void assertInvalid(String expr) {
+        try {
+            ConnectionFilter.parse(expr);
+            fail("\"" + expr + "\" should be invalid");
+        } catch (ParseException ignored) {}
+    }
+
+    @Test
+    public void numericFields() throws ParseException {
+        assertTrue(matches("dport:443"));
+        assertTrue(matches("port=443"));
+        assertFalse(matches("dport:80"));
+        assertTrue(matches("dport!=80"));
+        assertTrue(matches("sport>=41234"));
+        assertFalse(matches("sport>41234"));
+        assertTrue(matches("uid:10100"));
+        assertTrue(matches("pkts<=710"));
+        assertTrue(matches("duration:10"));
+    }
+
+    @Test
+    public void sizeSuffixes() throws ParseException {
+        assertTrue(matches("sent:2K"));
+        assertTrue(matches("rcvd:1M"));
+        assertTrue(matches("bytes>1M"));
+        assertFalse(matches("bytes>1G"));
+        assertTrue(matches("bytes<1g"));
+    }
+
+    @Test
+    public void stringFields() throws ParseException {
+        assertTrue(matches("proto:tls"));
+        assertTrue(matches("country:us"));
+        assertFalse(matches("country:IT"));
+        assertTrue(matches("country!=IT"));
+        assertTrue(matches("asn:15169"));
+        assertTrue(matches("asn:AS15169"));
+        assertTrue(matches("ipproto:tcp"));
+        assertFalse(matches("ipproto:udp"));
+        assertTrue(matches("ipproto!=17"));
+        assertTrue(matches("status:open"));
+        assertFalse(matches("is:blacklisted"));
+        assertFalse(matches("is:plaintext"));
+    }
+
+    @Test
+    public void ipAndHost() throws ParseException {
+        assertTrue(matches("ip:142.250.180.4"));
+        assertTrue(matches("ip:142.250.0.0/16"));
+        assertFalse(matches("ip:10.0.0.0/8"));
+        assertTrue(matches("host:google.com"));
+        assertTrue(matches("host:*.google.com"));
+        assertTrue(matches("host:www.google.com"));
+        assertFalse(matches("host:mail.google.com"));
+        assertFalse(matches("host:oogle.com"));
+    }
+
+    @Test
+    public void apps() throws ParseException {
+        assertTrue(matches("app:chrome"));
+        assertTrue(matches("app:\"google chrome\""));
+        assertTrue(matches("app:com.android.chrome"));
+        assertFalse(matches("app:com.android"));
+        assertTrue(matches("app:10100"));
+
+        // The apps are not matched without a resolver
+        assertFalse(ConnectionFilter.parse("app:chrome").matches(newConn(), null));
+    }
+
+    @Test
+    public void booleanOperators() throws ParseException {
+        assertTrue(matches("app:chrome and dport:443"));
+        assertTrue(matches("app:chrome dport:443"));
+        assertFalse(matches("app:chrome and dport:80"));
+        assertTrue(matches("dport:80 or dport:443"));
+        assertTrue(matches("dport:80 || dport:443"));
+        assertFalse(matches("not dport:443"));
+        assertFalse(matches("!dport:443"));
+        assertTrue(matches("NOT country:IT && bytes>1M"));
+
+        // "and" takes precedence over "or"
+        assertTrue(matches("dport:443 or dport:80 and country:IT"));
+        assertFalse(matches("(dport:443 or dport:80) and country:IT"));
+        assertTrue(matches("not (dport:80 or country:IT)"));
+    }
+
+    @Test
+    public void bareWords() throws ParseException {
+        assertTrue(matches("google"));
+        assertTrue(matches("GOOGLE"));
+        assertTrue(matches("142.250"));
+        assertTrue(matches("tls"));
+        assertTrue(matches("44"));
+        assertTrue(matches("41234"));
+        assertFalse(matches("4123"));
+        assertTrue(matches("chrome"));
+        assertTrue(matches("google dport:443"));
+        assertFalse(matches("facebook"));
+    }
+
+    @Test
+    public void bareWordsIgnoreCase() throws ParseException {
+        ConnectionDescriptor conn = new ConnectionDescriptor(2, 6, 17, "fe80::1", "FE80::ABCD", 5353, 5353, 0, 0);
+        conn.l7proto = "MDNS";
+
+        assertTrue(ConnectionFilter.parse("fe80::abcd").matches(conn, null));
+        assertTrue(ConnectionFilter.parse("ABCD").matches(conn, null));
+        assertTrue(ConnectionFilter.parse("mdns").matches(conn, null));
+    }
+
+    @Test
+    public void invalidExpressions() {
+        assertInvalid("");
+        assertInvalid("(dport:443");
+        assertInvalid("dport:443)");
+        assertInvalid("dport:");
+        assertInvalid("dport:abc");
+        assertInvalid("unknown:1");
+        assertInvalid("app>1");
+        assertInvalid("ip:1.2.3.4/33");
+        assertInvalid("ip:1.2.3");
+        assertInvalid("status:pending");
+        assertInvalid("app:\"chrome");
+        assertInvalid("dport:443 and");
+        assertInvalid("not");
+        assertInvalid("bytes>99999999999999999G");
+        assertInvalid("ipproto:256");
+        assertInvalid("ipproto:99999999999");
+    }
+
+    @Test
+    public void errorOffset() {
+        try {
+            ConnectionFilter.parse("dport:443 and foo:1");
+            fail();
+        } catch (ParseException e) {
+            assertEquals(14, e.getErrorOffset());
+        }
+    }
+
+    @Test
+    public void searchFallback() {
+        ConnectionDescriptor conn = newConn();
+
+        // Incomplete expressions are searched as plain text
+        assertFalse(ConnectionFilter.parseOrSearch("dport:").matches(conn, APPS));
+
+        // Plain text is searched as a whole, not as the "and" of its words
+        assertTrue(ConnectionFilter.parseOrSearch("www.google.com").matches(conn, APPS));
+        assertTrue(ConnectionFilter.parseOrSearch("google chrome").matches(conn, APPS));
+        assertFalse(ConnectionFilter.parseOrSearch("chrome google").matches(conn, APPS));
+        assertTrue(ConnectionFilter.parseOrSearch("").matches(conn, APPS));
+
+        // Expressions are still compiled
+        assertTrue(ConnectionFilter.parseOrSearch("chrome dport:443").matches(conn, APPS));
+        assertFalse(ConnectionFilter.parseOrSearch("chrome and dport:80").matches(conn, APPS));
+    }
+}
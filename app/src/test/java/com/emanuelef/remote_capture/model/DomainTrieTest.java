@@ -0,0 +1,144 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture.model;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DomainTrieTest {
+    private static final int ANY = DomainTrie.EXACT | DomainTrie.SUFFIX;
+
+    @Test
+    public void exactMatch() {
+        DomainTrie trie = new DomainTrie();
+        trie.add("example.org", DomainTrie.EXACT);
+
+        assertTrue(trie.matches("example.org", DomainTrie.EXACT));
+        assertFalse(trie.matches("sub.example.org", DomainTrie.EXACT));
+        assertFalse(trie.matches("org", DomainTrie.EXACT));
+        assertFalse(trie.matches("example.com", DomainTrie.EXACT));
+        assertFalse(trie.matches("myexample.org", DomainTrie.EXACT));
+
+        // Not a suffix rule
+        assertFalse(trie.matches("example.org", DomainTrie.SUFFIX));
+        assertFalse(trie.matches("sub.example.org", ANY));
+    }
+
+    @Test
+    public void exactMatchIgnoresWww() {
+        DomainTrie trie = new DomainTrie();
+        trie.add("www.example.org", DomainTrie.EXACT);
+        trie.add("example.net", DomainTrie.EXACT);
+
+        assertTrue(trie.matches("example.org", DomainTrie.EXACT));
+        assertTrue(trie.matches("www.example.org", DomainTrie.EXACT));
+        assertTrue(trie.matches("www.example.net", DomainTrie.EXACT));
+        assertFalse(trie.matches("www2.example.net", DomainTrie.EXACT));
+        assertFalse(trie.matches("www.www.example.net", DomainTrie.EXACT));
+    }
+
+    @Test
+    public void suffixMatch() {
+        DomainTrie trie = new DomainTrie();
+        trie.add("example.org", DomainTrie.SUFFIX);
+
+        assertTrue(trie.matches("example.org", DomainTrie.SUFFIX));
+        assertTrue(trie.matches("www.example.org", DomainTrie.SUFFIX));
+        assertTrue(trie.matches("a.b.example.org", DomainTrie.SUFFIX));
+        assertFalse(trie.matches("myexample.org", DomainTrie.SUFFIX));
+        assertFalse(trie.matches("example.org.evil.com", DomainTrie.SUFFIX));
+        assertFalse(trie.matches("org", DomainTrie.SUFFIX));
+
+        // Not an exact rule
+        assertFalse(trie.matches("example.org", DomainTrie.EXACT));
+    }
+
+    @Test
+    public void suffixKeepsWww() {
+        DomainTrie trie = new DomainTrie();
+        trie.add("www.example.org", DomainTrie.SUFFIX);
+
+        assertTrue(trie.matches("www.example.org", DomainTrie.SUFFIX));
+        assertTrue(trie.matches("cdn.www.example.org", DomainTrie.SUFFIX));
+        assertFalse(trie.matches("example.org", DomainTrie.SUFFIX));
+    }
+
+    @Test
+    public void mixedTypes() {
+        DomainTrie trie = new DomainTrie();
+        trie.add("example.org", DomainTrie.EXACT);
+        trie.add("cdn.example.org", DomainTrie.SUFFIX);
+
+        assertTrue(trie.matches("example.org", ANY));
+        assertTrue(trie.matches("a.cdn.example.org", ANY));
+        assertFalse(trie.matches("api.example.org", ANY));
+        assertFalse(trie.matches("a.cdn.example.org", DomainTrie.EXACT));
+
+        // The same domain can have both types
+        trie.add("example.org", DomainTrie.SUFFIX);
+        assertTrue(trie.matches("api.example.org", DomainTrie.SUFFIX));
+        assertTrue(trie.matches("example.org", DomainTrie.EXACT));
+    }
+
+    @Test
+    public void caseSensitive() {
+        DomainTrie trie = new DomainTrie();
+        trie.add("example.org", DomainTrie.SUFFIX);
+
+        // The domains are expected to be normalized by the caller
+        assertFalse(trie.matches("EXAMPLE.org", DomainTrie.SUFFIX));
+    }
+
+    @Test
+    public void manyChildren() {
+        DomainTrie trie = new DomainTrie();
+
+        // Enough labels to grow the children tables
+        for(int i = 0; i < 200; i++)
+            trie.add("host" + i + ".example.org", DomainTrie.EXACT);
+
+        for(int i = 0; i < 200; i++)
+            assertTrue(trie.matches("host" + i + ".example.org", DomainTrie.EXACT));
+        assertFalse(trie.matches("host200.example.org", DomainTrie.EXACT));
+        assertFalse(trie.matches("example.org", DomainTrie.EXACT));
+    }
+
+    @Test
+    public void emptyAndClear() {
+        DomainTrie trie = new DomainTrie();
+
+        assertTrue(trie.isEmpty());
+        assertFalse(trie.matches("example.org", ANY));
+        assertFalse(trie.matches(null, ANY));
+
+        trie.add("", DomainTrie.SUFFIX);
+        assertTrue(trie.isEmpty());
+
+        trie.add("example.org", DomainTrie.SUFFIX);
+        assertFalse(trie.isEmpty());
+        assertFalse(trie.matches(null, ANY));
+
+        trie.clear();
+        assertTrue(trie.isEmpty());
+        assertFalse(trie.matches("example.org", ANY));
+    }
+}
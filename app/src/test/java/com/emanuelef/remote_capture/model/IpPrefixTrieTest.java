@@ -0,0 +1,197 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+public class IpPrefixTrieTest {
+    private static void assertParsed(String addr) throws UnknownHostException {
+        byte[] out = new byte[16];
+        byte[] expected = InetAddress.getByName(addr).getAddress();
+        int len = IpPrefixTrie.parseAddress(addr, addr.length(), out);
+
+        // InetAddress converts the IPv4-mapped addresses to IPv4
+        if((expected.length == 4) && (len == 16)) {
+            byte[] mapped = new byte[16];
+            mapped[10] = mapped[11] = (byte) 0xFF;
+            System.arraycopy(expected, 0, mapped, 12, 4);
+            expected = mapped;
+        }
+
+        assertEquals(addr, expected.length, len);
+        byte[] parsed = new byte[len];
+        System.arraycopy(out, 0, parsed, 0, len);
+        assertArrayEquals(addr, expected, parsed);
+    }
+
+    private static void assertInvalid(String addr) {
+        assertEquals(addr, 0, IpPrefixTrie.parseAddress(addr, addr.length(), new byte[16]));
+    }
+
+    @Test
+    public void parseAddresses() throws UnknownHostException {
+        assertParsed("0.0.0.0");
+        assertParsed("192.168.1.255");
+        assertParsed("::");
+        assertParsed("::1");
+        assertParsed("fe80::");
+        assertParsed("2001:db8::8a2e:370:7334");
+        assertParsed("2001:DB8:0:0:1:0:0:1");
+        assertParsed("1:2:3:4:5:6:7:8");
+        assertParsed("::ffff:1.2.3.4");
+        assertParsed("64:ff9b::192.0.2.33");
+    }
+
+    @Test
+    public void parseInvalidAddresses() {
+        assertInvalid("");
+        assertInvalid("1.2.3");
+        assertInvalid("1.2.3.4.5");
+        assertInvalid("1.2.3.256");
+        assertInvalid("1..2.3");
+        assertInvalid("1.2.3.4 ");
+        assertInvalid("0001.2.3.4");
+        assertInvalid("example.org");
+        assertInvalid(":");
+        assertInvalid(":::");
+        assertInvalid("1::2::3");
+        assertInvalid("1:2:3:4:5:6:7");
+        assertInvalid("1:2:3:4:5:6:7:8:9");
+        assertInvalid("1:2:3:4:5:6:7:8::");
+        assertInvalid("1:");
+        assertInvalid("12345::");
+        assertInvalid("g::");
+        assertInvalid("1:2:3:4:5:6:7:1.2.3.4");
+    }
+
+    @Test
+    public void exactAddresses() {
+        IpPrefixTrie trie = new IpPrefixTrie();
+
+        assertTrue(trie.add("10.1.2.3"));
+        assertTrue(trie.add("2001:db8::1"));
+
+        assertTrue(trie.contains("10.1.2.3"));
+        assertFalse(trie.contains("10.1.2.4"));
+        assertFalse(trie.contains("10.1.2.30"));
+        assertTrue(trie.contains("2001:db8::1"));
+        assertTrue(trie.contains("2001:0db8:0:0:0:0:0:1"));
+        assertFalse(trie.contains("2001:db8::2"));
+        assertFalse(trie.contains("not an address"));
+        assertFalse(trie.contains(null));
+    }
+
+    @Test
+    public void ipv4Prefixes() {
+        IpPrefixTrie trie = new IpPrefixTrie();
+
+        assertTrue(trie.add("10.0.0.0/8"));
+        assertTrue(trie.add("192.168.1.128/25"));
+        assertTrue(trie.add("172.16.0.0/12"));
+
+        assertTrue(trie.contains("10.0.0.1"));
+        assertTrue(trie.contains("10.255.255.255"));
+        assertFalse(trie.contains("11.0.0.0"));
+        assertTrue(trie.contains("192.168.1.128"));
+        assertTrue(trie.contains("192.168.1.255"));
+        assertFalse(trie.contains("192.168.1.127"));
+        assertTrue(trie.contains("172.31.1.1"));
+        assertFalse(trie.contains("172.32.0.0"));
+    }
+
+    @Test
+    public void ipv6Prefixes() {
+        IpPrefixTrie trie = new IpPrefixTrie();
+
+        assertTrue(trie.add("2001:db8::/32"));
+        assertTrue(trie.add("fe80::/10"));
+
+        assertTrue(trie.contains("2001:db8::1"));
+        assertTrue(trie.contains("2001:db8:ffff::1"));
+        assertFalse(trie.contains("2001:db9::1"));
+        assertTrue(trie.contains("febf::1"));
+        assertFalse(trie.contains("fec0::1"));
+    }
+
+    @Test
+    public void familiesAreSeparate() {
+        IpPrefixTrie trie = new IpPrefixTrie();
+
+        // The IPv4 and IPv4-mapped addresses are not matched by each other
+        assertTrue(trie.add("1.2.3.0/24"));
+        assertFalse(trie.contains("::ffff:1.2.3.4"));
+        assertFalse(trie.contains("::102:304"));
+
+        assertTrue(trie.add("::ffff:5.6.7.8"));
+        assertTrue(trie.contains("::ffff:5.6.7.8"));
+        assertTrue(trie.contains("::ffff:506:708"));
+        assertFalse(trie.contains("5.6.7.8"));
+    }
+
+    @Test
+    public void matchAll() {
+        IpPrefixTrie trie = new IpPrefixTrie();
+
+        assertTrue(trie.add("0.0.0.0/0"));
+        assertTrue(trie.contains("1.2.3.4"));
+        assertFalse(trie.contains("::1"));
+
+        assertTrue(trie.add("::/0"));
+        assertTrue(trie.contains("::1"));
+    }
+
+    @Test
+    public void invalidPrefixes() {
+        IpPrefixTrie trie = new IpPrefixTrie();
+
+        assertFalse(trie.add("1.2.3.4/33"));
+        assertFalse(trie.add("1.2.3.4/-1"));
+        assertFalse(trie.add("1.2.3.4/"));
+        assertFalse(trie.add("1.2.3.4/a"));
+        assertFalse(trie.add("::/129"));
+        assertFalse(trie.add("1.2.3/24"));
+        assertFalse(trie.contains("1.2.3.4"));
+    }
+
+    @Test
+    public void clear() {
+        IpPrefixTrie trie = new IpPrefixTrie();
+
+        // Enough nodes to grow the arrays
+        for(int i = 0; i < 100; i++)
+            assertTrue(trie.add("2001:db8::" + Integer.toHexString(i)));
+        assertTrue(trie.contains("2001:db8::63"));
+
+        trie.clear();
+        assertFalse(trie.contains("2001:db8::63"));
+
+        assertTrue(trie.add("2001:db8::/64"));
+        assertTrue(trie.contains("2001:db8::63"));
+        assertFalse(trie.contains("2001:db8:0:1::"));
+    }
+}
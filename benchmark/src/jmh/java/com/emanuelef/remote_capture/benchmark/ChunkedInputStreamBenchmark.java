@@ -0,0 +1,78 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture.benchmark;
+
+import com.emanuelef.remote_capture.pcap_dump.ChunkedInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/* Produces the PCAP dumps into the stream, then reads them back as the HTTPServer does. This
+ * measures the copy overhead of the stream, not the producer/consumer synchronization. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ChunkedInputStreamBenchmark {
+    private static final int NUM_CHUNKS = 256;
+
+    @Param({"16384"})
+    public int chunk_size;
+
+    @Param({"16384"})
+    public int read_size;
+
+    private byte[] mHeader;
+    private byte[] mChunk;
+    private byte[] mReadBuf;
+
+    @Setup
+    public void setup() {
+        mHeader = new byte[24];  // sizeof(pcap_hdr_s)
+        mChunk = new byte[chunk_size];
+        mReadBuf = new byte[read_size];
+    }
+
+    @Benchmark
+    public long produceAndRead() throws IOException {
+        // Large enough to hold all the chunks, so that nothing is dropped
+        ChunkedInputStream stream = new ChunkedInputStream(mHeader, (long) NUM_CHUNKS * chunk_size,
+                ChunkedInputStream.SlowClientPolicy.DROP_OLDEST);
+        long total = 0;
+        int rv;
+
+        for(int i = 0; i < NUM_CHUNKS; i++)
+            stream.produceData(mChunk);
+        stream.stop();
+
+        while((rv = stream.read(mReadBuf, 0, mReadBuf.length)) > 0)
+            total += rv;
+
+        return total;
+    }
+}
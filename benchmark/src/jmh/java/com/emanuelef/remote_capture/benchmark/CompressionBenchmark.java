@@ -0,0 +1,139 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture.benchmark;
+
+import com.emanuelef.remote_capture.pcap_dump.CompressedOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/* Compresses 8 MB of synthetic PCAP data, split into 512 KB dumps as sent by the native code.
+ * The payload is either random, like the TLS traffic, or HTTP-like text. Real traffic is a mix of
+ * both: the CompressedOutputStream stats are logged at the end of each capture to get the ratio on
+ * the actual traffic. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CompressionBenchmark {
+    private static final int DUMP_SIZE = 512 * 1024;
+    private static final int NUM_DUMPS = 16;
+
+    @Param({"GZIP", "LZ4"})
+    public CompressedOutputStream.Codec codec;
+
+    @Param({"-1", "1"})
+    public int level;
+
+    @Param({"tls", "http"})
+    public String payload;
+
+    private byte[][] mDumps;
+
+    private static class NullOutputStream extends OutputStream {
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(1);
+        byte[] text = ("GET /index.html HTTP/1.1\r\nHost: www.example.org\r\nUser-Agent: Mozilla/5.0\r\n" +
+                "Accept: text/html,application/xhtml+xml\r\nAccept-Encoding: identity\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+
+        mDumps = new byte[NUM_DUMPS][];
+
+        for(int i = 0; i < NUM_DUMPS; i++) {
+            ByteBuffer buf = ByteBuffer.allocate(DUMP_SIZE);
+            buf.order(ByteOrder.nativeOrder());
+
+            while(true) {
+                int payload_len = rnd.nextInt(1400);
+                int incl_len = 40 + payload_len;
+
+                if(buf.remaining() < (16 + incl_len))
+                    break;
+
+                // pcaprec_hdr_s
+                buf.putInt((int)(System.currentTimeMillis() / 1000));
+                buf.putInt(rnd.nextInt(1000000));
+                buf.putInt(incl_len);
+                buf.putInt(incl_len);
+
+                // IPv4 + TCP headers, mostly constant within a connection
+                byte[] hdrs = new byte[40];
+                hdrs[0] = 0x45;
+                hdrs[9] = 6;
+                hdrs[12] = 10; hdrs[15] = 1;
+                hdrs[16] = (byte) 142; hdrs[19] = (byte) rnd.nextInt(4);
+                hdrs[22] = 0x01; hdrs[23] = (byte) 0xbb;
+                buf.put(hdrs);
+
+                byte[] data = new byte[payload_len];
+
+                if(payload.equals("tls"))
+                    rnd.nextBytes(data);
+                else {
+                    for(int j = 0; j < payload_len; j++)
+                        data[j] = text[j % text.length];
+                }
+                buf.put(data);
+            }
+
+            mDumps[i] = new byte[buf.position()];
+            System.arraycopy(buf.array(), 0, mDumps[i], 0, mDumps[i].length);
+        }
+    }
+
+    @Benchmark
+    public long compress() throws IOException {
+        NullOutputStream out = new NullOutputStream();
+        CompressedOutputStream stream = new CompressedOutputStream(out, codec, level);
+
+        for(byte[] dump: mDumps)
+            stream.write(dump);
+        stream.close();
+
+        return out.mCount;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture.benchmark;
+
+import com.emanuelef.remote_capture.ConnectionsRegister;
+import com.emanuelef.remote_capture.model.ConnectionDescriptor;
+import com.emanuelef.remote_capture.model.ConnectionUpdate;
+import com.emanuelef.remote_capture.model.MatchRules;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/* Applies a batch of new connections and connections updates to a full register, as done by the
+ * CaptureService connUpdateWork once per second. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConnectionsRegisterBenchmark {
+    private static final int REGISTER_SIZE = 8192;  // CaptureService.CONNECTIONS_LOG_SIZE
+
+    @Param({"50"})
+    public int new_conns;
+
+    @Param({"200"})
+    public int updates;
+
+    private Workload mWorkload;
+    private ConnectionsRegister mReg;
+    private ConnectionDescriptor[] mNewConns;
+    private ConnectionUpdate[] mUpdates;
+    private long mNow;
+
+    @Setup(Level.Trial)
+    public void setupRegister() {
+        mWorkload = new Workload(1);
+        mReg = new ConnectionsRegister(REGISTER_SIZE, new MatchRules(), null);
+        mNow = System.currentTimeMillis();
+
+        // Fill the register, so that each batch also evicts the old connections
+        while(mWorkload.mNextId < REGISTER_SIZE)
+            mReg.newConnections(mWorkload.newConnections(new_conns, mNow));
+    }
+
+    @Setup(Level.Invocation)
+    public void setupBatch() {
+        mNow += 1000;
+        mNewConns = mWorkload.newConnections(new_conns, mNow);
+        mUpdates = mWorkload.updates(updates, REGISTER_SIZE, mNow);
+    }
+
+    @Benchmark
+    public int applyBatch() {
+        mReg.newConnections(mNewConns);
+        mReg.connectionsUpdates(mUpdates);
+        return mReg.getConnCount();
+    }
+}
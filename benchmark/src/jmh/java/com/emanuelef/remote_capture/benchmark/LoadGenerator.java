@@ -0,0 +1,277 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture.benchmark;
+
+import com.emanuelef.remote_capture.ConnectionsRegister;
+import com.emanuelef.remote_capture.interfaces.ConnectionsListener;
+import com.emanuelef.remote_capture.model.ConnectionDescriptor;
+import com.emanuelef.remote_capture.model.ConnectionUpdate;
+import com.emanuelef.remote_capture.model.MatchRules;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/* Synthetic load test of the Java side of the capture pipeline. It generates the batches of new
+ * connections and connections updates, as sent by the native code to CaptureService.updateConnections,
+ * and applies them to a ConnectionsRegister with some listeners attached, as done by connUpdateWork.
+ * The batches are generated in advance, so that only the register work is measured. Given the
+ * same Config, the same batches are generated. Unlike the JMH benchmarks, it reports the batch
+ * latency distribution. Run with:
+ *
+ *   ./gradlew :benchmark:loadGenerator --args="batches=1000 new_conns=50 updates=200 hosts=500 blacklist_ratio=0.01"
+ *
+ * All the arguments are optional, see Config for the defaults. */
+public class LoadGenerator {
+    private static final int REGISTER_SIZE = 8192;  // CaptureService.CONNECTIONS_LOG_SIZE
+    private static final int INFO_UPDATE_PERC = 20;
+    private final Config mConfig;
+    private final Random mRnd;
+    private final String[] mHosts;
+    private int mNextId;
+
+    public static class Config {
+        public int batches = 1000;
+        public int new_conns = 50;              // new connections per batch
+        public int updates = 200;               // connections updates per batch
+        public int hosts = 500;                 // number of distinct remote hosts
+        public float blacklist_ratio = 0.01f;   // ratio of the updates which mark the connection as malicious
+        public int listeners = 2;
+        public int register_size = REGISTER_SIZE;
+        public long seed = 1;
+
+        /* Parses the "name=value" arguments */
+        static Config parse(String[] args) {
+            Config config = new Config();
+
+            for(String arg: args) {
+                int sep = arg.indexOf('=');
+                String name = (sep > 0) ? arg.substring(0, sep) : arg;
+                String val = (sep > 0) ? arg.substring(sep + 1) : "";
+
+                switch(name) {
+                    case "batches":         config.batches = Integer.parseInt(val); break;
+                    case "new_conns":       config.new_conns = Integer.parseInt(val); break;
+                    case "updates":         config.updates = Integer.parseInt(val); break;
+                    case "hosts":           config.hosts = Integer.parseInt(val); break;
+                    case "blacklist_ratio": config.blacklist_ratio = Float.parseFloat(val); break;
+                    case "listeners":       config.listeners = Integer.parseInt(val); break;
+                    case "register_size":   config.register_size = Integer.parseInt(val); break;
+                    case "seed":            config.seed = Long.parseLong(val); break;
+                    default:
+                        throw new IllegalArgumentException("unknown argument: " + name);
+                }
+            }
+
+            return config;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "batches=%d, new_conns=%d, updates=%d, hosts=%d, " +
+                    "blacklist_ratio=%.3f, listeners=%d, register_size=%d, seed=%d",
+                    batches, new_conns, updates, hosts, blacklist_ratio, listeners, register_size, seed);
+        }
+    }
+
+    public static class Result {
+        public long num_items;      // new connections + updates
+        public long elapsed_ns;
+        public long p50_batch_ns;
+        public long p99_batch_ns;
+        public long max_batch_ns;
+        public long alloc_bytes;    // -1 if not available
+
+        public double getItemsPerSec() {
+            return (elapsed_ns > 0) ? (num_items * 1e9 / elapsed_ns) : 0;
+        }
+
+        public double getAllocRate() {
+            return ((alloc_bytes >= 0) && (elapsed_ns > 0)) ? (alloc_bytes * 1e9 / elapsed_ns) : -1;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d items in %d ms: %.0f items/s, batch latency p50=%.3f ms " +
+                    "p99=%.3f ms max=%.3f ms, alloc rate=%s",
+                    num_items, elapsed_ns / 1000000, getItemsPerSec(),
+                    p50_batch_ns / 1e6, p99_batch_ns / 1e6, max_batch_ns / 1e6,
+                    (alloc_bytes >= 0) ? String.format(Locale.ROOT, "%.1f MB/s", getAllocRate() / 1048576) : "n/a");
+        }
+    }
+
+    /* Reads the connections like the ConnectionsAdapter does when it's notified */
+    private static class ReaderListener implements ConnectionsListener {
+        private final ConnectionsRegister mReg;
+        long mSink;
+
+        ReaderListener(ConnectionsRegister reg) {
+            mReg = reg;
+        }
+
+        @Override
+        public void connectionsChanges(int num_connetions) {}
+
+        @Override
+        public void connectionsAdded(int start, ConnectionDescriptor[] conns) {
+            for(ConnectionDescriptor conn: conns)
+                mSink += conn.incr_id;
+        }
+
+        @Override
+        public void connectionsRemoved(int start, ConnectionDescriptor[] conns) {}
+
+        @Override
+        public void connectionsUpdated(int[] positions) {
+            for(int pos: positions) {
+                ConnectionDescriptor conn = mReg.getConn(pos);
+
+                if(conn != null)
+                    mSink += conn.sent_bytes + conn.rcvd_bytes;
+            }
+        }
+    }
+
+    public LoadGenerator(Config config) {
+        mConfig = config;
+        mRnd = new Random(config.seed);
+        mHosts = new String[Math.max(config.hosts, 1)];
+
+        for(int i = 0; i < mHosts.length; i++)
+            mHosts[i] = "host" + i + ".example" + (i % 16) + ".com";
+    }
+
+    private ConnectionDescriptor[] genNewConnections(long now) {
+        ConnectionDescriptor[] conns = new ConnectionDescriptor[mConfig.new_conns];
+
+        for(int i = 0; i < conns.length; i++) {
+            int host_idx = mRnd.nextInt(mHosts.length);
+            int uid = 10000 + mRnd.nextInt(Workload.NUM_UIDS);
+
+            ConnectionDescriptor conn = new ConnectionDescriptor(mNextId++, 4, 6 /* TCP */,
+                    "10.215.173.1", Workload.hostIp(host_idx), 40000 + mRnd.nextInt(20000), 443, uid, now);
+            conn.info = mHosts[host_idx];
+            conn.l7proto = "TLS";
+            conns[i] = conn;
+        }
+
+        return conns;
+    }
+
+    private ConnectionUpdate[] genUpdates(long now) {
+        // Only the most recent connections are updated, as the older ones are likely closed
+        int window = Math.min(mNextId, mConfig.register_size);
+        ConnectionUpdate[] updates = new ConnectionUpdate[(window > 0) ? mConfig.updates : 0];
+
+        for(int i = 0; i < updates.length; i++) {
+            ConnectionUpdate update = new ConnectionUpdate(mNextId - 1 - mRnd.nextInt(window));
+            int status = ConnectionDescriptor.CONN_STATUS_CONNECTED;
+            int pkts = 1 + mRnd.nextInt(100);
+
+            if(mRnd.nextFloat() < mConfig.blacklist_ratio)
+                status |= ConnectionUpdate.STATUS_BLACKLISTED_HOST;
+
+            update.setStats(now, pkts * 100L, pkts * 1000L, pkts, pkts, 0, status);
+
+            if(mRnd.nextInt(100) < INFO_UPDATE_PERC)
+                update.setInfo(mHosts[mRnd.nextInt(mHosts.length)], null, null, "TLS");
+
+            updates[i] = update;
+        }
+
+        return updates;
+    }
+
+    private static long getAllocatedBytes() {
+        // Only available on HotSpot, counts the allocations of the calling thread
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if(bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hs_bean = (com.sun.management.ThreadMXBean) bean;
+
+            if(hs_bean.isThreadAllocatedMemorySupported() && hs_bean.isThreadAllocatedMemoryEnabled())
+                return hs_bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /* Runs the workload on the calling thread and returns the measurements. */
+    public Result run() {
+        ConnectionsRegister reg = new ConnectionsRegister(mConfig.register_size, new MatchRules(), null);
+        ConnectionDescriptor[][] new_conns = new ConnectionDescriptor[mConfig.batches][];
+        ConnectionUpdate[][] updates = new ConnectionUpdate[mConfig.batches][];
+        long[] latencies = new long[mConfig.batches];
+        long now = System.currentTimeMillis();
+
+        for(int i = 0; i < mConfig.listeners; i++)
+            reg.addListener(new ReaderListener(reg));
+
+        for(int i = 0; i < mConfig.batches; i++) {
+            // Simulate one dump per second, as done by the native code
+            new_conns[i] = genNewConnections(now + i * 1000L);
+            updates[i] = genUpdates(now + i * 1000L);
+        }
+
+        Result res = new Result();
+        long alloc_start = getAllocatedBytes();
+        long start = System.nanoTime();
+
+        for(int i = 0; i < mConfig.batches; i++) {
+            long batch_start = System.nanoTime();
+
+            synchronized (reg) {
+                if(new_conns[i].length > 0)
+                    reg.newConnections(new_conns[i]);
+
+                if(updates[i].length > 0)
+                    reg.connectionsUpdates(updates[i]);
+            }
+
+            latencies[i] = System.nanoTime() - batch_start;
+            res.num_items += new_conns[i].length + updates[i].length;
+
+            // Release the batch, as done by the native code
+            new_conns[i] = null;
+            updates[i] = null;
+        }
+
+        res.elapsed_ns = System.nanoTime() - start;
+        long alloc_end = getAllocatedBytes();
+        res.alloc_bytes = ((alloc_start >= 0) && (alloc_end >= alloc_start)) ? (alloc_end - alloc_start) : -1;
+
+        if(latencies.length > 0) {
+            Arrays.sort(latencies);
+            res.p50_batch_ns = latencies[latencies.length / 2];
+            res.p99_batch_ns = latencies[Math.min((int)(latencies.length * 0.99), latencies.length - 1)];
+            res.max_batch_ns = latencies[latencies.length - 1];
+        }
+
+        return res;
+    }
+
+    public static void main(String[] args) {
+        Config config = Config.parse(args);
+
+        System.out.println("Running: " + config);
+        System.out.println("Result: " + new LoadGenerator(config).run());
+    }
+}
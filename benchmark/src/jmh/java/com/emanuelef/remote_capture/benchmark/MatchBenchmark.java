@@ -0,0 +1,111 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture.benchmark;
+
+import com.emanuelef.remote_capture.model.ConnectionDescriptor;
+import com.emanuelef.remote_capture.model.ConnectionFilter;
+import com.emanuelef.remote_capture.model.FilterDescriptor;
+import com.emanuelef.remote_capture.model.MatchRules;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/* The checks performed on each connection by the whitelist/visualization mask, by the
+ * ConnectionsAdapter filter, by the search box and by the filter expressions. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MatchBenchmark {
+    private static final int NUM_CONNS = 1024;
+
+    @Param({"10", "1000", "10000"})
+    public int num_rules;
+
+    private ConnectionDescriptor[] mConns;
+    private MatchRules mRules;
+    private FilterDescriptor mFilter;
+    private ConnectionFilter mExpression;
+    private ConnectionFilter mSearch;
+
+    @Setup
+    public void setup() throws ParseException {
+        Workload workload = new Workload(1);
+        mConns = workload.newConnections(NUM_CONNS, System.currentTimeMillis());
+        mRules = new MatchRules();
+
+        // Mostly non matching rules, spread across the rule types
+        for(int i = 0; i < num_rules; i++) {
+            switch(i % 6) {
+                case 0: mRules.addApp(20000 + i); break;
+                case 1: mRules.addIp("192.168." + ((i >> 8) & 0xFF) + "." + (i & 0xFF)); break;
+                case 2: mRules.addIp("172." + (16 + ((i >> 8) & 0x0F)) + "." + (i & 0xFF) + ".0/24"); break;
+                case 3: mRules.addIp("2001:db8:" + Integer.toHexString(i) + "::/48"); break;
+                case 4: mRules.addHost("rule" + i + ".example.org"); break;
+                default: mRules.addRootDomain("example" + i + ".org"); break;
+            }
+        }
+
+        mFilter = new FilterDescriptor();
+        mFilter.showMasked = false;
+        mFilter.status = ConnectionDescriptor.Status.STATUS_OPEN;
+
+        mExpression = ConnectionFilter.parse("(proto:TLS or port:443) and bytes>1K and not ip:10.0.0.0/8 and not host:example.org");
+        mSearch = ConnectionFilter.parseOrSearch("google");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_CONNS)
+    public void matchRules(Blackhole bh) {
+        for(ConnectionDescriptor conn: mConns)
+            bh.consume(mRules.matches(conn));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_CONNS)
+    public void matchFilter(Blackhole bh) {
+        for(ConnectionDescriptor conn: mConns)
+            bh.consume(mFilter.matches(conn, mRules));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_CONNS)
+    public void matchSearch(Blackhole bh) {
+        for(ConnectionDescriptor conn: mConns)
+            bh.consume(mSearch.matches(conn, null));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_CONNS)
+    public void matchExpression(Blackhole bh) {
+        for(ConnectionDescriptor conn: mConns)
+            bh.consume(mExpression.matches(conn, null));
+    }
+}
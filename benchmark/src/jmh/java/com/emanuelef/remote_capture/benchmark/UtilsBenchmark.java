@@ -0,0 +1,96 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture.benchmark;
+
+import com.emanuelef.remote_capture.CoreUtils;
+import com.emanuelef.remote_capture.pcap_dump.PcapRecordCursor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UtilsBenchmark {
+    private static final int NUM_DOMAINS = 1024;
+    private static final int PCAP_DUMP_SIZE = 512 * 1024;
+    private String[] mDomains;
+    private byte[] mPcapDump;
+    private PcapRecordCursor mCursor;
+
+    @Setup
+    public void setup() {
+        Workload workload = new Workload(1);
+        Random rnd = new Random(1);
+
+        mDomains = new String[NUM_DOMAINS];
+        for(int i = 0; i < NUM_DOMAINS; i++)
+            mDomains[i] = "sub" + (i % 4) + "." + workload.mHosts[rnd.nextInt(workload.mHosts.length)];
+
+        // A buffer of PCAP records, as received via CaptureService::dumpPcapData
+        ByteBuffer buf = ByteBuffer.allocate(PCAP_DUMP_SIZE);
+        buf.order(ByteOrder.nativeOrder());
+
+        while(true) {
+            int incl_len = 40 + rnd.nextInt(1460);
+
+            if(buf.remaining() < (16 + incl_len))
+                break;
+
+            int pos = buf.position();
+            buf.putInt(pos + 8, incl_len);      // pcaprec_hdr_s.incl_len
+            buf.putInt(pos + 12, incl_len);     // pcaprec_hdr_s.orig_len
+            buf.position(pos + 16 + incl_len);
+        }
+
+        mPcapDump = new byte[buf.position()];
+        System.arraycopy(buf.array(), 0, mPcapDump, 0, mPcapDump.length);
+        mCursor = new PcapRecordCursor(false);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_DOMAINS)
+    public void getRootDomain(Blackhole bh) {
+        for(String domain: mDomains)
+            bh.consume(CoreUtils.getRootDomain(domain));
+    }
+
+    @Benchmark
+    public long pcapRecordCursor() {
+        PcapRecordCursor cursor = mCursor.reset(mPcapDump);
+        long total = 0;
+
+        while(cursor.next())
+            total += cursor.getLength() + cursor.getOrigLength();
+        return total;
+    }
+}
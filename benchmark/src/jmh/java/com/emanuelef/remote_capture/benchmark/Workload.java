@@ -0,0 +1,85 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2020-21 - Emanuele Faranda
+ */
+
+package com.emanuelef.remote_capture.benchmark;
+
+import com.emanuelef.remote_capture.model.ConnectionDescriptor;
+import com.emanuelef.remote_capture.model.ConnectionUpdate;
+
+import java.util.Random;
+
+/* Generates synthetic connections, similar to the ones sent by the native code.
+ * Given the same seed, the same data is generated. */
+class Workload {
+    static final int NUM_UIDS = 64;
+    static final int NUM_HOSTS = 500;
+    private static final String[] PROTOS = {"TLS", "HTTP", "DNS", "QUIC"};
+    final Random mRnd;
+    final String[] mHosts;
+    int mNextId;
+
+    Workload(long seed) {
+        mRnd = new Random(seed);
+        mHosts = new String[NUM_HOSTS];
+
+        for(int i = 0; i < mHosts.length; i++)
+            mHosts[i] = "host" + i + ".example" + (i % 16) + ".com";
+    }
+
+    static String hostIp(int host_idx) {
+        return "10." + ((host_idx >> 16) & 0xFF) + "." + ((host_idx >> 8) & 0xFF) + "." + (host_idx & 0xFF);
+    }
+
+    ConnectionDescriptor newConnection(long now) {
+        int host_idx = mRnd.nextInt(mHosts.length);
+
+        ConnectionDescriptor conn = new ConnectionDescriptor(mNextId++, 4, 6 /* TCP */,
+                "10.215.173.1", hostIp(host_idx), 40000 + mRnd.nextInt(20000), 443,
+                10000 + mRnd.nextInt(NUM_UIDS), now);
+        conn.info = mHosts[host_idx];
+        conn.l7proto = PROTOS[mRnd.nextInt(PROTOS.length)];
+        conn.request_plaintext = "";
+        return conn;
+    }
+
+    ConnectionDescriptor[] newConnections(int num, long now) {
+        ConnectionDescriptor[] conns = new ConnectionDescriptor[num];
+
+        for(int i = 0; i < num; i++)
+            conns[i] = newConnection(now);
+        return conns;
+    }
+
+    /* Updates the connections among the most recent window ones */
+    ConnectionUpdate[] updates(int num, int window, long now) {
+        window = Math.min(window, mNextId);
+        ConnectionUpdate[] updates = new ConnectionUpdate[(window > 0) ? num : 0];
+
+        for(int i = 0; i < updates.length; i++) {
+            ConnectionUpdate update = new ConnectionUpdate(mNextId - 1 - mRnd.nextInt(window));
+            int pkts = 1 + mRnd.nextInt(100);
+
+            update.setStats(now, pkts * 100L, pkts * 1000L, pkts, pkts, 0,
+                    ConnectionDescriptor.CONN_STATUS_CONNECTED);
+            updates[i] = update;
+        }
+
+        return updates;
+    }
+}
@@ -19,6 +19,7 @@
 #
 
 import socket
+import struct
 import sys
 import argparse
 
@@ -26,6 +27,10 @@ import argparse
 BUFSIZE = 65535
 
 # Standard PCAP header (struct pcap_hdr_s). Must be sent before any other PCAP record (struct pcaprec_hdr_s).
+# The header sent by the app is used when received, as the snaplen may differ (pcap_snaplen)
+PCAP_HDR_MAGIC = bytes.fromhex("d4c3b2a1")
+PCAP_HDR_SIZE = 24
+
 # magic: 0xa1b2c3d4, v2.4, snaplen: 65535, LINKTYPE_RAW
 PCAP_HDR_BYTES = bytes.fromhex("d4c3b2a1020004000000000000000000ffff000065000000")
 
@@ -35,6 +40,23 @@ PCAP_HDR_BYTES_TRAILER = bytes.fromhex("d4c3b2a1020004000000000000000000ffff0000
 PCAPDROID_TRAILER_MAGIC = bytes.fromhex("01072021")
 PCAPDROID_TRAILER_SIZE = 32
 
+# PCAPNG format (pcapng_format): the first datagram contains the Section Header Block and the
+# Interface Description Block, the other ones contain an Enhanced Packet Block each
+PCAPNG_SHB_TYPE = bytes.fromhex("0a0d0d0a")
+PCAPNG_EPB_TYPE = bytes.fromhex("06000000")
+
+# Minimal SHB + IDB (LINKTYPE_RAW), used when the PCAPNG header datagram was not received
+PCAPNG_HDR_BYTES = bytes.fromhex("0a0d0d0a1c0000004d3c2b1a01000000ffffffffffffffff1c000000"
+  "010000001400000065000000ffff000014000000")
+
+# Batched records (udp_batch_mtu), see UDPDumper.java
+# v1: [magic (4) | version (2) | num_records (2) | record_1 | ... | record_n ]
+# v2: [magic (4) | version (2) | num_records (2) | seq (4) | record_1 | ... | record_n ]
+# header in network byte order
+BATCH_MAGIC = bytes.fromhex("50444231")
+BATCH_HDR_SIZE_V1 = 8
+BATCH_HDR_SIZE_V2 = 12
+
 parser = argparse.ArgumentParser(
     description='''Receives data from the PCAPdroid app and outputs it to stdout.''')
 
@@ -54,40 +76,115 @@ def write(data):
     sys.stdout.buffer.write(data)
     sys.stdout.flush()
 
+def log(msg):
+  if(args.verbose):
+    sys.stderr.write(msg + "\n")
+
+# v2 batches sequence tracking
+next_seq = None
+lost_batches = 0
+
+def check_seq(seq):
+  global next_seq, lost_batches
+
+  if (next_seq is not None) and (seq != next_seq):
+    gap = (seq - next_seq) & 0xFFFFFFFF
+
+    if gap < 0x80000000:
+      lost_batches += gap
+      sys.stderr.write("Lost {} batches (seq {} - {}), total lost: {}\n".format(
+        gap, next_seq, (seq - 1) & 0xFFFFFFFF, lost_batches))
+    else:
+      # the app was possibly restarted, or the datagrams were reordered
+      log("Unexpected batch seq {}, expected {}".format(seq, next_seq))
+
+  next_seq = (seq + 1) & 0xFFFFFFFF
+
+# Splits the records of a batch
+def unpack_batch(data):
+  version, num_records = struct.unpack_from("!HH", data, 4)
+  records = []
+  offset = BATCH_HDR_SIZE_V1
+
+  if version >= 2:
+    seq = struct.unpack_from("!I", data, 8)[0]
+    offset = BATCH_HDR_SIZE_V2
+    check_seq(seq)
+    log("Got a batch of {} records (v{}, seq {})".format(num_records, version, seq))
+  else:
+    log("Got a batch of {} records (v{})".format(num_records, version))
+
+  while (offset < len(data)) and (len(records) < num_records):
+    if data[offset:offset+4] == PCAPNG_EPB_TYPE:
+      # block_total_length
+      rec_len = struct.unpack_from("<I", data, offset + 4)[0]
+    else:
+      # 16: sizeof(pcaprec_hdr_s) + incl_len
+      rec_len = 16 + struct.unpack_from("<I", data, offset + 8)[0]
+
+    records.append(data[offset:offset+rec_len])
+    offset += rec_len
+
+  return records
+
+def is_pcap_hdr(data):
+  return (len(data) == PCAP_HDR_SIZE) and (data[0:4] == PCAP_HDR_MAGIC)
+
 def main_loop():
   sock = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
   sock.bind(("0.0.0.0", args.port))
 
   pcap_header_sent = False
 
-  # Send the individual records (struct pcaprec_hdr_s)
+  # Send the individual records (struct pcaprec_hdr_s, or PCAPNG blocks)
   while True:
     data, addr = sock.recvfrom(BUFSIZE)
 
-    if(args.verbose):
-      sys.stderr.write("Got a {}B packet\n".format(len(data)))
+    log("Got a {}B packet".format(len(data)))
 
-    if(not pcap_header_sent):
-      # Determine is the PCAPDroid trailer is in use
-      offset = len(data) - PCAPDROID_TRAILER_SIZE
-      has_trailer = (data == PCAP_HDR_BYTES_TRAILER) or ((offset > 0) and \
-        (data[offset:offset+4] == PCAPDROID_TRAILER_MAGIC))
+    if data[0:4] == PCAPNG_SHB_TYPE:
+      # PCAPNG header, send it as is
+      if(not pcap_header_sent):
+        log("PCAPNG header detected")
+        write(data)
+        pcap_header_sent = True
+      else:
+        log("PCAPNG header detected, skipping")
+      continue
 
-      if(args.verbose):
-        sys.stderr.write("Sending PCAP header (trailer " + ("not " if not has_trailer else "") + "detected)\n")
+    if is_pcap_hdr(data):
+      if(not pcap_header_sent):
+        log("PCAP header detected")
+        write(data)
+        pcap_header_sent = True
+      else:
+        # Ignore the PCAP header as we already sent it above
+        log("PCAP header detected, skipping")
+      continue
 
-      # Send the PCAP header before any other data
-      write(PCAP_HDR_BYTES if not has_trailer else PCAP_HDR_BYTES_TRAILER)
-      pcap_header_sent = True
+    records = unpack_batch(data) if (data[0:4] == BATCH_MAGIC) else [data]
 
-    if((data == PCAP_HDR_BYTES) or (data == PCAP_HDR_BYTES_TRAILER)):
-      # Ignore the PCAP header as we already sent it above
-      if(args.verbose):
-        sys.stderr.write("PCAP header detected, skipping\n");
-      continue
+    if(not pcap_header_sent) and records:
+      first = records[0]
+
+      if first[0:4] == PCAPNG_EPB_TYPE:
+        log("Sending PCAPNG header (PCAPNG block detected)")
+        write(PCAPNG_HDR_BYTES)
+      else:
+        # Determine is the PCAPDroid trailer is in use
+        offset = len(first) - PCAPDROID_TRAILER_SIZE
+        has_trailer = (offset > 0) and (first[offset:offset+4] == PCAPDROID_TRAILER_MAGIC)
 
-    # this is a PCAP record, send it
-    write(data)
+        log("Sending PCAP header (trailer " + ("not " if not has_trailer else "") + "detected)")
+
+        # Send the PCAP header before any other data
+        write(PCAP_HDR_BYTES if not has_trailer else PCAP_HDR_BYTES_TRAILER)
+
+      pcap_header_sent = True
+
+    # these are PCAP records, send them
+    for rec in records:
+      write(rec)
 
 if __name__ == "__main__":
   try:
@@ -95,6 +192,9 @@ if __name__ == "__main__":
   except KeyboardInterrupt:
     sys.stderr.write("Terminating...")
 
+    if lost_batches > 0:
+      sys.stderr.write(" {} batches lost".format(lost_batches))
+
     if outf:
       outf.close()
     exit(0)